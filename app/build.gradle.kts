@@ -34,6 +34,13 @@ android {
             proguardFiles(getDefaultProguardFile("proguard-android-optimize.txt"), "proguard-rules.pro")
             signingConfig = signingConfigs.getByName("release")
         }
+        // Release code signed with the debug key, measured by the macrobenchmark module
+        create("benchmark") {
+            initWith(getByName("release"))
+            signingConfig = signingConfigs.getByName("debug")
+            matchingFallbacks += listOf("release")
+            isDebuggable = false
+        }
     }
     compileOptions {
         sourceCompatibility = JavaVersion.VERSION_1_8
@@ -43,6 +50,16 @@ android {
         jvmTarget = "1.8"
     }
     
+    // The model token budget is shared with the backend, which reads the same file
+    sourceSets {
+        getByName("main") {
+            assets.srcDirs("src/main/assets", "../backend/config")
+        }
+        getByName("test") {
+            resources.srcDirs("../backend/config")
+        }
+    }
+    
     // Fix 16 KB page alignment for newer Android devices
     packaging {
         jniLibs {
@@ -58,6 +75,7 @@ dependencies {
     implementation("androidx.recyclerview:recyclerview:1.3.2")
     implementation("androidx.core:core-ktx:1.12.0")
     testImplementation("junit:junit:4.13.2")
+    testImplementation("org.json:json:20231013") // Real org.json for JVM tests, android.jar only has stubs
     androidTestImplementation("androidx.test.ext:junit:1.1.5")
     androidTestImplementation("androidx.test.espresso:espresso-core:3.5.1")
     
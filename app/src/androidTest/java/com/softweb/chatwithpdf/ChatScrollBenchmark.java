@@ -0,0 +1,157 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scrolls a 1000-message conversation through the chat list, a fixed distance per
+ * frame, and reports frame durations from {@link FrameMetrics} to logcat under the
+ * ChatScrollBenchmark tag. The conversation is read from a {@link ChatHistory} file a
+ * page at a time. The first pass lays all text out; the pass back up starts over rows
+ * whose layouts are still cached.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChatScrollBenchmark {
+
+    private static final String TAG = "ChatScrollBenchmark";
+    private static final int MESSAGE_COUNT = 1000;
+    // A sixth of the screen per frame, enough frames to pass every message
+    private static final int SCROLL_FRAMES = 900;
+    private static final long FRAME_BUDGET_NANOS = 16_666_667L;
+
+    @Test
+    public void scroll1000Messages() throws IOException, InterruptedException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File file = new File(context.getCacheDir(), "scroll-benchmark.log");
+        file.delete();
+        ChatHistory history = ChatHistory.open(file);
+        for (ChatMessage message : conversation(MESSAGE_COUNT)) {
+            history.add(message);
+        }
+        history.flush();
+
+        try (ActivityScenario<MainActivity> scenario = ActivityScenario.launch(MainActivity.class)) {
+            RecyclerView[] list = new RecyclerView[1];
+            scenario.onActivity(activity -> {
+                list[0] = activity.findViewById(R.id.chatRecyclerView);
+                list[0].setAdapter(new ChatAdapter(history));
+            });
+
+            // Down through every message, then back up, the latest rows first
+            long[] down = measure(scenario, list[0], SCROLL_FRAMES, 1);
+            long[] up = measure(scenario, list[0], SCROLL_FRAMES, -1);
+            report("Scroll down", down);
+            report("Scroll back up", up);
+            assertTrue(down.length > SCROLL_FRAMES / 2);
+        } finally {
+            history.close();
+        }
+    }
+
+    /**
+     * Scroll one step per frame and collect the duration of each frame drawn meanwhile
+     */
+    private static long[] measure(ActivityScenario<MainActivity> scenario, RecyclerView list,
+                                  int frames, int direction) throws InterruptedException {
+        List<Long> durations = Collections.synchronizedList(new ArrayList<>());
+        Window.OnFrameMetricsAvailableListener frameListener = (window, metrics, dropped) ->
+                durations.add(metrics.getMetric(FrameMetrics.TOTAL_DURATION));
+        CountDownLatch done = new CountDownLatch(1);
+        Window[] window = new Window[1];
+
+        scenario.onActivity(activity -> {
+            window[0] = activity.getWindow();
+            window[0].addOnFrameMetricsAvailableListener(frameListener, new Handler(Looper.getMainLooper()));
+            int step = list.getHeight() / 6 * direction;
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                private int remaining = frames;
+
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    list.scrollBy(0, step);
+                    if (--remaining > 0) {
+                        Choreographer.getInstance().postFrameCallback(this);
+                    } else {
+                        done.countDown();
+                    }
+                }
+            });
+        });
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        // Metrics for the last frames arrive shortly after they are drawn
+        Thread.sleep(500);
+        scenario.onActivity(activity -> window[0].removeOnFrameMetricsAvailableListener(frameListener));
+
+        long[] result = new long[durations.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = durations.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static void report(String pass, long[] durations) {
+        int janky = 0;
+        for (long duration : durations) {
+            if (duration > FRAME_BUDGET_NANOS) {
+                janky++;
+            }
+        }
+        Log.i(TAG, String.format(Locale.US, "%s: %d frames, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, %d over 16.7 ms",
+                pass, durations.length, percentile(durations, 50), percentile(durations, 90),
+                percentile(durations, 99), janky));
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)] / 1e6;
+    }
+
+    /**
+     * Short questions and answers of a few lines up to a few paragraphs
+     */
+    private static List<ChatMessage> conversation(int count) {
+        String[] words = {"pump", "valve", "pressure", "the", "sensor", "is", "calibrated", "every", "month",
+                "and", "torque", "values", "are", "listed", "in", "section", "maintenance", "schedule"};
+        Random random = new Random(21);
+        List<ChatMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            boolean user = i % 2 == 0;
+            int wordCount = user ? 6 + random.nextInt(10) : 20 + random.nextInt(240);
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < wordCount; w++) {
+                text.append(words[random.nextInt(words.length)]).append(w % 15 == 14 ? ". " : " ");
+            }
+            messages.add(new ChatMessage(text.toString().trim(), user));
+        }
+        return messages;
+    }
+}
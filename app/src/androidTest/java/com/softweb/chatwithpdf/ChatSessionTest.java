@@ -0,0 +1,136 @@
+package com.softweb.chatwithpdf;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.pdmodel.PDPageContentStream;
+import com.tom_roush.pdfbox.pdmodel.font.PDType1Font;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a session survives its activity: a listener attached after a
+ * simulated rotation sees the work already in progress, and nothing is extracted twice.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChatSessionTest {
+
+    private static final int PAGE_COUNT = 60;
+
+    @Test
+    public void reattachAfterRotation_reusesExtractionInProgress() throws Exception {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = instrumentation.getTargetContext();
+        Uri fixture = Uri.fromFile(createFixture(context));
+        ChatSession session = new ChatSession(context);
+
+        RecordingListener before = new RecordingListener();
+        instrumentation.runOnMainSync(() -> {
+            session.attach(before);
+            session.openDocument(fixture);
+        });
+        assertTrue(before.messages.await(60, TimeUnit.SECONDS));
+        // The document's saved conversation may hold messages from earlier runs
+        int[] announced = new int[1];
+        instrumentation.runOnMainSync(() -> announced[0] = session.getHistory().size());
+
+        // The old activity is destroyed, the new one attaches and restores its document
+        RecordingListener after = new RecordingListener();
+        instrumentation.runOnMainSync(() -> {
+            session.detach(before);
+            session.attach(after);
+            session.openDocument(fixture);
+            if (!session.isBusy()) {
+                after.idle.countDown();
+            }
+        });
+        int eventsBeforeDetach = before.events.get();
+        assertTrue(after.idle.await(60, TimeUnit.SECONDS));
+
+        instrumentation.runOnMainSync(() -> {
+            assertEquals(1, session.getExtractionCount());
+            assertTrue(session.isDocumentReady());
+            // The document was not announced again
+            assertEquals(announced[0], session.getHistory().size());
+            session.close();
+        });
+        assertEquals(eventsBeforeDetach, before.events.get());
+    }
+
+    private static class RecordingListener implements ChatSession.Listener {
+        final CountDownLatch messages = new CountDownLatch(1);
+        final CountDownLatch idle = new CountDownLatch(1);
+        final AtomicInteger events = new AtomicInteger();
+
+        @Override
+        public void onMessageAdded(int position) {
+            events.incrementAndGet();
+            messages.countDown();
+        }
+
+        @Override
+        public void onMessageChanged(int position) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public void onHistoryChanged() {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public void onLibraryLoaded() {
+        }
+
+        @Override
+        public void onBusyChanged(boolean busy) {
+            events.incrementAndGet();
+            if (!busy) {
+                idle.countDown();
+            }
+        }
+
+        @Override
+        public void onError(String message) {
+            fail(message);
+        }
+    }
+
+    private static File createFixture(Context context) throws IOException {
+        File file = new File(context.getCacheDir(), "session-" + PAGE_COUNT + ".pdf");
+        if (file.exists()) {
+            return file;
+        }
+
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 1; p <= PAGE_COUNT; p++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.newLineAtOffset(50, 750);
+                    content.showText("Page " + p + " of the session fixture, about rotating devices.");
+                    content.endText();
+                }
+            }
+            document.save(file);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,129 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.tom_roush.pdfbox.io.MemoryUsageSetting;
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.pdmodel.PDPageContentStream;
+import com.tom_roush.pdfbox.pdmodel.font.PDType1Font;
+import com.tom_roush.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import com.tom_roush.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures peak Java heap while extracting a large, image-heavy PDF.
+ * The fixture size defaults to 50 MB and can be raised with
+ * {@code -e fixtureMb 200}; the peak is sampled every few milliseconds and
+ * must stay under a fixed bound regardless of the file size.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HeapUsageHarness {
+
+    private static final String TAG = "HeapUsageHarness";
+    private static final long MB = 1024 * 1024;
+    private static final long HEAP_BOUND_BYTES = 48 * MB;
+    private static final int SAMPLE_INTERVAL_MS = 5;
+
+    @Test
+    public void extractLargePdf_heapStaysBounded() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        int fixtureMb = Integer.parseInt(arguments.getString("fixtureMb", "50"));
+
+        File fixture = createImageHeavyFixture(context, fixtureMb);
+        Log.i(TAG, "Fixture " + fixture.length() / MB + " MB");
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long baseline = runtime.totalMemory() - runtime.freeMemory();
+
+        long[] peak = {baseline};
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+
+        int pages = new ParallelPdfExtractor(1, Long.MAX_VALUE)
+                .extractPages(context, Uri.fromFile(fixture), (page, count, text) -> { });
+
+        sampler.interrupt();
+        sampler.join();
+
+        long growth = peak[0] - baseline;
+        Log.i(TAG, pages + " pages, peak heap growth " + growth / MB + " MB"
+                + " (max heap " + runtime.maxMemory() / MB + " MB)");
+        assertTrue(pages > 0);
+        assertTrue("Peak heap growth " + growth / MB + " MB", growth < HEAP_BOUND_BYTES);
+    }
+
+    /**
+     * One ~1 MB JPEG per page plus a line of text, each stored as its own image stream
+     */
+    private static File createImageHeavyFixture(Context context, int targetMb) throws IOException {
+        File file = new File(context.getCacheDir(), "heap-" + targetMb + "mb.pdf");
+        if (file.exists()) {
+            return file;
+        }
+
+        byte[] jpeg = noiseJpeg();
+        int pageCount = (int) Math.max(1, targetMb * MB / jpeg.length);
+
+        // Build the fixture through a scratch file so generating it does not skew the heap either
+        try (PDDocument document = new PDDocument(MemoryUsageSetting.setupTempFileOnly()
+                .setTempDir(context.getCacheDir()))) {
+            for (int p = 1; p <= pageCount; p++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                PDImageXObject image = JPEGFactory.createFromByteArray(document, jpeg);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.drawImage(image, 50, 200, 500, 500);
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(50, 750);
+                    content.showText("Image page " + p + " of the heap usage fixture.");
+                    content.endText();
+                }
+            }
+            document.save(file);
+        }
+        return file;
+    }
+
+    private static byte[] noiseJpeg() {
+        int size = 1200;
+        int[] pixels = new int[size * size];
+        Random random = new Random(7);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | random.nextInt(0xFFFFFF);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,95 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.pdmodel.PDPageContentStream;
+import com.tom_roush.pdfbox.pdmodel.font.PDType1Font;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares extraction time with 1/2/4/8 workers on generated 100 and 500 page PDFs.
+ * Results are written to logcat under the ParallelExtractionBenchmark tag; worker
+ * counts above the number of cores are clamped by the extractor.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParallelExtractionBenchmark {
+
+    private static final String TAG = "ParallelExtractionBenchmark";
+    private static final int[] WORKER_COUNTS = {1, 2, 4, 8};
+    private static final int LINES_PER_PAGE = 40;
+
+    @Test
+    public void extract100Pages() throws IOException {
+        benchmark(100);
+    }
+
+    @Test
+    public void extract500Pages() throws IOException {
+        benchmark(500);
+    }
+
+    private void benchmark(int pageCount) throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PdfTextExtractor.initialize(context);
+        Uri fixture = Uri.fromFile(createFixture(context, pageCount));
+
+        // Warm up class loading and font caches before timing
+        new ParallelPdfExtractor(1, Long.MAX_VALUE).extractPages(context, fixture, (page, count, text) -> { });
+
+        for (int workers : WORKER_COUNTS) {
+            int[] lastPage = {0};
+            long start = System.nanoTime();
+            int pagesDone = new ParallelPdfExtractor(workers, Long.MAX_VALUE).extractPages(context, fixture,
+                    (page, count, text) -> {
+                        assertEquals(lastPage[0] + 1, page);
+                        lastPage[0] = page;
+                    });
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+            assertEquals(pageCount, pagesDone);
+            Log.i(TAG, pageCount + " pages, " + workers + " workers requested: " + elapsedMs + " ms");
+        }
+    }
+
+    private static File createFixture(Context context, int pageCount) throws IOException {
+        File file = new File(context.getCacheDir(), "benchmark-" + pageCount + ".pdf");
+        if (file.exists()) {
+            return file;
+        }
+
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 1; p <= pageCount; p++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.setLeading(14);
+                    content.newLineAtOffset(50, 750);
+                    for (int line = 0; line < LINES_PER_PAGE; line++) {
+                        content.showText("Page " + p + " line " + line
+                                + ": the quick brown fox jumps over the lazy dog near the river bank.");
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+            document.save(file);
+        }
+        return file;
+    }
+}
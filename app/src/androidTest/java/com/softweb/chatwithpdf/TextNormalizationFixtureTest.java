@@ -0,0 +1,123 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.pdmodel.PDPageContentStream;
+import com.tom_roush.pdfbox.pdmodel.font.PDType1Font;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs real PDFBox output of generated report and paper style PDFs through the
+ * normalizer and logs the compression ratio under the TextNormalizationFixtureTest tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TextNormalizationFixtureTest {
+
+    private static final String TAG = "TextNormalizationFixtureTest";
+    private static final int PAGE_COUNT = 30;
+    private static final String HEADER = "Field Service Manual - Revision C";
+    private static final String[] SUBJECTS = {
+            "The pump", "Each valve", "The controller", "A spare filter", "The drain line", "Every gauge",
+    };
+    private static final String[] ACTIONS = {
+            "is inspected before the", "must be replaced after the", "is recalibrated during the",
+            "should be cleaned ahead of the", "is logged together with the",
+    };
+
+    @Test
+    public void reportFixture_dropsRunningHeadersAndShrinks() throws IOException {
+        List<String> pages = new ArrayList<>();
+        TextNormalizer normalizer = extract("normalize-report.pdf", false, pages);
+
+        assertEquals(PAGE_COUNT, pages.size());
+        for (String page : pages) {
+            assertFalse(page, page.contains("Revision C"));
+            assertFalse(page, page.contains("Page "));
+            assertTrue(page, page.contains("maintenance"));
+        }
+        assertTrue(normalizer.getCompressionRatio() > 1.1);
+    }
+
+    @Test
+    public void paperFixture_joinsHyphenatedWords() throws IOException {
+        List<String> pages = new ArrayList<>();
+        TextNormalizer normalizer = extract("normalize-paper.pdf", true, pages);
+
+        for (String page : pages) {
+            assertTrue(page, page.contains("maintenance"));
+            assertFalse(page, page.contains("mainte-"));
+        }
+        assertTrue(normalizer.getOutputTokens() < normalizer.getInputTokens());
+    }
+
+    private static TextNormalizer extract(String name, boolean hyphenate, List<String> pages) throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PdfTextExtractor.initialize(context);
+        Uri fixture = Uri.fromFile(createFixture(context, name, hyphenate));
+
+        TextNormalizer normalizer = new TextNormalizer((pageNumber, pageCount, text) -> pages.add(text.toString()));
+        new ParallelPdfExtractor().extractPages(context, fixture, normalizer);
+
+        Log.i(TAG, String.format(Locale.US, "%s: %d -> %d chars (%.2fx), %d -> %d tokens", name,
+                normalizer.getInputChars(), normalizer.getOutputChars(), normalizer.getCompressionRatio(),
+                normalizer.getInputTokens(), normalizer.getOutputTokens()));
+        return normalizer;
+    }
+
+    private static File createFixture(Context context, String name, boolean hyphenate) throws IOException {
+        File file = new File(context.getCacheDir(), name);
+        if (file.exists()) {
+            return file;
+        }
+
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 1; p <= PAGE_COUNT; p++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.setLeading(14);
+                    content.newLineAtOffset(50, 750);
+                    content.showText(HEADER);
+                    content.newLine();
+                    content.newLine();
+                    for (int line = 0; line < 30; line++) {
+                        String subject = SUBJECTS[(p + line) % SUBJECTS.length];
+                        String action = ACTIONS[(p * 7 + line) % ACTIONS.length];
+                        if (hyphenate && line % 5 == 2) {
+                            content.showText(subject + " " + action + " scheduled mainte-");
+                            content.newLine();
+                            content.showText("nance of unit " + p + "-" + line + ".");
+                        } else {
+                            content.showText(subject + "   " + action + "  maintenance of unit " + p + "-" + line + ".");
+                        }
+                        content.newLine();
+                    }
+                    content.newLine();
+                    content.showText("Page " + p + " of " + PAGE_COUNT);
+                    content.endText();
+                }
+            }
+            document.save(file);
+        }
+        return file;
+    }
+}
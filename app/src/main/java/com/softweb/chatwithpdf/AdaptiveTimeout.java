@@ -0,0 +1,55 @@
+package com.softweb.chatwithpdf;
+
+/**
+ * Timeout derived from observed durations, the way TCP derives its retransmission
+ * timeout: smoothed mean plus four mean deviations, clamped to a range. Starts at
+ * the maximum until samples arrive and doubles back towards it after a timeout.
+ */
+class AdaptiveTimeout {
+
+    private static final double GAIN = 1 / 8.0;
+    private static final double DEVIATION_GAIN = 1 / 4.0;
+    private static final int DEVIATIONS = 4;
+
+    private final int minMs;
+    private final int maxMs;
+
+    private double smoothedMs = -1;
+    private double deviationMs;
+    private int timeoutMs;
+
+    AdaptiveTimeout(int minMs, int maxMs) {
+        this.minMs = minMs;
+        this.maxMs = maxMs;
+        this.timeoutMs = maxMs;
+    }
+
+    synchronized int getMillis() {
+        return timeoutMs;
+    }
+
+    /**
+     * Record how long an operation that did not time out took
+     */
+    synchronized void onSample(long elapsedMs) {
+        if (smoothedMs < 0) {
+            smoothedMs = elapsedMs;
+            deviationMs = elapsedMs / 2.0;
+        } else {
+            deviationMs += DEVIATION_GAIN * (Math.abs(smoothedMs - elapsedMs) - deviationMs);
+            smoothedMs += GAIN * (elapsedMs - smoothedMs);
+        }
+        timeoutMs = clamp(smoothedMs + DEVIATIONS * deviationMs);
+    }
+
+    /**
+     * Back off after the current timeout expired
+     */
+    synchronized void onTimeout() {
+        timeoutMs = clamp(timeoutMs * 2.0);
+    }
+
+    private int clamp(double ms) {
+        return (int) Math.max(minMs, Math.min(maxMs, Math.ceil(ms)));
+    }
+}
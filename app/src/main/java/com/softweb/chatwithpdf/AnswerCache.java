@@ -0,0 +1,230 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers to questions already asked, so a repeated question costs no round trip.
+ * Keyed by document content hash, retrieved context and normalized question text:
+ * the same question about different context is a different question. Recent answers
+ * are held in a small in-memory LRU in front of a size-bounded directory of files,
+ * which keeps them across activity recreation and process death.
+ */
+public class AnswerCache {
+
+    private static final String TAG = "AnswerCache";
+
+    private static final int DEFAULT_MEMORY_ENTRIES = 64;
+    private static final long DEFAULT_MAX_DISK_BYTES = 2 * 1024 * 1024;
+    private static final String ENTRY_SUFFIX = ".answer";
+
+    private static AnswerCache instance;
+
+    private final File directory;
+    private final long maxDiskBytes;
+    private final Map<String, String> memory;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Shared cache under the app cache dir
+     */
+    public static synchronized AnswerCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new AnswerCache(new File(context.getCacheDir(), "answers"),
+                    DEFAULT_MEMORY_ENTRIES, DEFAULT_MAX_DISK_BYTES);
+        }
+        return instance;
+    }
+
+    public AnswerCache(File directory, int memoryEntries, long maxDiskBytes) {
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.memory = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+        directory.mkdirs();
+    }
+
+    /**
+     * Cache key for a question
+     * @param documentKey Content hash of the document, or null for inline context
+     * @param context Identifies the retrieved context: chunk ids, or the context text itself
+     */
+    public static String key(String documentKey, String context, String question) {
+        return ExtractionCache.sha256Hex((documentKey != null ? documentKey : "") + '\n'
+                + ExtractionCache.sha256Hex(context) + '\n'
+                + normalizeQuestion(question));
+    }
+
+    /**
+     * Case, Unicode form, spacing and trailing punctuation do not change a question
+     */
+    static String normalizeQuestion(String question) {
+        String normalized = Normalizer.normalize(question, Normalizer.Form.NFKC)
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("\\s+", " ")
+                .trim();
+        int end = normalized.length();
+        while (end > 0 && "?!.".indexOf(normalized.charAt(end - 1)) != -1) {
+            end--;
+        }
+        return normalized.substring(0, end).trim();
+    }
+
+    /**
+     * @return The cached answer, or null on a miss
+     */
+    public String get(String key) {
+        return lookUp(key, true);
+    }
+
+    /**
+     * Like {@link #get} but left out of the hit and miss counts, for looking ahead at
+     * a question that may never be asked
+     */
+    public String peek(String key) {
+        return lookUp(key, false);
+    }
+
+    private String lookUp(String key, boolean counted) {
+        synchronized (memory) {
+            String answer = memory.get(key);
+            if (answer != null) {
+                if (counted) {
+                    memoryHits.incrementAndGet();
+                }
+                return answer;
+            }
+        }
+
+        String answer = readEntry(key);
+        if (answer == null) {
+            if (counted) {
+                misses.incrementAndGet();
+            }
+            return null;
+        }
+        if (counted) {
+            diskHits.incrementAndGet();
+        }
+        synchronized (memory) {
+            memory.put(key, answer);
+        }
+        return answer;
+    }
+
+    /**
+     * Remember a complete answer
+     */
+    public void put(String key, String answer) {
+        synchronized (memory) {
+            memory.put(key, answer);
+        }
+        writeEntry(key, answer);
+    }
+
+    public long getHitCount() {
+        return memoryHits.get() + diskHits.get();
+    }
+
+    public long getMemoryHitCount() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private synchronized String readEntry(String key) {
+        File entry = new File(directory, key + ENTRY_SUFFIX);
+        if (!entry.isFile()) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) entry.length()];
+        try (InputStream in = new FileInputStream(entry)) {
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable answer: " + e.getMessage());
+            entry.delete();
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private synchronized void writeEntry(String key, String answer) {
+        File entry = new File(directory, key + ENTRY_SUFFIX);
+        File temp = new File(directory, key + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(answer.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache answer: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(entry)) {
+            temp.delete();
+            return;
+        }
+        evict(entry);
+    }
+
+    /**
+     * Delete least recently used answers until the directory fits, never the one just written
+     */
+    private void evict(File keep) {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File entry : entries) {
+            totalBytes += entry.length();
+        }
+        if (totalBytes <= maxDiskBytes) {
+            return;
+        }
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (totalBytes <= maxDiskBytes) {
+                break;
+            }
+            if (entry.equals(keep)) {
+                continue;
+            }
+            totalBytes -= entry.length();
+            entry.delete();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.softweb.chatwithpdf;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancellation flag for a request, with a hook to abort whatever it is blocked on
+ * (usually an open connection). Plain Java so the network code stays testable.
+ */
+public class CancellationToken {
+
+    /**
+     * Token for work that is never cancelled
+     */
+    public static final CancellationToken NONE = new CancellationToken();
+
+    private boolean cancelled;
+    private Runnable onCancel;
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Cancel, running the current abort action if one is set
+     */
+    public void cancel() {
+        Runnable action;
+        synchronized (this) {
+            if (cancelled || this == NONE) {
+                return;
+            }
+            cancelled = true;
+            action = onCancel;
+            onCancel = null;
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Replace the action that aborts the current blocking step, or clear it with null.
+     * Runs the action right away if the token is already cancelled.
+     */
+    public void setOnCancel(Runnable action) {
+        synchronized (this) {
+            if (this == NONE) {
+                return;
+            }
+            if (!cancelled) {
+                onCancel = action;
+                return;
+            }
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+}
@@ -1,21 +1,77 @@
 package com.softweb.chatwithpdf;
 
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.widget.AppCompatTextView;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Chat rows read from a {@link ChatHistory} as they are bound, so only the rows around
+ * the visible ones are in memory however long the conversation is. The session reports
+ * the one row a new message or a streaming answer touches. Message text is measured and
+ * broken into lines off the main thread with {@link PrecomputedTextCompat}; the layout is
+ * kept per row until its text changes, so scrolling back binds without laying text out again.
+ */
 public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder> {
 
-    private List<ChatMessage> chatMessages;
+    // Layouts kept, several screens of rows either side of the visible ones
+    private static final int LAYOUT_CACHE_SIZE = 200;
 
-    public ChatAdapter(List<ChatMessage> chatMessages) {
-        this.chatMessages = chatMessages;
+    // One thread is enough, a row's layout is only needed by the time it is measured
+    private static final ExecutorService layoutExecutor = Executors.newSingleThreadExecutor();
+
+    // Times each layout on the layout thread
+    private static final Executor timedLayoutExecutor = command -> layoutExecutor.execute(() -> {
+        long span = Metrics.begin(Metrics.Stage.TEXT_LAYOUT);
+        try {
+            command.run();
+        } finally {
+            Metrics.end(Metrics.Stage.TEXT_LAYOUT, span);
+        }
+    });
+
+    private ChatHistory history;
+    // Bumped for each history shown, so a position in one conversation never shares an id with another's
+    private int generation;
+
+    // Text layout per position, with the text it was computed for
+    private final LruCache<Integer, TextLayout> layouts = new LruCache<>(LAYOUT_CACHE_SIZE);
+
+    private static class TextLayout {
+        final String text;
+        final Future<PrecomputedTextCompat> future;
+
+        TextLayout(String text, Future<PrecomputedTextCompat> future) {
+            this.text = text;
+            this.future = future;
+        }
+    }
+
+    public ChatAdapter(ChatHistory history) {
+        this.history = history;
+        // Messages are only ever appended, so within one history a position always holds the same message
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show another conversation
+     */
+    public void setHistory(ChatHistory history) {
+        this.history = history;
+        generation++;
+        layouts.evictAll();
+        notifyDataSetChanged();
     }
 
     @NonNull
@@ -27,32 +83,53 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder
 
     @Override
     public void onBindViewHolder(@NonNull ChatViewHolder holder, int position) {
-        ChatMessage chatMessage = chatMessages.get(position);
-        holder.bind(chatMessage);
+        long span = Metrics.begin(Metrics.Stage.RENDER);
+        try {
+            ChatMessage chatMessage = history.get(position);
+            holder.messageTextView.setTextFuture(layoutFor(position, chatMessage, holder.messageTextView));
+        } finally {
+            Metrics.end(Metrics.Stage.RENDER, span);
+        }
     }
 
     @Override
     public int getItemViewType(int position) {
-        ChatMessage chatMessage = chatMessages.get(position);
-        return chatMessage.isUserMessage() ? R.layout.item_user_message : R.layout.item_bot_message;
+        return history.get(position).isUserMessage() ? R.layout.item_user_message : R.layout.item_bot_message;
     }
 
     @Override
     public int getItemCount() {
-        return chatMessages.size();
+        return history.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return (long) generation << 32 | position;
+    }
+
+    /**
+     * The message's text layout, started on the layout thread unless it is already cached.
+     * The text view waits for it only if it is measured before the layout is done.
+     */
+    private Future<PrecomputedTextCompat> layoutFor(int position, ChatMessage chatMessage, AppCompatTextView textView) {
+        TextLayout layout = layouts.get(position);
+        if (layout == null || !layout.text.equals(chatMessage.getMessage())) {
+            // Both row layouts style their text the same way for every message
+            PrecomputedTextCompat.Params params = TextViewCompat.getTextMetricsParams(textView);
+            layout = new TextLayout(chatMessage.getMessage(),
+                    PrecomputedTextCompat.getTextFuture(chatMessage.getMessage(), params, timedLayoutExecutor));
+            layouts.put(position, layout);
+        }
+        return layout.future;
     }
 
     static class ChatViewHolder extends RecyclerView.ViewHolder {
 
-        private TextView messageTextView;
+        private final AppCompatTextView messageTextView;
 
         public ChatViewHolder(@NonNull View itemView) {
             super(itemView);
             messageTextView = itemView.findViewById(R.id.messageTextView);
         }
-
-        public void bind(ChatMessage chatMessage) {
-            messageTextView.setText(chatMessage.getMessage());
-        }
     }
 }
@@ -5,16 +5,15 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Handles AI inference via PHP backend
@@ -25,22 +24,112 @@ public class ChatApiClient {
     private static final String TAG = "ChatApiClient";
     
     // Railway deployment URL
-    private static final String API_ENDPOINT = "https://brave-hope-production-0204.up.railway.app/chat";
+    private static final String API_BASE_URL = "https://brave-hope-production-0204.up.railway.app";
+    
+    // Questions answered at the same time; more would mostly queue on the backend anyway
+    private static final int MAX_PARALLEL_REQUESTS = 3;
+    
+    // Library hits considered for one question, before packing to the budget
+    private static final int LIBRARY_CANDIDATES = 64;
+    
+    // Questions being typed are prepared one at a time, the latest replacing the one before
+    private static final ExecutorService speculationExecutor = Executors.newSingleThreadExecutor();
     
     private Context context;
-    private ExecutorService executor;
+    private RequestScheduler scheduler;
     private Handler mainHandler;
+    private ChatBackend backend;
+    private AnswerCache answerCache;
+    private ContextPacker packer;
+    // Preparation of the question being typed, main thread only
+    private Speculation speculation;
     
     public interface ChatCallback {
         void onResult(String response);
         void onError(String error);
         void onProgress(String status);
+        void onPartialResult(String partialResponse);
+    }
+    
+    /**
+     * Everything decided about a question before it is sent
+     */
+    private static class Retrieval {
+        // Chunks the index held when the question was packed
+        final int chunkCount;
+        final int[] chunkIds;
+        final String context;
+        final ConversationMemory.Snapshot sentHistory;
+        final String cacheKey;
+        // Serialized ahead of time, null when it is sent the usual way
+        ChatBackend.PreparedQuestion request;
+        
+        Retrieval(int chunkCount, int[] chunkIds, String context, ConversationMemory.Snapshot sentHistory,
+                  String cacheKey) {
+            this.chunkCount = chunkCount;
+            this.chunkIds = chunkIds;
+            this.context = context;
+            this.sentHistory = sentHistory;
+            this.cacheKey = cacheKey;
+        }
+    }
+    
+    /**
+     * A question prepared while it is typed: the connection warmed, its chunks retrieved
+     * and its request serialized
+     */
+    private static class Speculation {
+        final String requestKey;
+        final CancellationToken cancellation = new CancellationToken();
+        Future<Retrieval> future;
+        
+        Speculation(String requestKey) {
+            this.requestKey = requestKey;
+        }
+        
+        /**
+         * The prepared question once the preparation finishes, or null if it failed or
+         * was cancelled. Cancelling the question cancels the preparation.
+         */
+        Retrieval await(CancellationToken questionCancellation) {
+            questionCancellation.setOnCancel(cancellation::cancel);
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | CancellationException e) {
+                return null;
+            } finally {
+                questionCancellation.setOnCancel(null);
+            }
+        }
+        
+        void cancel() {
+            cancellation.cancel();
+            future.cancel(true);
+        }
     }
     
     public ChatApiClient(Context context) {
         this.context = context.getApplicationContext();
-        this.executor = Executors.newSingleThreadExecutor();
+        this.scheduler = new RequestScheduler(MAX_PARALLEL_REQUESTS);
         this.mainHandler = new Handler(Looper.getMainLooper());
+        this.backend = new ChatBackend(API_BASE_URL, new PooledHttpTransport());
+        this.answerCache = AnswerCache.getInstance(context);
+        this.packer = new ContextPacker(loadBudget(context));
+    }
+    
+    /**
+     * The model budget bundled from the backend config, so both sides pack to the same size
+     */
+    private static ModelBudget loadBudget(Context context) {
+        try (InputStream in = context.getAssets().open(ModelBudget.FILE_NAME)) {
+            return ModelBudget.read(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Using default model budget: " + e.getMessage());
+            return ModelBudget.DEFAULT;
+        }
     }
     
     /**
@@ -51,88 +140,335 @@ public class ChatApiClient {
     }
     
     /**
-     * Send question to PHP backend
+     * Memory for a new conversation, sized to the history share of the model budget
      */
-    public void askQuestion(String pdfContext, String question, ChatCallback callback) {
-        executor.execute(() -> {
-            try {
-                mainHandler.post(() -> callback.onProgress("Sending to server..."));
-                
-                // Limit context to avoid large requests
-                String limitedContext = pdfContext.length() > 8000 
-                    ? pdfContext.substring(0, 8000) + "..." 
-                    : pdfContext;
-                
-                String response = callBackendApi(limitedContext, question);
-                
-                mainHandler.post(() -> callback.onResult(response));
-                
-            } catch (Exception e) {
-                Log.e(TAG, "Error calling backend: " + e.getMessage(), e);
-                mainHandler.post(() -> callback.onError("Error: " + e.getMessage()));
+    public ConversationMemory newConversationMemory() {
+        return new ConversationMemory(packer.getHistoryTokens());
+    }
+    
+    /**
+     * Send question to PHP backend with the document chunks most relevant to it
+     * @return Handle the UI can cancel the question with
+     */
+    public RequestScheduler.Handle askQuestion(DocumentIndex documentIndex, String question, ChatCallback callback) {
+        return askQuestion(documentIndex, question, ConversationMemory.Snapshot.EMPTY, callback);
+    }
+    
+    /**
+     * Send a follow-up question along with the conversation before it
+     */
+    public RequestScheduler.Handle askQuestion(DocumentIndex documentIndex, String question,
+                                               ConversationMemory.Snapshot history, ChatCallback callback) {
+        return askQuestion(documentIndex, question, history, RequestScheduler.Priority.INTERACTIVE, callback);
+    }
+    
+    /**
+     * Send a question at the given priority. Asking the same question of the same
+     * document in the same conversation while it is still being answered joins the
+     * request in flight.
+     */
+    public RequestScheduler.Handle askQuestion(DocumentIndex documentIndex, String question,
+                                               ConversationMemory.Snapshot history,
+                                               RequestScheduler.Priority priority, ChatCallback callback) {
+        String requestKey = requestKey(documentIndex, question, history);
+        Speculation prepared = takeSpeculation(requestKey);
+        long askedNanos = System.nanoTime();
+        
+        return scheduler.submit(requestKey, priority,
+                (cancellation, progress) -> {
+                    Retrieval retrieval = prepared != null ? prepared.await(cancellation) : null;
+                    if (retrieval != null && retrieval.chunkCount != documentIndex.getChunkCount()) {
+                        // More of the document was indexed since, the best chunks may have changed
+                        retrieval = null;
+                    }
+                    if (retrieval == null) {
+                        retrieval = retrieve(documentIndex, question, history);
+                    }
+                    return answer(documentIndex, question, retrieval, askedNanos, callback, cancellation, progress);
+                },
+                onMainThread(callback));
+    }
+    
+    /**
+     * Start preparing a question about the document while it is still being typed,
+     * replacing the preparation of an earlier draft. Asking the same question in the
+     * same conversation then only sends the prepared request. Call on the main thread.
+     */
+    public void prepareQuestion(DocumentIndex documentIndex, String question, ConversationMemory.Snapshot history) {
+        String requestKey = requestKey(documentIndex, question, history);
+        if (speculation != null && speculation.requestKey.equals(requestKey)) {
+            return;
+        }
+        cancelPreparedQuestion();
+        Speculation next = new Speculation(requestKey);
+        next.future = speculationExecutor.submit(() -> {
+            warmUp(next.cancellation);
+            next.cancellation.throwIfCancelled();
+            Retrieval retrieval = retrieve(documentIndex, question, history);
+            next.cancellation.throwIfCancelled();
+            if (answerCache.peek(retrieval.cacheKey) == null) {
+                retrieval.request = retrieval.context == null
+                        ? backend.prepare(documentIndex, retrieval.chunkIds, question, retrieval.sentHistory,
+                                next.cancellation)
+                        : backend.prepare(retrieval.context, question, retrieval.sentHistory);
             }
+            return retrieval;
         });
+        speculation = next;
     }
     
-    private String callBackendApi(String context, String question) throws Exception {
-        URL url = new URL(API_ENDPOINT);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setDoOutput(true);
-        conn.setConnectTimeout(60000);
-        conn.setReadTimeout(120000);
-        
-        Log.d(TAG, "Sending request to: " + API_ENDPOINT);
-        
-        // Build request body
-        JSONObject requestBody = new JSONObject();
-        requestBody.put("context", context);
-        requestBody.put("question", question);
-        
-        // Send request
-        try (OutputStream os = conn.getOutputStream()) {
-            byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
+    /**
+     * Open a connection to the backend ahead of a question that cannot be prepared,
+     * e.g. about the library or a document read lazily. Call on the main thread.
+     */
+    public void prepareConnection() {
+        if (speculation != null && speculation.requestKey.isEmpty()) {
+            return;
         }
+        cancelPreparedQuestion();
+        Speculation next = new Speculation("");
+        next.future = speculationExecutor.submit(() -> {
+            warmUp(next.cancellation);
+            return null;
+        });
+        speculation = next;
+    }
+    
+    /**
+     * Open a connection unless one is open; failing here only means the question opens its own
+     */
+    private void warmUp(CancellationToken cancellation) {
+        try {
+            backend.warmUp(cancellation);
+        } catch (IOException e) {
+            Log.d(TAG, "Could not warm up a connection: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Drop the preparation of the question being typed, e.g. when it was erased
+     */
+    public void cancelPreparedQuestion() {
+        if (speculation != null) {
+            speculation.cancel();
+            speculation = null;
+        }
+    }
+    
+    /**
+     * The preparation of this very question, handed over to it, or null
+     */
+    private Speculation takeSpeculation(String requestKey) {
+        Speculation taken = speculation != null && speculation.requestKey.equals(requestKey) ? speculation : null;
+        if (taken != null) {
+            speculation = null;
+        }
+        return taken;
+    }
+    
+    /**
+     * Identifies a question about a document in a conversation, for joining requests in flight
+     */
+    private static String requestKey(DocumentIndex documentIndex, String question, ConversationMemory.Snapshot history) {
+        String documentKey = documentIndex.getContentKey() != null
+                ? documentIndex.getContentKey()
+                : "index@" + System.identityHashCode(documentIndex);
+        return documentKey + '\n' + historyKey(history) + AnswerCache.normalizeQuestion(question);
+    }
+    
+    /**
+     * Ask about a document read lazily. The sections the question needs are read
+     * first, on the scheduler thread, then answered from the grown index.
+     */
+    public RequestScheduler.Handle askQuestion(LazyDocument document, String question,
+                                               ConversationMemory.Snapshot history, ChatCallback callback) {
+        DocumentIndex documentIndex = document.getIndex();
+        String requestKey = "index@" + System.identityHashCode(documentIndex) + '\n'
+                + historyKey(history) + AnswerCache.normalizeQuestion(question);
         
-        int responseCode = conn.getResponseCode();
+        long askedNanos = System.nanoTime();
         
-        StringBuilder response = new StringBuilder();
+        return scheduler.submit(requestKey, RequestScheduler.Priority.INTERACTIVE,
+                (cancellation, progress) -> {
+                    mainHandler.post(() -> callback.onProgress("Reading the relevant sections..."));
+                    document.prepare(question);
+                    return answer(documentIndex, question, retrieve(documentIndex, question, history), askedNanos,
+                            callback, cancellation, progress);
+                },
+                onMainThread(callback));
+    }
+    
+    /**
+     * Ask a question of every document in the library, sending the best passages across all of them
+     * @return Handle the UI can cancel the question with
+     */
+    public RequestScheduler.Handle askLibrary(DocumentLibrary library, String question,
+                                              ConversationMemory.Snapshot history, ChatCallback callback) {
+        String requestKey = "library\n" + historyKey(history) + AnswerCache.normalizeQuestion(question);
         
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line);
-                }
+        long askedNanos = System.nanoTime();
+        
+        return scheduler.submit(requestKey, RequestScheduler.Priority.INTERACTIVE,
+                (cancellation, progress) -> answerLibrary(library, question, history, askedNanos,
+                        callback, cancellation, progress),
+                onMainThread(callback));
+    }
+    
+    /**
+     * Identifies the conversation a question follows, empty for a first question
+     */
+    private static String historyKey(ConversationMemory.Snapshot history) {
+        return history.isEmpty() ? "" : ExtractionCache.sha256Hex(String.join("\n", history.getTexts())) + '\n';
+    }
+    
+    /**
+     * Deliver a question's progress to the UI callback on the main thread
+     */
+    private RequestScheduler.Callback<String> onMainThread(ChatCallback callback) {
+        return new RequestScheduler.Callback<String>() {
+            @Override
+            public void onPartial(String partialResponse) {
+                mainHandler.post(() -> callback.onPartialResult(partialResponse));
             }
             
-            JSONObject jsonResponse = new JSONObject(response.toString());
-            
-            if (jsonResponse.optBoolean("success", false)) {
-                return jsonResponse.getString("answer");
-            } else {
-                throw new Exception(jsonResponse.optString("error", "Unknown error"));
+            @Override
+            public void onSuccess(String response) {
+                mainHandler.post(() -> callback.onResult(response));
             }
             
-        } else {
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getErrorStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line);
-                }
+            @Override
+            public void onFailure(Exception e) {
+                Log.e(TAG, "Error calling backend: " + e.getMessage(), e);
+                mainHandler.post(() -> callback.onError("Error: " + e.getMessage()));
+            }
+        };
+    }
+    
+    /**
+     * Scheduler running the questions, for its queue and timing metrics
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+    
+    /**
+     * Pick the chunks and the history turns a question is sent with
+     */
+    private Retrieval retrieve(DocumentIndex documentIndex, String question, ConversationMemory.Snapshot history) {
+        long span = Metrics.begin(Metrics.Stage.RETRIEVAL);
+        try {
+            return selectChunks(documentIndex, question, history);
+        } finally {
+            Metrics.end(Metrics.Stage.RETRIEVAL, span);
+        }
+    }
+    
+    private Retrieval selectChunks(DocumentIndex documentIndex, String question, ConversationMemory.Snapshot history) {
+        int chunkCount = documentIndex.getChunkCount();
+        // Only send the chunks that match the question, as many as the model budget takes
+        ContextPacker.Packing packing = packer.pack(documentIndex, question, history.getTexts());
+        ConversationMemory.Snapshot sentHistory = history.latest(packing.historyTurns);
+        int[] chunkIds = packing.chunkIds;
+        boolean known = documentIndex.getContentKey() != null;
+        String context = known ? null : documentIndex.joinChunks(chunkIds);
+        
+        // The same question about the same retrieved chunks, in the same conversation, has been answered before
+        String cacheKey = AnswerCache.key(documentIndex.getContentKey(),
+                historyKey(sentHistory) + (known ? "v" + DocumentIndex.CHUNKING_VERSION + Arrays.toString(chunkIds) : context),
+                question);
+        Metrics.count(Metrics.Counter.CHUNKS_RETRIEVED, chunkIds.length);
+        return new Retrieval(chunkCount, chunkIds, context, sentHistory, cacheKey);
+    }
+    
+    private String answer(DocumentIndex documentIndex, String question, Retrieval retrieval, long askedNanos,
+                          ChatCallback callback, CancellationToken cancellation,
+                          RequestScheduler.Progress<String> progress) throws Exception {
+        String cacheKey = retrieval.cacheKey;
+        String cached = answerCache.get(cacheKey);
+        if (cached != null) {
+            Metrics.count(Metrics.Counter.ANSWER_CACHE_HITS, 1);
+            Log.d(TAG, "Answer cache hit (" + answerCache.getHitCount() + " hits, "
+                    + answerCache.getMissCount() + " misses)");
+            return cached;
+        }
+        
+        mainHandler.post(() -> callback.onProgress("Sending to server..."));
+        
+        Log.d(TAG, "Sending request to: " + API_BASE_URL);
+        
+        // Stream the answer so the bubble fills in from the first token
+        boolean prepared = retrieval.request != null;
+        boolean[] firstPartial = {true};
+        ChatBackend.StreamListener listener = answerSoFar -> {
+            if (firstPartial[0]) {
+                firstPartial[0] = false;
+                long elapsed = System.nanoTime() - askedNanos;
+                Metrics.record(Metrics.Stage.FIRST_BYTE, elapsed);
+                Log.d(TAG, "First answer bytes " + elapsed / 1_000_000 + " ms after asking, "
+                        + (prepared ? "prepared while typing" : "not prepared"));
             }
-            throw new Exception("Server error (" + responseCode + "): " + response.toString());
+            progress.publish(answerSoFar);
+        };
+        
+        // Known documents are uploaded once and then referenced by chunk id
+        String response = prepared
+                ? backend.ask(retrieval.request, listener, cancellation)
+                : retrieval.context == null
+                ? backend.ask(documentIndex, retrieval.chunkIds, question, retrieval.sentHistory, listener, cancellation)
+                : backend.ask(retrieval.context, question, retrieval.sentHistory, listener, cancellation);
+        
+        answerCache.put(cacheKey, response);
+        return response;
+    }
+    
+    private String answerLibrary(DocumentLibrary library, String question, ConversationMemory.Snapshot history,
+                                 long askedNanos, ChatCallback callback, CancellationToken cancellation,
+                                 RequestScheduler.Progress<String> progress) throws Exception {
+        ConversationMemory.Snapshot sentHistory;
+        String context;
+        long span = Metrics.begin(Metrics.Stage.RETRIEVAL);
+        try {
+            long start = System.nanoTime();
+            List<DocumentLibrary.Hit> hits = library.search(question, LIBRARY_CANDIDATES);
+            Log.d(TAG, "Searched " + library.getDocumentCount() + " documents in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            if (hits.isEmpty()) {
+                throw new IOException("Nothing in the library matches the question");
+            }
+            List<String> historyTexts = history.getTexts();
+            sentHistory = history.latest(packer.historyTurns(question, historyTexts));
+            context = DocumentLibrary.joinHits(packer.pack(hits, question, sentHistory.getTexts()));
+        } finally {
+            Metrics.end(Metrics.Stage.RETRIEVAL, span);
         }
+        
+        String cacheKey = AnswerCache.key(null, historyKey(sentHistory) + context, question);
+        String cached = answerCache.get(cacheKey);
+        if (cached != null) {
+            Metrics.count(Metrics.Counter.ANSWER_CACHE_HITS, 1);
+            return cached;
+        }
+        
+        mainHandler.post(() -> callback.onProgress("Sending to server..."));
+        boolean[] firstPartial = {true};
+        String response = backend.ask(context, question, sentHistory, answerSoFar -> {
+            if (firstPartial[0]) {
+                firstPartial[0] = false;
+                Metrics.record(Metrics.Stage.FIRST_BYTE, System.nanoTime() - askedNanos);
+            }
+            progress.publish(answerSoFar);
+        }, cancellation);
+        answerCache.put(cacheKey, response);
+        return response;
     }
     
     /**
      * Close and release resources
      */
     public void close() {
-        if (executor != null && !executor.isShutdown()) {
-            executor.shutdown();
+        cancelPreparedQuestion();
+        if (scheduler != null) {
+            scheduler.shutdown();
         }
     }
 }
@@ -0,0 +1,614 @@
+package com.softweb.chatwithpdf;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * HTTP protocol for the backend, free of Android dependencies so it can be tested
+ * against a local stand-in server.
+ * Answers are either returned as one JSON object or, when streaming, as
+ * server-sent events: one event per text delta, then "done" or "error".
+ * Documents are registered once by content hash; after that a question only
+ * carries chunk ids, plus the text of chunks the server has not seen yet.
+ * Follow-up questions carry the conversation so far as a summary and recent turns.
+ * Request bodies are serialized straight to the connection and replies are
+ * pull-parsed, so chunk text is never copied into intermediate JSON strings.
+ * A question can also be {@link #prepare prepared} while it is being typed: the
+ * document registered and the body serialized, so asking it only sends the bytes.
+ */
+public class ChatBackend {
+
+    static final String EVENT_DONE = "done";
+    static final String EVENT_ERROR = "error";
+
+    private static final String EVENT_STREAM = "text/event-stream";
+    private static final String DOCUMENT_NOT_FOUND = "document_not_found";
+
+    // Partial answers arriving in a burst are reported at most this often
+    private static final long PARTIAL_INTERVAL_NANOS = 50_000_000L;
+
+    private final String baseUrl;
+    private final HttpTransport transport;
+    // The server keeps each client's uploaded chunks apart from everyone else's
+    private final String clientId = UUID.randomUUID().toString();
+
+    // Server-side state per document content hash
+    private final Map<String, RemoteDocument> remoteDocuments = new HashMap<>();
+
+    /**
+     * Receives the answer while it is being generated, not once per token but as the
+     * tokens arrive in bursts; the last call has the complete answer
+     */
+    public interface StreamListener {
+        /**
+         * @param answerSoFar Full answer text received up to now
+         */
+        void onPartialAnswer(String answerSoFar);
+    }
+
+    /**
+     * What the server holds for one document
+     */
+    private static class RemoteDocument {
+        String documentId;
+        final BitSet uploadedChunks = new BitSet();
+    }
+
+    /**
+     * A streamed question serialized ahead of sending, see {@link #prepare}
+     */
+    public static class PreparedQuestion {
+        final byte[] body;
+        // Set for questions about an indexed document, null for inline context
+        final RemoteDocument remote;
+        final String documentId;
+        final DocumentIndex index;
+        final int[] chunkIds;
+        final String question;
+        final ConversationMemory.Snapshot history;
+
+        PreparedQuestion(byte[] body, RemoteDocument remote, String documentId, DocumentIndex index,
+                         int[] chunkIds, String question, ConversationMemory.Snapshot history) {
+            this.body = body;
+            this.remote = remote;
+            this.documentId = documentId;
+            this.index = index;
+            this.chunkIds = chunkIds;
+            this.question = question;
+            this.history = history;
+        }
+
+        /**
+         * Size of the serialized request
+         */
+        public int getByteCount() {
+            return body.length;
+        }
+    }
+
+    /**
+     * The fields of a JSON reply the app uses; anything else is skipped
+     */
+    private static class Reply {
+        boolean success;
+        String answer;
+        String error;
+        String code;
+        String documentId;
+        int[] chunkIds = new int[0];
+
+        static Reply read(JsonStreamReader json) throws IOException {
+            Reply reply = new Reply();
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (json.peek() == JsonStreamReader.Token.NULL) {
+                    json.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "success":
+                        reply.success = json.nextBoolean();
+                        break;
+                    case "answer":
+                        reply.answer = json.nextString();
+                        break;
+                    case "error":
+                        reply.error = json.nextString();
+                        break;
+                    case "code":
+                        reply.code = json.nextString();
+                        break;
+                    case "document_id":
+                        reply.documentId = json.nextString();
+                        break;
+                    case "chunk_ids":
+                        reply.chunkIds = readInts(json);
+                        break;
+                    default:
+                        json.skipValue();
+                }
+            }
+            json.endObject();
+            return reply;
+        }
+
+        private static int[] readInts(JsonStreamReader json) throws IOException {
+            int[] values = new int[16];
+            int count = 0;
+            json.beginArray();
+            while (json.hasNext()) {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count++] = json.nextInt();
+            }
+            json.endArray();
+            return Arrays.copyOf(values, count);
+        }
+    }
+
+    /**
+     * The server no longer has the document, it has to be registered again
+     */
+    static class DocumentNotFoundException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        DocumentNotFoundException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param baseUrl Backend root, without a trailing slash
+     */
+    public ChatBackend(String baseUrl) {
+        this(baseUrl, new PooledHttpTransport());
+    }
+
+    public ChatBackend(String baseUrl, HttpTransport transport) {
+        this.baseUrl = baseUrl;
+        this.transport = transport;
+    }
+
+    /**
+     * Ask a question about inline context and wait for the complete answer
+     */
+    public String ask(String context, String question) throws Exception {
+        return ask(context, question, null);
+    }
+
+    /**
+     * Ask a question about inline context, streaming partial answers to the listener.
+     * Falls back to a single JSON answer if the server does not stream.
+     * @param listener Receives partial answers, or null to request a non-streamed answer
+     * @return The complete answer
+     */
+    public String ask(String context, String question, StreamListener listener) throws Exception {
+        return ask(context, question, listener, CancellationToken.NONE);
+    }
+
+    /**
+     * Cancellable form of {@link #ask(String, String, StreamListener)}, for any
+     * CharSequence of context
+     */
+    public String ask(CharSequence context, String question, StreamListener listener,
+                      CancellationToken cancellation) throws Exception {
+        return ask(context, question, ConversationMemory.Snapshot.EMPTY, listener, cancellation);
+    }
+
+    /**
+     * Ask a follow-up question about inline context
+     * @param history The conversation before this question
+     */
+    public String ask(CharSequence context, String question, ConversationMemory.Snapshot history,
+                      StreamListener listener, CancellationToken cancellation) throws Exception {
+        return postChat(chatBody(json -> {
+            json.name("context").value(context)
+                    .name("question").value(question);
+            writeHistory(json, history);
+        }, listener != null), listener, cancellation);
+    }
+
+    /**
+     * Ask a question about chunks of an indexed document. The document is registered
+     * on first use and each chunk is uploaded at most once; if the server has evicted
+     * the document it is registered and the missing chunks re-sent transparently.
+     * @param chunkIds Chunks that form the context, in document order
+     */
+    public String ask(DocumentIndex index, int[] chunkIds, String question, StreamListener listener) throws Exception {
+        return ask(index, chunkIds, question, listener, CancellationToken.NONE);
+    }
+
+    /**
+     * Cancellable form of {@link #ask(DocumentIndex, int[], String, StreamListener)}
+     */
+    public String ask(DocumentIndex index, int[] chunkIds, String question, StreamListener listener,
+                      CancellationToken cancellation) throws Exception {
+        return ask(index, chunkIds, question, ConversationMemory.Snapshot.EMPTY, listener, cancellation);
+    }
+
+    /**
+     * Ask a follow-up question about chunks of an indexed document
+     * @param history The conversation before this question
+     */
+    public String ask(DocumentIndex index, int[] chunkIds, String question, ConversationMemory.Snapshot history,
+                      StreamListener listener, CancellationToken cancellation) throws Exception {
+        RemoteDocument remote = remoteDocument(index);
+        try {
+            return askDocument(remote, index, chunkIds, question, history, listener, cancellation);
+        } catch (DocumentNotFoundException e) {
+            return askDocument(remote, index, chunkIds, question, history, listener, cancellation);
+        }
+    }
+
+    /**
+     * Do everything a streamed question about chunks of an indexed document needs
+     * before it is sent: register the document if the server does not know it yet,
+     * and serialize the request, chunk text included.
+     * @see #ask(PreparedQuestion, StreamListener, CancellationToken)
+     */
+    public PreparedQuestion prepare(DocumentIndex index, int[] chunkIds, String question,
+                                    ConversationMemory.Snapshot history, CancellationToken cancellation) throws Exception {
+        RemoteDocument remote = remoteDocument(index);
+        String documentId;
+        int[] newChunkIds;
+        synchronized (remote) {
+            documentId = register(remote, index, cancellation);
+            newChunkIds = chunksToUpload(remote, chunkIds);
+        }
+        byte[] body = serialize(chatFields(documentFields(documentId, index, chunkIds, newChunkIds, question, history), true));
+        return new PreparedQuestion(body, remote, documentId, index, chunkIds, question, history);
+    }
+
+    /**
+     * Serialize a streamed question about inline context ahead of sending it
+     * @see #ask(PreparedQuestion, StreamListener, CancellationToken)
+     */
+    public PreparedQuestion prepare(CharSequence context, String question,
+                                    ConversationMemory.Snapshot history) throws IOException {
+        byte[] body = serialize(chatFields(json -> {
+            json.name("context").value(context)
+                    .name("question").value(question);
+            writeHistory(json, history);
+        }, true));
+        return new PreparedQuestion(body, null, null, null, null, question, history);
+    }
+
+    /**
+     * Send a prepared question as it was serialized. If the server has forgotten the
+     * document since, or it was registered again meanwhile, the question is asked
+     * afresh instead.
+     * @param listener Receives partial answers, prepared questions are always streamed
+     */
+    public String ask(PreparedQuestion prepared, StreamListener listener,
+                      CancellationToken cancellation) throws Exception {
+        HttpTransport.RequestBody body = HttpTransport.bytes(HttpTransport.JSON, prepared.body);
+        if (prepared.remote == null) {
+            return postChat(body, listener, cancellation);
+        }
+        boolean current;
+        synchronized (prepared.remote) {
+            current = prepared.documentId.equals(prepared.remote.documentId);
+        }
+        if (current) {
+            try {
+                return postDocumentChat(prepared.remote, prepared.documentId, prepared.chunkIds, body,
+                        listener, cancellation);
+            } catch (DocumentNotFoundException e) {
+                // Registered again below, with every chunk the question needs
+            }
+        }
+        return ask(prepared.index, prepared.chunkIds, prepared.question, prepared.history, listener, cancellation);
+    }
+
+    /**
+     * Open a connection to the server ahead of a question, unless one is already open
+     */
+    public void warmUp(CancellationToken cancellation) throws IOException {
+        transport.warmUp(baseUrl + "/health", cancellation);
+    }
+
+    private RemoteDocument remoteDocument(DocumentIndex index) {
+        synchronized (remoteDocuments) {
+            RemoteDocument remote = remoteDocuments.get(index.getContentKey());
+            if (remote == null) {
+                remote = new RemoteDocument();
+                remoteDocuments.put(index.getContentKey(), remote);
+            }
+            return remote;
+        }
+    }
+
+    private String askDocument(RemoteDocument remote, DocumentIndex index, int[] chunkIds, String question,
+                               ConversationMemory.Snapshot history, StreamListener listener,
+                               CancellationToken cancellation) throws Exception {
+        String documentId;
+        int[] newChunkIds;
+
+        // Upload state is shared by concurrent questions, the requests themselves are not serialized
+        synchronized (remote) {
+            documentId = register(remote, index, cancellation);
+            newChunkIds = chunksToUpload(remote, chunkIds);
+        }
+
+        HttpTransport.JsonContent fields = documentFields(documentId, index, chunkIds, newChunkIds, question, history);
+        return postDocumentChat(remote, documentId, chunkIds, chatBody(fields, listener != null), listener, cancellation);
+    }
+
+    /**
+     * Post a question about a document, keeping track of the chunks the server holds
+     */
+    private String postDocumentChat(RemoteDocument remote, String documentId, int[] chunkIds,
+                                    HttpTransport.RequestBody body, StreamListener listener,
+                                    CancellationToken cancellation) throws Exception {
+        String answer;
+        try {
+            answer = postChat(body, listener, cancellation);
+        } catch (DocumentNotFoundException e) {
+            synchronized (remote) {
+                if (documentId.equals(remote.documentId)) {
+                    remote.documentId = null;
+                    remote.uploadedChunks.clear();
+                }
+            }
+            throw e;
+        }
+
+        synchronized (remote) {
+            if (documentId.equals(remote.documentId)) {
+                for (int chunkId : chunkIds) {
+                    remote.uploadedChunks.set(chunkId);
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * The server's id for the document, registering it first if it has none. Call with the remote locked.
+     */
+    private String register(RemoteDocument remote, DocumentIndex index, CancellationToken cancellation) throws Exception {
+        if (remote.documentId == null) {
+            registerDocument(remote, index.getContentKey() + "-v" + DocumentIndex.CHUNKING_VERSION, cancellation);
+        }
+        return remote.documentId;
+    }
+
+    /**
+     * The chunks the server does not hold yet. Call with the remote locked.
+     */
+    private static int[] chunksToUpload(RemoteDocument remote, int[] chunkIds) {
+        int[] newChunkIds = new int[chunkIds.length];
+        int newChunkCount = 0;
+        for (int chunkId : chunkIds) {
+            if (!remote.uploadedChunks.get(chunkId)) {
+                newChunkIds[newChunkCount++] = chunkId;
+            }
+        }
+        return Arrays.copyOf(newChunkIds, newChunkCount);
+    }
+
+    private static HttpTransport.JsonContent documentFields(String documentId, DocumentIndex index, int[] chunkIds,
+                                                            int[] newChunkIds, String question,
+                                                            ConversationMemory.Snapshot history) {
+        return json -> {
+            json.name("document_id").value(documentId);
+            json.name("chunk_ids").beginArray();
+            for (int chunkId : chunkIds) {
+                json.value(chunkId);
+            }
+            json.endArray();
+            // Chunk text goes from the index to the connection without a copy
+            json.name("chunks").beginObject();
+            for (int chunkId : newChunkIds) {
+                json.name(Integer.toString(chunkId)).value(index.getChunk(chunkId));
+            }
+            json.endObject();
+            json.name("question").value(question);
+            writeHistory(json, history);
+        };
+    }
+
+    /**
+     * The summary and recent turns, left out entirely when there are none
+     */
+    private static void writeHistory(JsonStreamWriter json, ConversationMemory.Snapshot history) throws IOException {
+        if (!history.summary.isEmpty()) {
+            json.name("summary").value(history.summary);
+        }
+        if (!history.turns.isEmpty()) {
+            json.name("history").beginArray();
+            for (ConversationMemory.Turn turn : history.turns) {
+                json.beginObject()
+                        .name("question").value(turn.question)
+                        .name("answer").value(turn.answer)
+                        .endObject();
+            }
+            json.endArray();
+        }
+    }
+
+    /**
+     * Register a document by content hash and learn which chunks the server already has
+     */
+    private void registerDocument(RemoteDocument remote, String contentHash,
+                                  CancellationToken cancellation) throws Exception {
+        Reply reply;
+        try (HttpTransport.Response response = post("/documents",
+                json -> json.name("hash").value(contentHash).name("client_id").value(clientId),
+                Collections.emptyMap(), cancellation)) {
+            reply = readReply(response);
+        }
+        if (reply.documentId == null) {
+            throw new IOException("Registration reply without a document id");
+        }
+
+        remote.documentId = reply.documentId;
+        remote.uploadedChunks.clear();
+        for (int chunkId : reply.chunkIds) {
+            remote.uploadedChunks.set(chunkId);
+        }
+    }
+
+    /**
+     * The fields of a question with the streaming flag added
+     */
+    private static HttpTransport.JsonContent chatFields(HttpTransport.JsonContent fields, boolean stream) {
+        return json -> {
+            fields.writeTo(json);
+            json.name("stream").value(stream);
+        };
+    }
+
+    private static HttpTransport.RequestBody chatBody(HttpTransport.JsonContent fields, boolean stream) {
+        return HttpTransport.json(object(chatFields(fields, stream)));
+    }
+
+    /**
+     * A JSON object made of the given fields
+     */
+    private static HttpTransport.JsonContent object(HttpTransport.JsonContent fields) {
+        return json -> {
+            json.beginObject();
+            fields.writeTo(json);
+            json.endObject();
+        };
+    }
+
+    /**
+     * A JSON object made of the given fields, as UTF-8 bytes
+     */
+    private static byte[] serialize(HttpTransport.JsonContent fields) throws IOException {
+        long span = Metrics.begin(Metrics.Stage.SERIALIZATION);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            JsonStreamWriter json = new JsonStreamWriter(bytes);
+            object(fields).writeTo(json);
+            json.flush();
+            return bytes.toByteArray();
+        } finally {
+            Metrics.end(Metrics.Stage.SERIALIZATION, span);
+        }
+    }
+
+    private String postChat(HttpTransport.RequestBody body, StreamListener listener,
+                            CancellationToken cancellation) throws Exception {
+        Map<String, String> headers = listener != null
+                ? Collections.singletonMap("Accept", EVENT_STREAM)
+                : Collections.emptyMap();
+        try (HttpTransport.Response response = transport.post(baseUrl + "/chat", body, headers, cancellation)) {
+            String contentType = response.code() == HttpURLConnection.HTTP_OK ? response.header("Content-Type") : null;
+            if (listener != null && contentType != null && contentType.startsWith(EVENT_STREAM)) {
+                return readEventStream(response.body(), listener);
+            }
+            Reply reply = readReply(response);
+            if (reply.answer == null) {
+                throw new IOException("Reply without an answer");
+            }
+            return reply.answer;
+        }
+    }
+
+    /**
+     * POST a JSON object made of the given fields
+     */
+    private HttpTransport.Response post(String path, HttpTransport.JsonContent fields, Map<String, String> headers,
+                                        CancellationToken cancellation) throws IOException {
+        return transport.post(baseUrl + path, HttpTransport.json(object(fields)), headers, cancellation);
+    }
+
+    /**
+     * Parse a JSON reply, turning error responses into exceptions
+     */
+    private static Reply readReply(HttpTransport.Response response) throws Exception {
+        int responseCode = response.code();
+
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            // Error bodies are small and may not even be JSON, keep the text for the message
+            String body = readFully(response.body());
+            Reply error = null;
+            if (body.startsWith("{")) {
+                try {
+                    error = Reply.read(new JsonStreamReader(new StringReader(body)));
+                } catch (IOException | IllegalStateException e) {
+                    // Not the JSON we expected, report the raw body
+                }
+            }
+            if (error != null && DOCUMENT_NOT_FOUND.equals(error.code)) {
+                throw new DocumentNotFoundException(error.error != null ? error.error : "");
+            }
+            throw new Exception("Server error (" + responseCode + "): " + body);
+        }
+
+        Reply reply = Reply.read(new JsonStreamReader(response.body()));
+
+        if (reply.success) {
+            return reply;
+        } else {
+            throw new Exception(reply.error != null ? reply.error : "Unknown error");
+        }
+    }
+
+    /**
+     * Accumulate delta events until the server reports done or error.
+     * The stream is left open, its owner drains it so the connection can be reused.
+     */
+    static String readEventStream(InputStream inputStream, StreamListener listener) throws Exception {
+        StringBuilder answer = new StringBuilder();
+        // Length of the answer last reported, and when; the first delta is reported at once
+        int reportedLength = 0;
+        long reportedNanos = System.nanoTime() - PARTIAL_INTERVAL_NANOS;
+
+        ServerSentEventReader events = new ServerSentEventReader(inputStream);
+        ServerSentEventReader.Event event;
+        while ((event = events.next()) != null) {
+            switch (event.name) {
+                case EVENT_DONE:
+                    String complete = answer.toString();
+                    if (reportedLength < complete.length()) {
+                        listener.onPartialAnswer(complete);
+                    }
+                    return complete;
+                case EVENT_ERROR:
+                    throw new Exception(event.data.isEmpty() ? "Unknown error" : event.data);
+                default:
+                    answer.append(event.data);
+                    // Copying the whole answer for every token would be quadratic, so a burst
+                    // of tokens is reported once it has been read, or every interval while it lasts
+                    long now = System.nanoTime();
+                    if (!events.isReady() || now - reportedNanos >= PARTIAL_INTERVAL_NANOS) {
+                        listener.onPartialAnswer(answer.toString());
+                        reportedLength = answer.length();
+                        reportedNanos = now;
+                    }
+            }
+        }
+        throw new IOException("Stream ended before the answer was complete");
+    }
+
+    /**
+     * Read a response body to the end, leaving it to the response to close
+     */
+    private static String readFully(InputStream inputStream) throws IOException {
+        StringBuilder response = new StringBuilder();
+        BufferedReader br = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        String line;
+        while ((line = br.readLine()) != null) {
+            response.append(line);
+        }
+        return response.toString();
+    }
+}
@@ -0,0 +1,411 @@
+package com.softweb.chatwithpdf;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One conversation, kept in an append-only file so it survives the process and
+ * read back a page of messages at a time, so memory stays the same however long the
+ * conversation gets. Layout: magic, version, then one record per message: its length
+ * in chars, its flags and its UTF-16 text. Opening maps the file once to find where
+ * each record starts, and cuts off a record an interrupted write left behind.
+ * <p>
+ * New messages are held in memory and written in batches on a background thread a
+ * moment after they are added. An answer still streaming is added as a draft that
+ * can be replaced until it is finished; it and everything after it are written once
+ * it is. Reads and appends come from the main thread.
+ */
+public class ChatHistory implements Closeable {
+
+    private static final String TAG = "ChatHistory";
+
+    private static final int MAGIC = 0x43574348; // "CWCH"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int FLAG_USER = 1;
+
+    static final int PAGE_SIZE = 50;
+    // The visible rows and a page or so either side
+    static final int CACHED_PAGES = 4;
+    static final long WRITE_DELAY_MILLIS = 250;
+
+    // One writer for every history, so a reopened file sees all earlier writes
+    private static final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final File file;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    // Byte offset of each stored message's record
+    private long[] offsets = new long[PAGE_SIZE];
+    private int storedCount;
+    private long end = HEADER_BYTES;
+
+    // Messages not written yet, from position storedCount on
+    private final List<Pending> pending = new ArrayList<>();
+    private boolean writeScheduled;
+
+    // Stored messages by page, least recently read first out
+    private final Map<Integer, ChatMessage[]> pages = new LinkedHashMap<Integer, ChatMessage[]>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ChatMessage[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    private static class Pending {
+        ChatMessage message;
+        boolean draft;
+
+        Pending(ChatMessage message, boolean draft) {
+            this.message = message;
+            this.draft = draft;
+        }
+    }
+
+    private ChatHistory(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * A conversation kept only in memory, e.g. before the document is known
+     */
+    public static ChatHistory inMemory() {
+        return new ChatHistory(null, null);
+    }
+
+    /**
+     * Open a conversation file, creating it if it does not exist. Waits for writes
+     * still queued by an earlier instance, so call off the main thread.
+     * @throws IOException if the file is not a chat history file
+     */
+    public static ChatHistory open(File file) throws IOException {
+        awaitWrites();
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                return new ChatHistory(file, channel);
+            }
+
+            ChatHistory history = new ChatHistory(file, channel);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_BYTES || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                throw new IOException("Not a chat history file: " + file);
+            }
+            long position = HEADER_BYTES;
+            while (position + RECORD_HEADER_BYTES <= size) {
+                int chars = map.getInt((int) position);
+                long recordEnd = position + RECORD_HEADER_BYTES + 2L * chars;
+                if (chars < 0 || recordEnd > size) {
+                    break;
+                }
+                history.addRecord(position, recordEnd);
+                position = recordEnd;
+            }
+            // Drop whatever an interrupted write left behind
+            if (position < size) {
+                channel.truncate(position);
+            } else {
+                history.mapped = map;
+            }
+            return history;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Messages in the conversation, written or not
+     */
+    public synchronized int size() {
+        return storedCount + pending.size();
+    }
+
+    /**
+     * One message, read from the file with the rest of its page unless that page is
+     * among the last read
+     * @param position 0-based, below {@link #size()}
+     */
+    public synchronized ChatMessage get(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("Message " + position + " of " + size());
+        }
+        if (position >= storedCount) {
+            return pending.get(position - storedCount).message;
+        }
+        int pageIndex = position / PAGE_SIZE;
+        int first = pageIndex * PAGE_SIZE;
+        ChatMessage[] page = pages.get(pageIndex);
+        // The last page grows as messages are written
+        if (page == null || position - first >= page.length) {
+            page = readPage(first, Math.min(first + PAGE_SIZE, storedCount));
+            pages.put(pageIndex, page);
+        }
+        return page[position - first];
+    }
+
+    /**
+     * Append a finished message
+     * @return Its position
+     */
+    public synchronized int add(ChatMessage message) {
+        pending.add(new Pending(message, false));
+        scheduleWrite();
+        return size() - 1;
+    }
+
+    /**
+     * Append a message that is still changing, such as an answer while it streams.
+     * Nothing from it on is written until it is {@link #finish finished}.
+     * @return Its position
+     */
+    public synchronized int addDraft(ChatMessage message) {
+        pending.add(new Pending(message, true));
+        return size() - 1;
+    }
+
+    /**
+     * Replace a draft
+     * @param position As returned by {@link #addDraft}
+     */
+    public synchronized void set(int position, ChatMessage message) {
+        draftAt(position).message = message;
+    }
+
+    /**
+     * Keep a draft as it is and let it be written
+     * @param position As returned by {@link #addDraft}
+     */
+    public synchronized void finish(int position) {
+        draftAt(position).draft = false;
+        scheduleWrite();
+    }
+
+    /**
+     * Finish every draft, e.g. when the answers they were for are cancelled
+     */
+    public synchronized void finishAll() {
+        for (Pending message : pending) {
+            message.draft = false;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Stored messages currently held in memory, besides those not written yet
+     */
+    synchronized int getCachedMessageCount() {
+        int count = 0;
+        for (ChatMessage[] page : pages.values()) {
+            count += page.length;
+        }
+        return count;
+    }
+
+    /**
+     * Messages written to the file so far
+     */
+    synchronized int getStoredCount() {
+        return storedCount;
+    }
+
+    /**
+     * Write every finished message now and wait until it is written
+     */
+    public void flush() throws IOException {
+        try {
+            writeExecutor.submit(() -> {
+                write();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write " + file, e.getCause());
+        }
+    }
+
+    /**
+     * Finish any drafts and write everything on the background thread, then close
+     * the file. Returns without waiting.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            for (Pending message : pending) {
+                message.draft = false;
+            }
+        }
+        writeExecutor.execute(() -> {
+            try {
+                write();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write " + file + ": " + e.getMessage());
+            }
+            synchronized (this) {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close " + file + ": " + e.getMessage());
+                }
+                channel = null;
+            }
+        });
+    }
+
+    /**
+     * Wait for every write queued so far, by any history
+     */
+    private static void awaitWrites() throws IOException {
+        try {
+            writeExecutor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for chat history writes", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void scheduleWrite() {
+        if (file == null || writeScheduled) {
+            return;
+        }
+        writeScheduled = true;
+        // Messages added meanwhile, e.g. a question and the status after it, go in the same write
+        writeExecutor.schedule(() -> {
+            try {
+                write();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write " + file + ": " + e.getMessage());
+            }
+        }, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Append the finished messages up to the first draft in one write. Runs on the
+     * write thread only; readers keep the messages from memory until they are written.
+     */
+    private void write() throws IOException {
+        List<ChatMessage> batch = new ArrayList<>();
+        long start;
+        synchronized (this) {
+            writeScheduled = false;
+            if (channel == null) {
+                return;
+            }
+            for (Pending message : pending) {
+                if (message.draft) {
+                    break;
+                }
+                batch.add(message.message);
+            }
+            start = end;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        int bytes = 0;
+        for (ChatMessage message : batch) {
+            bytes += RECORD_HEADER_BYTES + 2 * message.getMessage().length();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        long[] recordEnds = new long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            ChatMessage message = batch.get(i);
+            String text = message.getMessage();
+            buffer.putInt(text.length()).putInt(message.isUserMessage() ? FLAG_USER : 0);
+            CharBuffer chars = buffer.asCharBuffer();
+            chars.put(text);
+            buffer.position(buffer.position() + 2 * text.length());
+            recordEnds[i] = start + buffer.position();
+        }
+        buffer.flip();
+        long position = start;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        synchronized (this) {
+            long recordStart = start;
+            for (long recordEnd : recordEnds) {
+                addRecord(recordStart, recordEnd);
+                recordStart = recordEnd;
+            }
+            pending.subList(0, batch.size()).clear();
+        }
+    }
+
+    private Pending draftAt(int position) {
+        int index = position - storedCount;
+        if (index < 0 || index >= pending.size() || !pending.get(index).draft) {
+            throw new IllegalArgumentException("Message " + position + " is not a draft");
+        }
+        return pending.get(index);
+    }
+
+    private void addRecord(long offset, long recordEnd) {
+        if (storedCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[storedCount++] = offset;
+        end = recordEnd;
+    }
+
+    private ChatMessage[] readPage(int from, int to) {
+        if (mapped == null || mapped.capacity() < end) {
+            try {
+                if (channel != null) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+                } else {
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                        mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, end);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not map " + file, e);
+            }
+        }
+        ChatMessage[] page = new ChatMessage[to - from];
+        for (int i = from; i < to; i++) {
+            int offset = (int) offsets[i];
+            int chars = mapped.getInt(offset);
+            boolean user = (mapped.getInt(offset + 4) & FLAG_USER) != 0;
+            ByteBuffer record = mapped.duplicate();
+            record.limit(offset + RECORD_HEADER_BYTES + 2 * chars).position(offset + RECORD_HEADER_BYTES);
+            page[i - from] = new ChatMessage(record.slice().asCharBuffer().toString(), user);
+        }
+        return page;
+    }
+}
@@ -1,8 +1,13 @@
 package com.softweb.chatwithpdf;
 
-public class ChatMessage {
-    private String message;
-    private boolean isUserMessage;
+/**
+ * One chat bubble. Messages are immutable: an answer that grows while it streams is
+ * replaced by a copy in the same position of the {@link ChatHistory}.
+ */
+public final class ChatMessage {
+
+    private final String message;
+    private final boolean isUserMessage;
 
     public ChatMessage(String message, boolean isUserMessage) {
         this.message = message;
@@ -16,4 +21,11 @@ public class ChatMessage {
     public boolean isUserMessage() {
         return isUserMessage;
     }
+
+    /**
+     * The same message with new text
+     */
+    public ChatMessage withMessage(String message) {
+        return new ChatMessage(message, isUserMessage);
+    }
 }
@@ -0,0 +1,623 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The open document and its conversation, kept for the life of the process so a
+ * recreated activity picks up where the old one left off. The session owns the
+ * extraction thread, the chat client with its request scheduler, the questions in
+ * flight and the chat messages. An activity attaches a listener while it exists and
+ * renders from the session state. In library mode questions go to every document in
+ * the {@link DocumentLibrary} instead of the open one. Each document, and the library,
+ * has its own {@link ChatHistory} on disk, opened once the document's content key is
+ * known, so the conversation comes back when the document is opened again. Answered
+ * questions go into a {@link ConversationMemory} that follow-ups carry. Apart from
+ * extraction, loading the library, library imports and opening histories, everything
+ * runs on the main thread.
+ */
+public class ChatSession {
+
+    private static final String TAG = "ChatSession";
+
+    static final int READY_PAGE_COUNT = 5; // Pages indexed before questions are allowed
+    static final int LAZY_PAGE_COUNT = 500; // Documents this long are read section by section
+    // Messages at the end of a reopened conversation that follow-ups carry again
+    static final int RESTORED_MESSAGE_COUNT = 40;
+    // Pause in typing after which the question typed so far is prepared
+    static final long PREPARE_DELAY_MILLIS = 300;
+
+    private static final String HISTORY_DIR = "chats";
+    private static final String LIBRARY_HISTORY_KEY = "library";
+
+    private static ChatSession instance;
+
+    /**
+     * Session events, called on the main thread
+     */
+    public interface Listener {
+        void onMessageAdded(int position);
+
+        void onMessageChanged(int position);
+
+        /**
+         * Another conversation replaced the messages, e.g. the saved one of the document
+         */
+        void onHistoryChanged();
+
+        /**
+         * The library was read from disk and {@link #getLibrary} returns it
+         */
+        void onLibraryLoaded();
+
+        /**
+         * Extraction or a question started or finished
+         */
+        void onBusyChanged(boolean busy);
+
+        void onError(String message);
+    }
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ChatApiClient chatApiClient;
+    // Conversation shown, only in memory until its document or the library mode is known
+    private ChatHistory history = ChatHistory.inMemory();
+    private String historyKey;
+    // Questions still being answered
+    private final List<RequestScheduler.Handle> pendingQuestions = new ArrayList<>();
+    // Answered questions about the current document or the library, for follow-ups
+    private final ConversationMemory memory;
+    private Listener listener;
+    // Question being typed, prepared once typing pauses
+    private String draftQuestion = "";
+    private final Runnable prepareDraft = this::prepareDraft;
+
+    private Uri documentUri;
+    private String documentKey;
+    private DocumentIndex documentIndex;
+    private LazyDocument lazyDocument;
+    private Thread extractionThread;
+    private boolean extracting;
+    private int extractionCount;
+
+    // Null until read from disk off the main thread
+    private DocumentLibrary library;
+    private boolean libraryMode;
+    private Thread importThread;
+    private boolean importing;
+
+    /**
+     * Shared session for the app process
+     */
+    public static synchronized ChatSession getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChatSession(context);
+        }
+        return instance;
+    }
+
+    ChatSession(Context context) {
+        this.context = context.getApplicationContext();
+        this.chatApiClient = new ChatApiClient(this.context);
+        this.memory = chatApiClient.newConversationMemory();
+        loadLibrary();
+    }
+
+    /**
+     * Open the library in the background, it maps a segment file per document
+     */
+    private void loadLibrary() {
+        new Thread(() -> {
+            DocumentLibrary loaded = DocumentLibrary.getInstance(context);
+            mainHandler.post(() -> {
+                library = loaded;
+                if (listener != null) {
+                    listener.onLibraryLoaded();
+                }
+            });
+        }, "library-load").start();
+    }
+
+    /**
+     * Receive session events until {@link #detach}; replaces any previous listener
+     */
+    public void attach(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void detach(Listener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+
+    /**
+     * The conversation so far, for the adapter to render; only the session changes it
+     */
+    public ChatHistory getHistory() {
+        return history;
+    }
+
+    public Uri getDocumentUri() {
+        return documentUri;
+    }
+
+    /**
+     * Whether enough of the document is indexed to ask questions, or in library mode
+     * whether the library has any documents
+     */
+    public boolean isDocumentReady() {
+        return libraryMode ? library != null && library.getDocumentCount() > 0
+                : documentIndex != null || lazyDocument != null;
+    }
+
+    public boolean isBusy() {
+        return extracting || importing || !pendingQuestions.isEmpty();
+    }
+
+    /**
+     * The library, or null while it is still being read, see {@link Listener#onLibraryLoaded}
+     */
+    public DocumentLibrary getLibrary() {
+        return library;
+    }
+
+    public boolean isLibraryMode() {
+        return libraryMode;
+    }
+
+    /**
+     * Ask questions of the whole library rather than the open document
+     */
+    public void setLibraryMode(boolean libraryMode) {
+        if (libraryMode != this.libraryMode) {
+            // Follow-ups about one document make no sense of the whole library, and the other way round
+            memory.clear();
+        }
+        this.libraryMode = libraryMode;
+        String key = getWantedHistoryKey();
+        if (key == null) {
+            // Back from the library with no document open
+            onHistoryOpened(null, ChatHistory.inMemory());
+        } else if (!key.equals(historyKey)) {
+            new Thread(() -> {
+                ChatHistory opened = openHistory(key);
+                mainHandler.post(() -> onHistoryOpened(key, opened));
+            }).start();
+        }
+    }
+
+    /**
+     * Extractions started by this session, to check none are repeated
+     */
+    public int getExtractionCount() {
+        return extractionCount;
+    }
+
+    public ChatApiClient getChatApiClient() {
+        return chatApiClient;
+    }
+
+    /**
+     * Start reading a document, unless it is already open or being read
+     */
+    public void openDocument(Uri uri) {
+        if (uri.equals(documentUri) && (extracting || documentIndex != null || lazyDocument != null)) {
+            return;
+        }
+        cancelPendingQuestions();
+        stopExtraction();
+
+        documentUri = uri;
+        documentKey = null;
+        documentIndex = null;
+        lazyDocument = null;
+        memory.clear();
+        extracting = true;
+        extractionCount++;
+        notifyBusy();
+
+        extractionThread = new Thread(() -> {
+            try {
+                // The content hash identifies the document to the backend so it is uploaded only once
+                String contentKey = null;
+                try {
+                    contentKey = ExtractionCache.getInstance(context).getContentKey(context, uri);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not hash PDF: " + e.getMessage());
+                }
+                if (contentKey != null) {
+                    // Posted before the document is announced, so the announcement goes into its history
+                    String key = contentKey;
+                    ChatHistory opened = openHistory(key);
+                    mainHandler.post(() -> {
+                        if (uri != documentUri) {
+                            opened.close();
+                            return;
+                        }
+                        documentKey = key;
+                        onHistoryOpened(key, opened);
+                    });
+                }
+
+                // Huge documents are read section by section as questions need them
+                int documentPages = PdfTextExtractor.getPageCount(context, uri);
+                if (documentPages >= LAZY_PAGE_COUNT && !PdfTextExtractor.hasPages(context, uri, 1, documentPages)) {
+                    LazyDocument lazy = LazyDocument.open(context, uri);
+                    mainHandler.post(() -> onLazyDocumentReady(uri, lazy));
+                    return;
+                }
+
+                DocumentIndex index = new DocumentIndex(contentKey);
+
+                int pagesDone = PdfTextExtractor.extractPages(context, uri, (pageNumber, pageCount, text) -> {
+                    index.addText(text);
+
+                    // Allow questions once the first pages are indexed, keep reading the rest
+                    if (pageNumber == Math.min(READY_PAGE_COUNT, pageCount) && index.getChunkCount() > 0) {
+                        mainHandler.post(() -> onDocumentReady(uri, index, pageNumber < pageCount));
+                    }
+                });
+
+                mainHandler.post(() -> {
+                    if (uri != documentUri) {
+                        return;
+                    }
+                    extracting = false;
+                    notifyBusy();
+
+                    if (index.getChunkCount() == 0) {
+                        notifyError("Could not extract text from PDF");
+                    } else if (documentIndex == null) {
+                        // Text only appeared after the first pages (e.g. a scanned cover)
+                        onDocumentReady(uri, index, false);
+                    } else {
+                        Log.d(TAG, "Finished indexing " + pagesDone + " pages");
+                    }
+                });
+
+            } catch (Exception e) {
+                mainHandler.post(() -> {
+                    if (uri != documentUri) {
+                        return;
+                    }
+                    extracting = false;
+                    notifyBusy();
+                    notifyError("Error: " + e.getMessage());
+                });
+            }
+        });
+        extractionThread.start();
+    }
+
+    /**
+     * Extract and index documents into the library one after another, skipping those
+     * already in it. Runs alongside the open document's extraction.
+     * @param names Name shown for each document
+     */
+    public void importDocuments(List<Uri> uris, List<String> names) {
+        if (importing) {
+            notifyError("Still adding the previous PDFs to the library");
+            return;
+        }
+        importing = true;
+        notifyBusy();
+
+        importThread = new Thread(() -> {
+            // Waits for the library if it is still being read
+            DocumentLibrary library = DocumentLibrary.getInstance(context);
+            int added = 0;
+            int failed = 0;
+            for (int i = 0; i < uris.size() && !Thread.currentThread().isInterrupted(); i++) {
+                Uri uri = uris.get(i);
+                try {
+                    String key = ExtractionCache.getInstance(context).getContentKey(context, uri);
+                    if (library.contains(key)) {
+                        continue;
+                    }
+                    DocumentIndex index = new DocumentIndex(key);
+                    int pages = PdfTextExtractor.extractPages(context, uri,
+                            (pageNumber, pageCount, text) -> index.addText(text));
+                    if (index.getChunkCount() == 0 || Thread.currentThread().isInterrupted()) {
+                        failed++;
+                        continue;
+                    }
+                    library.add(key, names.get(i), index);
+                    added++;
+                    Log.d(TAG, "Added " + names.get(i) + " to the library, " + pages + " pages");
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not add " + uri + " to the library: " + e.getMessage());
+                    failed++;
+                }
+            }
+
+            int addedCount = added;
+            int failedCount = failed;
+            Thread self = Thread.currentThread();
+            mainHandler.post(() -> {
+                if (importThread != self) {
+                    return; // The session was closed
+                }
+                importing = false;
+                importThread = null;
+                notifyBusy();
+                addMessage(new ChatMessage("📚 Added " + addedCount + " PDF" + (addedCount == 1 ? "" : "s")
+                        + " to the library (" + library.getDocumentCount() + " in total)"
+                        + (failedCount > 0 ? ", " + failedCount + " could not be read" : "") + ".", false));
+            });
+        });
+        importThread.start();
+    }
+
+    /**
+     * Take a document out of the library
+     */
+    public void removeFromLibrary(String key) {
+        if (library != null) {
+            library.remove(key);
+        }
+    }
+
+    private void onLazyDocumentReady(Uri uri, LazyDocument document) {
+        if (uri != documentUri) {
+            return;
+        }
+        lazyDocument = document;
+        extracting = false;
+        notifyBusy();
+
+        addMessage(new ChatMessage("✅ PDF ready! It has " + document.getPageCount()
+                + " pages, so I'll read the sections your questions are about.", false));
+    }
+
+    private void onDocumentReady(Uri uri, DocumentIndex index, boolean stillExtracting) {
+        if (uri != documentUri) {
+            return;
+        }
+        documentIndex = index;
+
+        addMessage(new ChatMessage(stillExtracting
+                ? "✅ PDF ready! Ask me anything - I'm still reading the remaining pages."
+                : "✅ PDF ready! Ask me anything about this document.", false));
+    }
+
+    /**
+     * Ask a question about the open document; the answer streams into a new message
+     */
+    public void ask(String question) {
+        if (!isDocumentReady()) {
+            throw new IllegalStateException("No document ready");
+        }
+        addMessage(new ChatMessage(question, true));
+
+        ChatHistory answerHistory = history;
+        RequestScheduler.Handle[] request = new RequestScheduler.Handle[1];
+        ChatApiClient.ChatCallback callback = new ChatApiClient.ChatCallback() {
+            // Position of the bot message being filled in while the answer streams
+            private int answerPosition = -1;
+
+            @Override
+            public void onResult(String response) {
+                if (request[0].isCancelled()) {
+                    return;
+                }
+                finishQuestion(request[0]);
+                showAnswer(response);
+                answerHistory.finish(answerPosition);
+                memory.add(question, response);
+            }
+
+            @Override
+            public void onError(String error) {
+                if (request[0].isCancelled()) {
+                    return;
+                }
+                finishQuestion(request[0]);
+                if (answerPosition != -1) {
+                    // Keep what had streamed
+                    answerHistory.finish(answerPosition);
+                }
+                notifyError(error);
+            }
+
+            @Override
+            public void onProgress(String status) {
+                // Could show status in UI if needed
+            }
+
+            @Override
+            public void onPartialResult(String partialResponse) {
+                if (!request[0].isCancelled()) {
+                    showAnswer(partialResponse);
+                }
+            }
+
+            private void showAnswer(String answer) {
+                if (answerPosition == -1) {
+                    answerPosition = answerHistory.addDraft(new ChatMessage(answer, false));
+                    if (listener != null) {
+                        listener.onMessageAdded(answerPosition);
+                    }
+                } else {
+                    answerHistory.set(answerPosition, answerHistory.get(answerPosition).withMessage(answer));
+                    if (listener != null) {
+                        listener.onMessageChanged(answerPosition);
+                    }
+                }
+            }
+        };
+        ConversationMemory.Snapshot history = memory.snapshot();
+        request[0] = libraryMode
+                ? chatApiClient.askLibrary(library, question, history, callback)
+                : lazyDocument != null
+                ? chatApiClient.askQuestion(lazyDocument, question, history, callback)
+                : chatApiClient.askQuestion(documentIndex, question, history, callback);
+        pendingQuestions.add(request[0]);
+        notifyBusy();
+    }
+
+    /**
+     * The question being typed changed. Once typing pauses, its chunks are retrieved
+     * and its request serialized, and a connection opened, so asking it only has to
+     * send the request. Each change replaces the preparation of the text before it.
+     */
+    public void onQuestionTyped(String draft) {
+        draftQuestion = draft.trim();
+        mainHandler.removeCallbacks(prepareDraft);
+        mainHandler.postDelayed(prepareDraft, PREPARE_DELAY_MILLIS);
+    }
+
+    private void prepareDraft() {
+        if (draftQuestion.isEmpty() || !isDocumentReady()) {
+            chatApiClient.cancelPreparedQuestion();
+        } else if (libraryMode || lazyDocument != null) {
+            // What these questions send is only known once they are asked
+            chatApiClient.prepareConnection();
+        } else {
+            chatApiClient.prepareQuestion(documentIndex, draftQuestion, memory.snapshot());
+        }
+    }
+
+    /**
+     * Cancel every question still being answered, aborting its connection
+     * @return Whether there was anything to cancel
+     */
+    public boolean cancelPendingQuestions() {
+        if (pendingQuestions.isEmpty()) {
+            return false;
+        }
+        for (RequestScheduler.Handle request : pendingQuestions) {
+            request.cancel();
+        }
+        pendingQuestions.clear();
+        // Answers cut short are kept as far as they streamed
+        history.finishAll();
+        notifyBusy();
+        return true;
+    }
+
+    /**
+     * Drop the document and the conversation, e.g. when the user leaves the app.
+     * Pages extracted so far stay in the extraction cache, the conversation in its history.
+     */
+    public void close() {
+        cancelPendingQuestions();
+        mainHandler.removeCallbacks(prepareDraft);
+        chatApiClient.cancelPreparedQuestion();
+        stopExtraction();
+        if (importThread != null) {
+            importThread.interrupt();
+            importThread = null;
+        }
+        importing = false;
+        documentUri = null;
+        documentKey = null;
+        documentIndex = null;
+        lazyDocument = null;
+        extracting = false;
+        history.close();
+        history = ChatHistory.inMemory();
+        historyKey = null;
+        memory.clear();
+    }
+
+    private void stopExtraction() {
+        // Stop reading the previous document if it is still being extracted
+        if (extractionThread != null) {
+            extractionThread.interrupt();
+            extractionThread = null;
+        }
+    }
+
+    private void finishQuestion(RequestScheduler.Handle request) {
+        pendingQuestions.remove(request);
+        notifyBusy();
+    }
+
+    private void addMessage(ChatMessage message) {
+        int position = history.add(message);
+        if (listener != null) {
+            listener.onMessageAdded(position);
+        }
+    }
+
+    /**
+     * Key of the conversation to show: the library's, or the open document's once it is known
+     */
+    private String getWantedHistoryKey() {
+        return libraryMode ? LIBRARY_HISTORY_KEY : documentKey;
+    }
+
+    /**
+     * Open the saved conversation for a key, or a new one in memory if it cannot be read.
+     * Call off the main thread.
+     */
+    private ChatHistory openHistory(String key) {
+        File dir = new File(context.getFilesDir(), HISTORY_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create " + dir);
+            return ChatHistory.inMemory();
+        }
+        try {
+            return ChatHistory.open(new File(dir, key + ".log"));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open chat history " + key + ": " + e.getMessage());
+            return ChatHistory.inMemory();
+        }
+    }
+
+    /**
+     * Show an opened conversation if it is still the one wanted, carrying its last
+     * questions and answers into follow-ups again
+     * @param key Null for a conversation kept in memory
+     */
+    private void onHistoryOpened(String key, ChatHistory opened) {
+        if (!TextUtils.equals(key, getWantedHistoryKey()) || TextUtils.equals(key, historyKey)) {
+            opened.close();
+            return;
+        }
+        // Answers still streaming belong to the conversation being replaced
+        cancelPendingQuestions();
+        history.close();
+        history = opened;
+        historyKey = key;
+
+        memory.clear();
+        String question = null;
+        for (int i = Math.max(0, history.size() - RESTORED_MESSAGE_COUNT); i < history.size(); i++) {
+            ChatMessage message = history.get(i);
+            if (message.isUserMessage()) {
+                question = message.getMessage();
+            } else if (question != null) {
+                memory.add(question, message.getMessage());
+                question = null;
+            }
+        }
+
+        if (listener != null) {
+            listener.onHistoryChanged();
+        }
+    }
+
+    private void notifyBusy() {
+        if (listener != null) {
+            listener.onBusyChanged(isBusy());
+        }
+    }
+
+    private void notifyError(String message) {
+        if (listener != null) {
+            listener.onError(message);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.softweb.chatwithpdf;
+
+import android.app.Application;
+import android.content.pm.ApplicationInfo;
+
+/**
+ * Process entry point; keeps startup itself free of work, see {@link StartupInitializer}
+ */
+public class ChatWithPdfApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Stage timings are only collected in debuggable builds, release builds skip every span
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            Metrics.setEnabled(true, true);
+        }
+        StartupInitializer.install(this);
+    }
+}
@@ -0,0 +1,149 @@
+package com.softweb.chatwithpdf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fills a request's token budget: the question always goes in, then the most
+ * recent history turns up to a share of the budget, then the chunks that match
+ * the question in rank order while they fit. Chunks that match nothing are left
+ * out, unless nothing matches at all: then the document is sent from the start.
+ * Token counts are estimates from {@link TokenEstimator}; chunk counts are taken
+ * once, when the chunk is indexed.
+ */
+public class ContextPacker {
+
+    // History never takes more than this share of the input budget, the document comes first
+    static final int HISTORY_SHARE_DIVISOR = 4;
+
+    private static final int SEPARATOR_TOKENS = TokenEstimator.count(DocumentIndex.CHUNK_SEPARATOR);
+
+    private final ModelBudget budget;
+
+    /**
+     * What went into one request
+     */
+    public static class Packing {
+        /**
+         * Chunks to send, in document order
+         */
+        public final int[] chunkIds;
+        /**
+         * How many of the most recent history turns fit
+         */
+        public final int historyTurns;
+        /**
+         * Estimated input tokens used
+         */
+        public final int tokens;
+
+        Packing(int[] chunkIds, int historyTurns, int tokens) {
+            this.chunkIds = chunkIds;
+            this.historyTurns = historyTurns;
+            this.tokens = tokens;
+        }
+    }
+
+    public ContextPacker(ModelBudget budget) {
+        this.budget = budget;
+    }
+
+    public ModelBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Tokens of the input budget history may take, see {@link ConversationMemory}
+     */
+    public int getHistoryTokens() {
+        return budget.getInputTokens() / HISTORY_SHARE_DIVISOR;
+    }
+
+    /**
+     * How many of the most recent history turns fit next to the question
+     * @param history Earlier turns, oldest first
+     */
+    public int historyTurns(String question, List<? extends CharSequence> history) {
+        int available = budget.getInputTokens();
+        int historyBudget = Math.min(available - TokenEstimator.count(question), getHistoryTokens());
+        int historyTurns = 0;
+        int historyTokens = 0;
+        for (int i = history.size() - 1; i >= 0; i--) {
+            int cost = TokenEstimator.count(history.get(i));
+            if (historyTokens + cost > historyBudget) {
+                break;
+            }
+            historyTokens += cost;
+            historyTurns++;
+        }
+        return historyTurns;
+    }
+
+    /**
+     * @param history Earlier turns, oldest first
+     */
+    public Packing pack(DocumentIndex index, String question, List<? extends CharSequence> history) {
+        int available = budget.getInputTokens();
+        int historyTurns = historyTurns(question, history);
+        int used = TokenEstimator.count(question) + historyTokens(history, historyTurns);
+
+        int[] ranked = index.rank(question);
+        if (ranked.length == 0) {
+            ranked = DocumentIndex.documentOrder(index.getChunkCount());
+        }
+        int[] selected = new int[ranked.length];
+        int selectedCount = 0;
+        for (int chunkId : ranked) {
+            int cost = index.getChunkTokens(chunkId) + (selectedCount > 0 ? SEPARATOR_TOKENS : 0);
+            // Later, lower ranked chunks may still be small enough to fill the gap
+            if (used + cost > available) {
+                continue;
+            }
+            selected[selectedCount++] = chunkId;
+            used += cost;
+        }
+
+        Arrays.sort(selected, 0, selectedCount);
+        return new Packing(Arrays.copyOf(selected, selectedCount), historyTurns, used);
+    }
+
+    /**
+     * Library hits that fit next to the question, taken best first while they fit
+     * @return The hits to send, in the order given
+     */
+    public List<DocumentLibrary.Hit> pack(List<DocumentLibrary.Hit> hits, String question) {
+        return pack(hits, question, Collections.<String>emptyList());
+    }
+
+    /**
+     * Library hits that fit next to the question and the history turns that fit,
+     * see {@link #historyTurns}
+     */
+    public List<DocumentLibrary.Hit> pack(List<DocumentLibrary.Hit> hits, String question,
+                                          List<? extends CharSequence> history) {
+        int available = budget.getInputTokens();
+        int used = TokenEstimator.count(question) + historyTokens(history, historyTurns(question, history));
+
+        List<DocumentLibrary.Hit> selected = new ArrayList<>();
+        for (DocumentLibrary.Hit hit : hits) {
+            int cost = hit.document.getChunkTokens(hit.chunkId) + TokenEstimator.count(DocumentLibrary.label(hit))
+                    + (selected.isEmpty() ? 0 : SEPARATOR_TOKENS);
+            if (used + cost > available) {
+                continue;
+            }
+            selected.add(hit);
+            used += cost;
+        }
+        return selected;
+    }
+
+    private static int historyTokens(List<? extends CharSequence> history, int turns) {
+        int tokens = 0;
+        for (int i = history.size() - turns; i < history.size(); i++) {
+            tokens += TokenEstimator.count(history.get(i));
+        }
+        return tokens;
+    }
+}
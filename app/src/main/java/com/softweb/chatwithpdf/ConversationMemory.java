@@ -0,0 +1,194 @@
+package com.softweb.chatwithpdf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The conversation as sent along with each question, within a fixed token budget
+ * however long the conversation runs. The most recent turns are kept verbatim; when
+ * they outgrow their share, the oldest is compacted into a digest of its question and
+ * the start of its answer, and the digests together form a rolling summary. Each turn
+ * is digested once, when it is compacted, and the oldest digests are dropped when the
+ * summary outgrows its own share.
+ */
+public class ConversationMemory {
+
+    // The summary never takes more than this share of the budget, recent turns come first
+    static final int SUMMARY_SHARE_DIVISOR = 3;
+
+    static final int DIGEST_QUESTION_TOKENS = 24;
+    static final int DIGEST_ANSWER_TOKENS = 40;
+
+    private final int maxTokens;
+    private final int summaryTokens;
+
+    private final ArrayDeque<Turn> recent = new ArrayDeque<>();
+    private int recentTokens;
+    private final ArrayDeque<String> digests = new ArrayDeque<>();
+    private int digestTokens;
+    private int compactedCount;
+    private int turnCount;
+    // Joined digests, rebuilt only after the digests change
+    private String summary = "";
+
+    /**
+     * One question and its answer
+     */
+    public static class Turn {
+        public final String question;
+        public final String answer;
+        final String text;
+        final int tokens;
+
+        Turn(String question, String answer) {
+            this.question = question;
+            this.answer = answer;
+            this.text = question + "\n" + answer;
+            this.tokens = TokenEstimator.count(text);
+        }
+    }
+
+    /**
+     * The memory as of one question, unaffected by turns added later
+     */
+    public static class Snapshot {
+        public static final Snapshot EMPTY = new Snapshot("", Collections.<Turn>emptyList());
+
+        /**
+         * Digests of the compacted turns, oldest first; empty if none
+         */
+        public final String summary;
+        /**
+         * Recent turns, oldest first
+         */
+        public final List<Turn> turns;
+
+        Snapshot(String summary, List<Turn> turns) {
+            this.summary = summary;
+            this.turns = turns;
+        }
+
+        public boolean isEmpty() {
+            return summary.isEmpty() && turns.isEmpty();
+        }
+
+        /**
+         * The summary, if any, then each turn, as {@link ContextPacker} counts history
+         */
+        public List<String> getTexts() {
+            List<String> texts = new ArrayList<>(turns.size() + 1);
+            if (!summary.isEmpty()) {
+                texts.add(summary);
+            }
+            for (Turn turn : turns) {
+                texts.add(turn.text);
+            }
+            return texts;
+        }
+
+        /**
+         * Only the given number of the most recent texts, the summary being the oldest
+         * @param count How many of {@link #getTexts()} to keep, from the end
+         */
+        public Snapshot latest(int count) {
+            int keepTurns = Math.min(count, turns.size());
+            boolean keepSummary = !summary.isEmpty() && count > turns.size();
+            if (keepTurns == turns.size() && (keepSummary || summary.isEmpty())) {
+                return this;
+            }
+            return new Snapshot(keepSummary ? summary : "",
+                    turns.subList(turns.size() - keepTurns, turns.size()));
+        }
+    }
+
+    /**
+     * @param maxTokens Budget for the summary and the recent turns together
+     */
+    public ConversationMemory(int maxTokens) {
+        this.maxTokens = maxTokens;
+        this.summaryTokens = maxTokens / SUMMARY_SHARE_DIVISOR;
+    }
+
+    /**
+     * Record an answered question, compacting the oldest turns that no longer fit
+     */
+    public synchronized void add(String question, String answer) {
+        Turn turn = new Turn(question, answer);
+        recent.addLast(turn);
+        recentTokens += turn.tokens;
+        turnCount++;
+
+        while (recentTokens > maxTokens - summaryTokens && !recent.isEmpty()) {
+            Turn oldest = recent.removeFirst();
+            recentTokens -= oldest.tokens;
+            String digest = digest(oldest);
+            digests.addLast(digest);
+            digestTokens += TokenEstimator.count(digest) + 1;
+            compactedCount++;
+            while (digestTokens > summaryTokens && !digests.isEmpty()) {
+                digestTokens -= TokenEstimator.count(digests.removeFirst()) + 1;
+            }
+            summary = String.join("\n", digests);
+        }
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(summary, Collections.unmodifiableList(new ArrayList<>(recent)));
+    }
+
+    /**
+     * Forget the conversation, e.g. when another document is opened
+     */
+    public synchronized void clear() {
+        recent.clear();
+        recentTokens = 0;
+        digests.clear();
+        digestTokens = 0;
+        summary = "";
+    }
+
+    /**
+     * Turns added since the memory was created
+     */
+    public synchronized int getTurnCount() {
+        return turnCount;
+    }
+
+    /**
+     * Turns digested into the summary so far
+     */
+    public synchronized int getCompactedCount() {
+        return compactedCount;
+    }
+
+    /**
+     * Estimated tokens of everything a question would carry
+     */
+    public synchronized int getTokens() {
+        return recentTokens + TokenEstimator.count(summary);
+    }
+
+    /**
+     * The question and the first sentence of the answer, each cut to a few tokens
+     */
+    static String digest(Turn turn) {
+        String question = turn.question.replace('\n', ' ').trim();
+        String answer = turn.answer.replace('\n', ' ').trim();
+        int sentenceEnd = firstSentenceEnd(answer);
+        answer = answer.substring(0, sentenceEnd);
+        return "Q: " + question.substring(0, TokenEstimator.prefixEnd(question, 0, DIGEST_QUESTION_TOKENS)).trim()
+                + " A: " + answer.substring(0, TokenEstimator.prefixEnd(answer, 0, DIGEST_ANSWER_TOKENS)).trim();
+    }
+
+    private static int firstSentenceEnd(String text) {
+        for (int i = 0; i + 1 < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c == '.' || c == '!' || c == '?') && text.charAt(i + 1) == ' ') {
+                return i + 1;
+            }
+        }
+        return text.length();
+    }
+}
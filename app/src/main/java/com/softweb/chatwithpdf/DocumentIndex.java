@@ -0,0 +1,447 @@
+package com.softweb.chatwithpdf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-device retrieval index over the extracted PDF text.
+ * The text is split into overlapping chunks, indexed with primitive int postings
+ * and scored with BM25, so each question only sends the chunks relevant to it.
+ * Each chunk also gets a hashed vector in an {@link EmbeddingIndex}, and ranking fuses
+ * both, so passages worded differently from the question are still found.
+ * Chunks are subsequences of the text they came from and are never copied: when
+ * pages are views over the memory-mapped {@link PageTextFile}, the index holds only
+ * postings and small view objects, however long the document is.
+ */
+public class DocumentIndex {
+
+    static final int CHUNK_CHARS = 1000;
+    static final int CHUNK_OVERLAP = 200;
+
+    // Bump whenever chunk boundaries or chunk text change, chunk ids are shared with the backend
+    static final int CHUNKING_VERSION = 2;
+
+    static final float K1 = 1.2f;
+    static final float B = 0.75f;
+    static final String CHUNK_SEPARATOR = "\n...\n";
+
+    // Reciprocal rank fusion constant, damps the difference between the very top ranks
+    static final int FUSION_K = 60;
+
+    private final String contentKey;
+    private final List<CharSequence> chunks = new ArrayList<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final EmbeddingIndex embeddings = new EmbeddingIndex();
+    private int[] chunkTokenCounts = new int[64];
+    // Estimated model tokens per chunk, for packing requests
+    private int[] chunkModelTokens = new int[64];
+    private long totalTokens;
+
+    /**
+     * Receives the postings of one term, see {@link #forEachTerm}
+     */
+    interface PostingsVisitor {
+        /**
+         * @param chunkIds Chunks containing the term, ascending, valid up to size
+         * @param frequencies Occurrences of the term in each of those chunks
+         */
+        void visit(String term, int[] chunkIds, int[] frequencies, int size);
+    }
+
+    /**
+     * Postings list for one term: chunk ids in ascending order with their term frequencies
+     */
+    private static class Postings {
+        int[] chunkIds = new int[4];
+        int[] frequencies = new int[4];
+        int size;
+
+        void add(int chunkId, int frequency) {
+            if (size == chunkIds.length) {
+                chunkIds = Arrays.copyOf(chunkIds, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            chunkIds[size] = chunkId;
+            frequencies[size] = frequency;
+            size++;
+        }
+    }
+
+    public DocumentIndex() {
+        this(null);
+    }
+
+    /**
+     * @param contentKey Content hash of the source PDF, used to identify the document to the backend
+     */
+    public DocumentIndex(String contentKey) {
+        this.contentKey = contentKey;
+    }
+
+    /**
+     * Build an index over the full document text
+     */
+    public static DocumentIndex build(String text) {
+        DocumentIndex index = new DocumentIndex();
+        index.addText(text);
+        return index;
+    }
+
+    /**
+     * Split text into overlapping chunks and add them to the index
+     */
+    public synchronized void addText(CharSequence text) {
+        int length = text.length();
+        int start = skipWhitespace(text, 0);
+
+        while (start < length) {
+            int end = Math.min(start + CHUNK_CHARS, length);
+            if (end < length) {
+                // Prefer to break on whitespace so words are not split across chunks
+                int boundary = end;
+                while (boundary > start + CHUNK_CHARS / 2 && !Character.isWhitespace(text.charAt(boundary))) {
+                    boundary--;
+                }
+                if (boundary > start + CHUNK_CHARS / 2) {
+                    end = boundary;
+                }
+            }
+
+            // Trimmed like String.trim(), chunk text is shared with the backend
+            int chunkStart = start;
+            int chunkEnd = end;
+            while (chunkStart < chunkEnd && text.charAt(chunkStart) <= ' ') {
+                chunkStart++;
+            }
+            while (chunkEnd > chunkStart && text.charAt(chunkEnd - 1) <= ' ') {
+                chunkEnd--;
+            }
+            if (chunkEnd > chunkStart) {
+                addChunk(text.subSequence(chunkStart, chunkEnd));
+            }
+
+            if (end >= length) {
+                break;
+            }
+
+            int next = end - CHUNK_OVERLAP;
+            while (next > start && next < end && !Character.isWhitespace(text.charAt(next))) {
+                next++;
+            }
+            start = skipWhitespace(text, next > start ? next : end);
+        }
+    }
+
+    private void addChunk(CharSequence chunk) {
+        int chunkId = chunks.size();
+        chunks.add(chunk);
+
+        Map<String, int[]> frequencies = new HashMap<>();
+        List<String> tokens = tokenize(chunk);
+        for (String token : tokens) {
+            int[] count = frequencies.get(token);
+            if (count == null) {
+                frequencies.put(token, new int[]{1});
+            } else {
+                count[0]++;
+            }
+        }
+
+        for (Map.Entry<String, int[]> entry : frequencies.entrySet()) {
+            Postings list = postings.get(entry.getKey());
+            if (list == null) {
+                list = new Postings();
+                postings.put(entry.getKey(), list);
+            }
+            list.add(chunkId, entry.getValue()[0]);
+        }
+
+        if (chunkId == chunkTokenCounts.length) {
+            chunkTokenCounts = Arrays.copyOf(chunkTokenCounts, chunkId * 2);
+            chunkModelTokens = Arrays.copyOf(chunkModelTokens, chunkId * 2);
+        }
+        chunkTokenCounts[chunkId] = tokens.size();
+        chunkModelTokens[chunkId] = TokenEstimator.count(chunk);
+        totalTokens += tokens.size();
+        embeddings.add(chunk);
+    }
+
+    /**
+     * Content hash of the source PDF, or null if unknown
+     */
+    public String getContentKey() {
+        return contentKey;
+    }
+
+    /**
+     * Number of chunks currently in the index
+     */
+    public synchronized int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Text of a single chunk, a view over the indexed text
+     */
+    public synchronized CharSequence getChunk(int chunkId) {
+        return chunks.get(chunkId);
+    }
+
+    /**
+     * Estimated model tokens of a chunk, see {@link TokenEstimator}
+     */
+    public synchronized int getChunkTokens(int chunkId) {
+        return chunkModelTokens[chunkId];
+    }
+
+    /**
+     * Terms in a chunk, its length for BM25
+     */
+    synchronized int getChunkLength(int chunkId) {
+        return chunkTokenCounts[chunkId];
+    }
+
+    /**
+     * Heap taken by the chunk vectors
+     */
+    synchronized long getEmbeddingBytes() {
+        return embeddings.getMemoryBytes();
+    }
+
+    synchronized long getTotalTokens() {
+        return totalTokens;
+    }
+
+    /**
+     * Visit the postings of every term, in no particular order
+     */
+    synchronized void forEachTerm(PostingsVisitor visitor) {
+        for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+            Postings list = entry.getValue();
+            visitor.visit(entry.getKey(), list.chunkIds, list.frequencies, list.size);
+        }
+    }
+
+    /**
+     * Rank chunks against a query with BM25
+     * @return Up to maxResults chunk ids, best match first
+     */
+    public synchronized int[] search(String query, int maxResults) {
+        int chunkCount = chunks.size();
+        if (chunkCount == 0 || maxResults <= 0) {
+            return new int[0];
+        }
+
+        float[] scores = new float[chunkCount];
+        float averageLength = (float) totalTokens / chunkCount;
+        boolean matched = false;
+
+        for (String term : new LinkedHashSet<>(tokenize(query))) {
+            Postings list = postings.get(term);
+            if (list == null) {
+                continue;
+            }
+            matched = true;
+
+            float idf = (float) Math.log(1 + (chunkCount - list.size + 0.5) / (list.size + 0.5));
+            for (int i = 0; i < list.size; i++) {
+                int chunkId = list.chunkIds[i];
+                int tf = list.frequencies[i];
+                float norm = K1 * (1 - B + B * chunkTokenCounts[chunkId] / averageLength);
+                scores[chunkId] += idf * tf * (K1 + 1) / (tf + norm);
+            }
+        }
+
+        if (!matched) {
+            return new int[0];
+        }
+        return topK(scores, maxResults);
+    }
+
+    /**
+     * Pick the best matching chunks that fit in the character budget, in document order.
+     * Falls back to the start of the document when nothing in the question matches.
+     */
+    public synchronized String selectContext(String question, int maxChars) {
+        return joinChunks(selectChunks(question, maxChars));
+    }
+
+    /**
+     * Text of the given chunks as one context, in the order given
+     */
+    public synchronized String joinChunks(int[] chunkIds) {
+        StringBuilder context = new StringBuilder();
+        for (int i = 0; i < chunkIds.length; i++) {
+            if (i > 0) {
+                context.append(CHUNK_SEPARATOR);
+            }
+            context.append(chunks.get(chunkIds[i]));
+        }
+        return context.toString();
+    }
+
+    /**
+     * Rank chunks by the similarity of their vectors to the query's
+     * @return Chunks above the similarity floor, most similar first
+     */
+    public synchronized int[] searchSimilar(String query, int maxResults) {
+        return embeddings.search(query, maxResults);
+    }
+
+    /**
+     * Chunks that match the question by keyword or by vector, best match first. The two
+     * rankings are fused by reciprocal rank, each chunk scoring 1 / (k + rank) in each.
+     * Empty when nothing in the question matches either way; what to send then is up
+     * to the caller, see {@link #documentOrder}.
+     */
+    public synchronized int[] rank(String question) {
+        int chunkCount = chunks.size();
+        float[] fused = new float[chunkCount];
+        int[] keywordRanked = search(question, chunkCount);
+        for (int i = 0; i < keywordRanked.length; i++) {
+            fused[keywordRanked[i]] += 1f / (FUSION_K + i + 1);
+        }
+        int[] vectorRanked = embeddings.search(question, chunkCount);
+        for (int i = 0; i < vectorRanked.length; i++) {
+            fused[vectorRanked[i]] += 1f / (FUSION_K + i + 1);
+        }
+
+        return topK(fused, chunkCount);
+    }
+
+    /**
+     * Every chunk id in document order, for a question that matches nothing, such as
+     * "summarize this", to be answered from the start of the document
+     */
+    static int[] documentOrder(int chunkCount) {
+        int[] ids = new int[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+
+    /**
+     * Ids of the chunks {@link #selectContext} would join, in document order
+     */
+    public synchronized int[] selectChunks(String question, int maxChars) {
+        int[] ranked = rank(question);
+        if (ranked.length == 0) {
+            ranked = documentOrder(chunks.size());
+        }
+
+        int[] selected = new int[ranked.length];
+        int selectedCount = 0;
+        int used = 0;
+        for (int chunkId : ranked) {
+            int cost = chunks.get(chunkId).length() + (selectedCount > 0 ? CHUNK_SEPARATOR.length() : 0);
+            if (used + cost > maxChars) {
+                continue;
+            }
+            selected[selectedCount++] = chunkId;
+            used += cost;
+        }
+
+        Arrays.sort(selected, 0, selectedCount);
+        return Arrays.copyOf(selected, selectedCount);
+    }
+
+    /**
+     * Indices of the k highest positive scores, best first
+     */
+    private static int[] topK(float[] scores, int k) {
+        // Min-heap of chunk ids keyed by score, so the weakest candidate is evicted first
+        int[] heap = new int[Math.min(k, scores.length)];
+        int heapSize = 0;
+
+        for (int chunkId = 0; chunkId < scores.length; chunkId++) {
+            float score = scores[chunkId];
+            if (score <= 0) {
+                continue;
+            }
+            if (heapSize < heap.length) {
+                heap[heapSize] = chunkId;
+                siftUp(heap, heapSize++, scores);
+            } else if (score > scores[heap[0]]) {
+                heap[0] = chunkId;
+                siftDown(heap, heapSize, scores);
+            }
+        }
+
+        int[] result = new int[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            result[i] = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, scores);
+        }
+        return result;
+    }
+
+    private static void siftUp(int[] heap, int index, float[] scores) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (scores[heap[index]] >= scores[heap[parent]]) {
+                return;
+            }
+            swap(heap, index, parent);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, float[] scores) {
+        int index = 0;
+        while (true) {
+            int smallest = index;
+            int left = index * 2 + 1;
+            int right = left + 1;
+            if (left < size && scores[heap[left]] < scores[heap[smallest]]) {
+                smallest = left;
+            }
+            if (right < size && scores[heap[right]] < scores[heap[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(heap, index, smallest);
+            index = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, int a, int b) {
+        int tmp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = tmp;
+    }
+
+    private static int skipWhitespace(CharSequence text, int from) {
+        while (from < text.length() && Character.isWhitespace(text.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Lowercase alphanumeric terms, ignoring single characters
+     */
+    static List<String> tokenize(CharSequence text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0, n = text.length(); i <= n; i++) {
+            char c = i < n ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                if (token.length() > 1) {
+                    tokens.add(token.toString());
+                }
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,354 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A folder of documents searched together. Each document is indexed once when it is
+ * added and kept as an {@link IndexSegment} file under the app files dir, so adding or
+ * removing a document never touches the others. Segment files are named after the
+ * order they were added in and the document key, which keeps that order across restarts. A search looks its terms up in every
+ * segment to get library-wide BM25 statistics, then scores the segments on a worker
+ * pool, each worker keeping its own top hits, and merges the workers' hits.
+ */
+public class DocumentLibrary {
+
+    private static final String TAG = "DocumentLibrary";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int CORE_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService searchPool = Executors.newFixedThreadPool(CORE_COUNT);
+
+    private static DocumentLibrary instance;
+
+    private final File directory;
+
+    // Segment file of each document and the number the next one is named with, guarded by this
+    private final Map<String, File> segmentFiles = new HashMap<>();
+    private long nextSequence;
+
+    // Replaced on every change, never modified, so searches read it without locking
+    private volatile Map<String, IndexSegment> segments;
+
+    /**
+     * One chunk found by a search
+     */
+    public static class Hit {
+        public final IndexSegment document;
+        public final int chunkId;
+        public final float score;
+
+        Hit(IndexSegment document, int chunkId, float score) {
+            this.document = document;
+            this.chunkId = chunkId;
+            this.score = score;
+        }
+
+        public CharSequence getText() {
+            return document.getChunk(chunkId);
+        }
+    }
+
+    /**
+     * Shared library under the app files dir, kept across app updates unlike the cache
+     */
+    public static synchronized DocumentLibrary getInstance(Context context) {
+        if (instance == null) {
+            instance = new DocumentLibrary(new File(context.getFilesDir(), "library"));
+        }
+        return instance;
+    }
+
+    /**
+     * Open the library in a directory, mapping every segment in it. Reads the disk, so
+     * not for the main thread.
+     */
+    public DocumentLibrary(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+
+        Map<String, IndexSegment> opened = new LinkedHashMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(sequence(a), sequence(b)));
+            for (File file : files) {
+                try {
+                    IndexSegment segment = IndexSegment.open(file);
+                    File replaced = segmentFiles.put(segment.getKey(), file);
+                    if (replaced != null) {
+                        // Left behind by an add that stopped before removing the older copy
+                        opened.remove(segment.getKey());
+                        replaced.delete();
+                    }
+                    opened.put(segment.getKey(), segment);
+                    nextSequence = Math.max(nextSequence, sequence(file) + 1);
+                } catch (IOException e) {
+                    Log.w(TAG, "Dropping unreadable segment: " + e.getMessage());
+                    file.delete();
+                }
+            }
+        }
+        segments = Collections.unmodifiableMap(opened);
+    }
+
+    /**
+     * Documents in the library, in the order they were added
+     */
+    public List<IndexSegment> getDocuments() {
+        return new ArrayList<>(segments.values());
+    }
+
+    public int getDocumentCount() {
+        return segments.size();
+    }
+
+    public boolean contains(String key) {
+        return segments.containsKey(key);
+    }
+
+    /**
+     * Add a document, replacing any earlier copy with the same key
+     */
+    public synchronized void add(String key, String name, DocumentIndex index) throws IOException {
+        File file = new File(directory, nextSequence + "-" + key + SEGMENT_SUFFIX);
+        File temp = new File(directory, key + ".tmp");
+        try {
+            IndexSegment.write(temp, key, name, index);
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } finally {
+            temp.delete();
+        }
+        nextSequence++;
+
+        Map<String, IndexSegment> updated = new LinkedHashMap<>(segments);
+        updated.remove(key);
+        updated.put(key, IndexSegment.open(file));
+        segments = Collections.unmodifiableMap(updated);
+        File replaced = segmentFiles.put(key, file);
+        if (replaced != null) {
+            replaced.delete();
+        }
+    }
+
+    /**
+     * Remove a document. Searches already running keep reading its mapping.
+     */
+    public synchronized void remove(String key) {
+        if (!segments.containsKey(key)) {
+            return;
+        }
+        Map<String, IndexSegment> updated = new LinkedHashMap<>(segments);
+        updated.remove(key);
+        segments = Collections.unmodifiableMap(updated);
+        segmentFiles.remove(key).delete();
+    }
+
+    /**
+     * Rank the chunks of every document against a query with BM25
+     * @return Up to maxResults hits, best first; empty if nothing matches
+     */
+    public List<Hit> search(String query, int maxResults) {
+        IndexSegment[] documents = segments.values().toArray(new IndexSegment[0]);
+        if (documents.length == 0 || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+
+        // Look every term up first, idf and the average length are over the whole library
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(DocumentIndex.tokenize(query)));
+        int[][] termPositions = new int[documents.length][terms.size()];
+        int[] documentFrequencies = new int[terms.size()];
+        long chunkCount = 0;
+        long totalTokens = 0;
+        for (int d = 0; d < documents.length; d++) {
+            chunkCount += documents[d].getChunkCount();
+            totalTokens += documents[d].getTotalTokens();
+        }
+        boolean matched = false;
+        for (int t = 0; t < terms.size(); t++) {
+            byte[] term = terms.get(t).getBytes(StandardCharsets.UTF_8);
+            for (int d = 0; d < documents.length; d++) {
+                int position = documents[d].findTerm(term);
+                termPositions[d][t] = position;
+                if (position >= 0) {
+                    documentFrequencies[t] += documents[d].getDocumentFrequency(position);
+                    matched = true;
+                }
+            }
+        }
+        if (!matched || chunkCount == 0) {
+            return Collections.emptyList();
+        }
+
+        float[] idfs = new float[terms.size()];
+        for (int t = 0; t < idfs.length; t++) {
+            int df = documentFrequencies[t];
+            idfs[t] = (float) Math.log(1 + (chunkCount - df + 0.5) / (df + 0.5));
+        }
+        float averageLength = (float) totalTokens / chunkCount;
+
+        // One task per worker, each taking every n-th document
+        int workers = Math.min(CORE_COUNT, documents.length);
+        List<Future<List<Hit>>> futures = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            int first = w;
+            futures.add(searchPool.submit(() -> {
+                HitHeap heap = new HitHeap(maxResults);
+                float[] scores = new float[0];
+                for (int d = first; d < documents.length; d += workers) {
+                    IndexSegment document = documents[d];
+                    int chunks = document.getChunkCount();
+                    if (scores.length < chunks) {
+                        scores = new float[chunks];
+                    } else {
+                        Arrays.fill(scores, 0, chunks, 0f);
+                    }
+                    for (int t = 0; t < idfs.length; t++) {
+                        if (termPositions[d][t] >= 0) {
+                            document.score(termPositions[d][t], idfs[t], averageLength, scores);
+                        }
+                    }
+                    for (int c = 0; c < chunks; c++) {
+                        if (scores[c] > 0) {
+                            heap.offer(document, c, scores[c]);
+                        }
+                    }
+                }
+                return heap.toList();
+            }));
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        try {
+            for (Future<List<Hit>> future : futures) {
+                hits.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            for (Future<List<Hit>> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Search failed", e.getCause());
+        }
+
+        Collections.sort(hits, (a, b) -> Float.compare(b.score, a.score));
+        return hits.size() > maxResults ? new ArrayList<>(hits.subList(0, maxResults)) : hits;
+    }
+
+    /**
+     * Hits as one context, each passage labelled with its document
+     */
+    public static String joinHits(List<Hit> hits) {
+        StringBuilder context = new StringBuilder();
+        for (int i = 0; i < hits.size(); i++) {
+            if (i > 0) {
+                context.append(DocumentIndex.CHUNK_SEPARATOR);
+            }
+            context.append(label(hits.get(i))).append(hits.get(i).getText());
+        }
+        return context.toString();
+    }
+
+    /**
+     * Line naming the document a passage came from
+     */
+    static String label(Hit hit) {
+        return "[" + hit.document.getName() + "]\n";
+    }
+
+    /**
+     * Position of a segment file in the order documents were added, 0 for files named
+     * by key alone before the order was kept
+     */
+    private static long sequence(File file) {
+        String name = file.getName();
+        int dash = name.indexOf('-');
+        try {
+            return dash > 0 ? Long.parseLong(name.substring(0, dash)) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Min-heap of the best hits seen by one worker, the weakest evicted first
+     */
+    private static class HitHeap {
+        private final Hit[] heap;
+        private int size;
+
+        HitHeap(int capacity) {
+            heap = new Hit[capacity];
+        }
+
+        void offer(IndexSegment document, int chunkId, float score) {
+            if (size < heap.length) {
+                heap[size] = new Hit(document, chunkId, score);
+                siftUp(size++);
+            } else if (score > heap[0].score) {
+                heap[0] = new Hit(document, chunkId, score);
+                siftDown(0);
+            }
+        }
+
+        List<Hit> toList() {
+            return new ArrayList<>(Arrays.asList(heap).subList(0, size));
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (heap[index].score >= heap[parent].score) {
+                    return;
+                }
+                swap(index, parent);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int smallest = index;
+                int left = index * 2 + 1;
+                int right = left + 1;
+                if (left < size && heap[left].score < heap[smallest].score) {
+                    smallest = left;
+                }
+                if (right < size && heap[right].score < heap[smallest].score) {
+                    smallest = right;
+                }
+                if (smallest == index) {
+                    return;
+                }
+                swap(index, smallest);
+                index = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            Hit tmp = heap[a];
+            heap[a] = heap[b];
+            heap[b] = tmp;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.softweb.chatwithpdf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A document split into sections along its bookmarks, for reading only the parts a
+ * question is about. Each bookmark starts a section that runs to the next one, titled
+ * with the bookmark and its parents; sections longer than {@link #MAX_SECTION_PAGES}
+ * are split, and a document without bookmarks is cut into equal parts. Questions are
+ * matched against the section titles, rarer title words counting for more.
+ */
+public class DocumentOutline {
+
+    static final int MAX_SECTION_PAGES = 24;
+
+    private final List<Section> sections;
+    // Sections whose titles contain each term
+    private final Map<String, Integer> titleFrequencies = new HashMap<>();
+
+    /**
+     * A run of pages under one heading
+     */
+    public static class Section {
+        public final int index;
+        public final String title;
+        public final int startPage; // 1-based
+        public final int endPage; // 1-based, inclusive
+        final List<String> terms;
+
+        Section(int index, String title, int startPage, int endPage) {
+            this.index = index;
+            this.title = title;
+            this.startPage = startPage;
+            this.endPage = endPage;
+            this.terms = new ArrayList<>(new LinkedHashSet<>(DocumentIndex.tokenize(title)));
+        }
+
+        public int getPageCount() {
+            return endPage - startPage + 1;
+        }
+    }
+
+    private DocumentOutline(List<Section> sections) {
+        this.sections = Collections.unmodifiableList(sections);
+        for (Section section : sections) {
+            for (String term : section.terms) {
+                Integer count = titleFrequencies.get(term);
+                titleFrequencies.put(term, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    /**
+     * @param entries Flattened bookmarks in reading order, as {@link PdfDocumentSession#getOutline()} returns them
+     * @param pageCount Pages in the document
+     */
+    public static DocumentOutline build(List<PdfDocumentSession.OutlineEntry> entries, int pageCount) {
+        List<Section> sections = new ArrayList<>();
+
+        // Title of each level above the current bookmark, so "Pumps" reads "Maintenance > Pumps"
+        List<String> path = new ArrayList<>();
+        List<String> starts = new ArrayList<>();
+        List<Integer> startPages = new ArrayList<>();
+        for (PdfDocumentSession.OutlineEntry entry : entries) {
+            while (path.size() > entry.level) {
+                path.remove(path.size() - 1);
+            }
+            String title = entry.title != null ? entry.title.trim() : "";
+            path.add(title);
+            if (entry.pageNumber < 1 || entry.pageNumber > pageCount) {
+                continue;
+            }
+            String fullTitle = join(path);
+            int last = startPages.size() - 1;
+            if (last >= 0 && startPages.get(last) == entry.pageNumber) {
+                // Bookmarks on the same page head one section
+                starts.set(last, starts.get(last) + " / " + fullTitle);
+            } else if (last < 0 || entry.pageNumber > startPages.get(last)) {
+                starts.add(fullTitle);
+                startPages.add(entry.pageNumber);
+            }
+        }
+
+        if (startPages.isEmpty()) {
+            addParts(sections, "Pages", 1, pageCount);
+        } else {
+            if (startPages.get(0) > 1) {
+                addParts(sections, "Front matter", 1, startPages.get(0) - 1);
+            }
+            for (int i = 0; i < startPages.size(); i++) {
+                int end = i + 1 < startPages.size() ? startPages.get(i + 1) - 1 : pageCount;
+                addParts(sections, starts.get(i), startPages.get(i), end);
+            }
+        }
+        return new DocumentOutline(sections);
+    }
+
+    private static void addParts(List<Section> sections, String title, int startPage, int endPage) {
+        for (int start = startPage; start <= endPage; start += MAX_SECTION_PAGES) {
+            int end = Math.min(start + MAX_SECTION_PAGES - 1, endPage);
+            String partTitle = endPage - startPage < MAX_SECTION_PAGES ? title
+                    : title + " (pages " + start + "-" + end + ")";
+            sections.add(new Section(sections.size(), partTitle, start, end));
+        }
+    }
+
+    private static String join(List<String> path) {
+        StringBuilder title = new StringBuilder();
+        for (String part : path) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            if (title.length() > 0) {
+                title.append(" > ");
+            }
+            title.append(part);
+        }
+        return title.toString();
+    }
+
+    public List<Section> getSections() {
+        return sections;
+    }
+
+    /**
+     * Sections whose titles match the question, best first, up to a page budget
+     * @return Empty if no title shares a word with the question
+     */
+    public List<Section> select(String question, int maxPages) {
+        return select(question, maxPages, new BitSet());
+    }
+
+    /**
+     * Sections whose titles match the question, best first, up to a page budget
+     * that the excluded sections do not count against
+     * @param excluded Indexes of sections to leave out, e.g. those already read
+     * @return Empty if no other title shares a word with the question
+     */
+    public List<Section> select(String question, int maxPages, BitSet excluded) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(DocumentIndex.tokenize(question)));
+        float[] scores = new float[sections.size()];
+        List<Section> matching = new ArrayList<>();
+        for (Section section : sections) {
+            if (excluded.get(section.index)) {
+                continue;
+            }
+            for (String term : terms) {
+                if (section.terms.contains(term)) {
+                    int frequency = titleFrequencies.get(term);
+                    scores[section.index] += (float) Math.log(1 + (sections.size() - frequency + 0.5) / (frequency + 0.5));
+                }
+            }
+            if (scores[section.index] > 0) {
+                matching.add(section);
+            }
+        }
+        // Best match first; on a tie the shorter section, it is cheaper to read
+        Collections.sort(matching, (a, b) -> scores[a.index] != scores[b.index]
+                ? Float.compare(scores[b.index], scores[a.index])
+                : Integer.compare(a.getPageCount(), b.getPageCount()));
+
+        List<Section> selected = new ArrayList<>();
+        int pages = 0;
+        for (Section section : matching) {
+            if (pages + section.getPageCount() > maxPages) {
+                continue;
+            }
+            selected.add(section);
+            pages += section.getPageCount();
+        }
+        return selected;
+    }
+}
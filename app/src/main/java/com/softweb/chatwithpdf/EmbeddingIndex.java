@@ -0,0 +1,172 @@
+package com.softweb.chatwithpdf;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Dense vectors of the document chunks, for finding passages that say the same thing
+ * in other words. Each chunk is hashed into a fixed number of signed buckets over its
+ * words, word pairs and character trigrams, so "calibrate" and "calibration" land close
+ * together without a model or a vocabulary. Vectors are L2-normalized and quantized to
+ * one byte per dimension in a single array, and a query is compared against all of them
+ * with an integer dot product. Not thread-safe, {@link DocumentIndex} calls it under its lock.
+ */
+public class EmbeddingIndex {
+
+    static final int DIMENSIONS = 256;
+
+    // Cosine similarity below this is hashing noise rather than shared content
+    static final float MIN_SIMILARITY = 0.2f;
+
+    private static final float WORD_WEIGHT = 1f;
+    private static final float BIGRAM_WEIGHT = 0.5f;
+    private static final float TRIGRAM_WEIGHT = 2f;
+
+    private static final int BIGRAM_SEED = 0x6b43a9b5;
+    private static final int TRIGRAM_SEED = 0x2f7e1c83;
+
+    // Words too common to say what a passage is about
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "by", "can", "do", "does", "for", "from",
+            "has", "have", "how", "in", "is", "it", "its", "of", "on", "or", "that", "the", "this",
+            "to", "was", "what", "when", "where", "which", "who", "why", "will", "with", "you"));
+
+    // Vector of chunk i at [i * DIMENSIONS, (i + 1) * DIMENSIONS)
+    private byte[] vectors = new byte[64 * DIMENSIONS];
+    // Multiplier turning a chunk's quantized components back into its unit vector
+    private float[] scales = new float[64];
+    private int size;
+
+    /**
+     * Add the vector of the next chunk, chunk ids match the order of calls
+     */
+    public void add(CharSequence chunk) {
+        if (size == scales.length) {
+            vectors = Arrays.copyOf(vectors, size * 2 * DIMENSIONS);
+            scales = Arrays.copyOf(scales, size * 2);
+        }
+        scales[size] = embed(chunk, vectors, size * DIMENSIONS);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Heap taken by the vectors, including room reserved for growth
+     */
+    public long getMemoryBytes() {
+        return vectors.length + 4L * scales.length;
+    }
+
+    /**
+     * Cosine similarity of the query to every chunk
+     * @return One similarity per chunk, 0 for all if the query has no features
+     */
+    public float[] similarities(CharSequence query) {
+        float[] similarities = new float[size];
+        byte[] queryVector = new byte[DIMENSIONS];
+        float queryScale = embed(query, queryVector, 0);
+        if (queryScale == 0) {
+            return similarities;
+        }
+
+        for (int chunkId = 0, base = 0; chunkId < size; chunkId++, base += DIMENSIONS) {
+            // Four independent sums over primitive arrays, which the compiler can vectorize
+            int sum0 = 0;
+            int sum1 = 0;
+            int sum2 = 0;
+            int sum3 = 0;
+            for (int d = 0; d < DIMENSIONS; d += 4) {
+                sum0 += queryVector[d] * vectors[base + d];
+                sum1 += queryVector[d + 1] * vectors[base + d + 1];
+                sum2 += queryVector[d + 2] * vectors[base + d + 2];
+                sum3 += queryVector[d + 3] * vectors[base + d + 3];
+            }
+            similarities[chunkId] = (sum0 + sum1 + sum2 + sum3) * queryScale * scales[chunkId];
+        }
+        return similarities;
+    }
+
+    /**
+     * Chunks most similar to the query, ignoring those below {@link #MIN_SIMILARITY}
+     * @return Up to maxResults chunk ids, most similar first
+     */
+    public int[] search(CharSequence query, int maxResults) {
+        float[] similarities = similarities(query);
+        Integer[] candidates = new Integer[size];
+        int count = 0;
+        for (int chunkId = 0; chunkId < size; chunkId++) {
+            if (similarities[chunkId] >= MIN_SIMILARITY) {
+                candidates[count++] = chunkId;
+            }
+        }
+        Arrays.sort(candidates, 0, count, (a, b) -> Float.compare(similarities[b], similarities[a]));
+
+        int[] results = new int[Math.min(count, Math.max(maxResults, 0))];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = candidates[i];
+        }
+        return results;
+    }
+
+    /**
+     * Hash the text's features into a unit vector and quantize it into out
+     * @return The scale of the quantized components, 0 if the text has no features
+     */
+    static float embed(CharSequence text, byte[] out, int offset) {
+        float[] vector = new float[DIMENSIONS];
+        List<String> words = DocumentIndex.tokenize(text);
+        String previous = null;
+        for (String word : words) {
+            if (STOP_WORDS.contains(word)) {
+                previous = null;
+                continue;
+            }
+            int wordHash = word.hashCode();
+            addFeature(vector, wordHash, WORD_WEIGHT);
+            if (previous != null) {
+                addFeature(vector, (previous.hashCode() * 31 + wordHash) ^ BIGRAM_SEED, BIGRAM_WEIGHT);
+            }
+            // Trigrams with word boundaries, so shared stems count even when the endings differ
+            int length = word.length();
+            for (int i = -1; i + 2 <= length; i++) {
+                char first = i < 0 ? '^' : word.charAt(i);
+                char last = i + 2 < length ? word.charAt(i + 2) : '$';
+                addFeature(vector, (first * 961 + word.charAt(i + 1) * 31 + last) ^ TRIGRAM_SEED, TRIGRAM_WEIGHT);
+            }
+            previous = word;
+        }
+
+        double norm = 0;
+        float maxComponent = 0;
+        for (float component : vector) {
+            norm += component * component;
+            maxComponent = Math.max(maxComponent, Math.abs(component));
+        }
+        if (norm == 0) {
+            Arrays.fill(out, offset, offset + DIMENSIONS, (byte) 0);
+            return 0;
+        }
+
+        // Scaled so the largest component is 127, then the scale maps back to unit length
+        float quantize = 127f / maxComponent;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            out[offset + d] = (byte) Math.round(vector[d] * quantize);
+        }
+        return (float) (1 / (quantize * Math.sqrt(norm)));
+    }
+
+    private static void addFeature(float[] vector, int hash, float weight) {
+        // Murmur3 finalizer, low bits pick the bucket and a high bit the sign
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        vector[hash & (DIMENSIONS - 1)] += hash < 0 ? -weight : weight;
+    }
+}
@@ -0,0 +1,315 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of extracted page text, keyed by a SHA-256 hash of the PDF bytes.
+ * Entries are stored as {@link PageTextFile}s under the app cache dir and evicted
+ * least-recently-used first once the total size exceeds the limit. Pages are appended
+ * as they are extracted, so an entry may be partial until extraction finishes; opened
+ * entries are shared for the life of the process, so a recreated activity reads the
+ * same mapping the extraction is still appending to. A small alias file per URI +
+ * size + modification time lets a reopened document skip hashing entirely.
+ */
+public class ExtractionCache {
+
+    private static final String TAG = "ExtractionCache";
+
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final String ENTRY_SUFFIX = ".pages";
+    private static final String ALIAS_DIR = "aliases";
+
+    private static ExtractionCache instance;
+
+    private final File directory;
+    private final File aliasDirectory;
+    private final long maxBytes;
+
+    // Keys of documents whose provider reports no size/mtime, so they are hashed once per process
+    private final Map<Uri, String> unfingerprintedKeys = new HashMap<>();
+
+    // Entries opened by this process, by key
+    private final Map<String, PageTextFile> openEntries = new HashMap<>();
+
+    /**
+     * Shared cache under the app cache dir
+     */
+    public static synchronized ExtractionCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ExtractionCache(new File(context.getCacheDir(), "extraction"), DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    public ExtractionCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.aliasDirectory = new File(directory, ALIAS_DIR);
+        this.maxBytes = maxBytes;
+        aliasDirectory.mkdirs();
+    }
+
+    /**
+     * Content key for a PDF. Uses the URI + size + mtime alias when one is known,
+     * otherwise streams the file through SHA-256 and records the alias.
+     */
+    public String getContentKey(Context context, Uri pdfUri) throws IOException {
+        String fingerprint = getFingerprint(context, pdfUri);
+        File alias = fingerprint != null ? new File(aliasDirectory, sha256Hex(fingerprint)) : null;
+
+        if (alias != null && alias.isFile()) {
+            String key = readAlias(alias);
+            if (key != null && new File(directory, key + ENTRY_SUFFIX).isFile()) {
+                return key;
+            }
+        }
+
+        if (fingerprint == null) {
+            synchronized (unfingerprintedKeys) {
+                String key = unfingerprintedKeys.get(pdfUri);
+                if (key != null) {
+                    return key;
+                }
+            }
+        }
+
+        String key;
+        try (InputStream inputStream = context.getContentResolver().openInputStream(pdfUri)) {
+            if (inputStream == null) {
+                throw new IOException("Could not open input stream for PDF");
+            }
+            key = sha256Hex(inputStream);
+        }
+
+        if (alias == null) {
+            synchronized (unfingerprintedKeys) {
+                unfingerprintedKeys.put(pdfUri, key);
+            }
+        } else {
+            try (OutputStream out = new FileOutputStream(alias)) {
+                out.write(key.getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write alias: " + e.getMessage());
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Look up cached pages, complete or partial
+     * @return The mapped pages, or null on a miss
+     */
+    public synchronized PageTextFile get(String key) {
+        File entry = new File(directory, key + ENTRY_SUFFIX);
+        if (!entry.isFile()) {
+            openEntries.remove(key);
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+
+        PageTextFile pages = openEntries.get(key);
+        if (pages != null) {
+            return pages;
+        }
+        try {
+            pages = PageTextFile.open(entry);
+            if (pages.isComplete()) {
+                pages.close();
+            }
+            openEntries.put(key, pages);
+            return pages;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cache entry: " + e.getMessage());
+            entry.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Start an empty entry that pages are appended to as they are extracted,
+     * replacing any existing entry for the key
+     */
+    public synchronized PageTextFile create(String key, int pageCount) throws IOException {
+        PageTextFile previous = openEntries.remove(key);
+        if (previous != null) {
+            previous.close();
+        }
+        // Unlink rather than truncate, views into the old file must not lose their pages
+        File entry = new File(directory, key + ENTRY_SUFFIX);
+        entry.delete();
+        PageTextFile pages = PageTextFile.create(entry, pageCount);
+        openEntries.put(key, pages);
+        evict(key);
+        return pages;
+    }
+
+    /**
+     * Close an entry once all its pages are in, then evict down to the size limit
+     */
+    public synchronized void finish(String key) {
+        PageTextFile pages = openEntries.get(key);
+        if (pages != null) {
+            try {
+                pages.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close cache entry: " + e.getMessage());
+            }
+        }
+        evict(key);
+    }
+
+    /**
+     * Store the pages of a fully extracted document, then evict down to the size limit
+     */
+    public synchronized void put(String key, List<? extends CharSequence> pages) {
+        File entry = new File(directory, key + ENTRY_SUFFIX);
+        File temp = new File(directory, key + ".tmp");
+        try {
+            PageTextFile.write(temp, pages);
+            if (!temp.renameTo(entry)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache pages: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        openEntries.remove(key);
+        evict(key);
+    }
+
+    /**
+     * Delete least recently used entries until the cache fits, never the one just written
+     */
+    private void evict(String keepKey) {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File entry : entries) {
+            totalBytes += entry.length();
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            if (entry.getName().equals(keepKey + ENTRY_SUFFIX)) {
+                continue;
+            }
+            totalBytes -= entry.length();
+            entry.delete();
+            // Views already handed out stay valid, the mapping outlives the file
+            String key = entry.getName().substring(0, entry.getName().length() - ENTRY_SUFFIX.length());
+            PageTextFile evicted = openEntries.remove(key);
+            if (evicted != null) {
+                try {
+                    evicted.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close evicted entry: " + e.getMessage());
+                }
+            }
+        }
+
+        // Aliases pointing at evicted entries are useless now
+        File[] aliases = aliasDirectory.listFiles();
+        if (aliases != null) {
+            for (File alias : aliases) {
+                String key = readAlias(alias);
+                if (key == null || !new File(directory, key + ENTRY_SUFFIX).isFile()) {
+                    alias.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * URI + size + last modified time, or null if the provider does not report them
+     */
+    private static String getFingerprint(Context context, Uri pdfUri) {
+        if ("file".equals(pdfUri.getScheme())) {
+            File file = new File(pdfUri.getPath());
+            return pdfUri + "|" + file.length() + "|" + file.lastModified();
+        }
+
+        try (Cursor cursor = context.getContentResolver().query(pdfUri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                int modifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (sizeIndex != -1 && modifiedIndex != -1
+                        && !cursor.isNull(sizeIndex) && !cursor.isNull(modifiedIndex)) {
+                    return pdfUri + "|" + cursor.getLong(sizeIndex) + "|" + cursor.getLong(modifiedIndex);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not query PDF metadata: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static String readAlias(File alias) {
+        byte[] buffer = new byte[64];
+        try (InputStream in = new FileInputStream(alias)) {
+            int length = in.read(buffer);
+            return length == 64 ? new String(buffer, StandardCharsets.US_ASCII) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static String sha256Hex(InputStream inputStream) throws IOException {
+        MessageDigest digest = newSha256();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    static String sha256Hex(String value) {
+        return toHex(newSha256().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,142 @@
+package com.softweb.chatwithpdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Sends POST requests to the backend. Kept behind an interface so the connection
+ * handling can be swapped or benchmarked without touching the protocol code.
+ */
+public interface HttpTransport {
+
+    String JSON = "application/json; charset=utf-8";
+
+    /**
+     * Send a request and return once the response status and headers are in
+     * @param headers Extra request headers, may be empty
+     * @param cancellation Aborts the connection, also while the response is being read
+     */
+    Response post(String url, RequestBody body, Map<String, String> headers,
+                  CancellationToken cancellation) throws IOException;
+
+    /**
+     * Make sure a connection to the server is open and ready for the next request,
+     * e.g. while the user is still typing a question. Transports without a
+     * connection pool have nothing to warm.
+     * @param url A cheap GET endpoint on the server
+     */
+    default void warmUp(String url, CancellationToken cancellation) throws IOException {
+    }
+
+    /**
+     * Request body written straight to the connection
+     */
+    interface RequestBody {
+        String contentType();
+
+        /**
+         * Length in bytes, or -1 if it is not known before writing
+         */
+        long contentLength() throws IOException;
+
+        /**
+         * May be called more than once, e.g. to retry without compression
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Response whose body is already decoded. Closing it returns the connection for reuse.
+     */
+    interface Response extends Closeable {
+        int code();
+
+        /**
+         * @return The header value, or null if absent
+         */
+        String header(String name);
+
+        /**
+         * Response body, or the error body for non-2xx responses; never null
+         */
+        InputStream body() throws IOException;
+    }
+
+    /**
+     * Writes the content of a JSON body
+     */
+    interface JsonContent {
+        void writeTo(JsonStreamWriter json) throws IOException;
+    }
+
+    /**
+     * Body serialized ahead of time, sent as it is
+     */
+    static RequestBody bytes(String contentType, byte[] bytes) {
+        return new RequestBody() {
+            @Override
+            public String contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return bytes.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+        };
+    }
+
+    /**
+     * JSON body serialized straight to the connection. The content is written twice:
+     * once into a counter, so the body can go out with a fixed length, then for real.
+     */
+    static RequestBody json(JsonContent content) {
+        return new RequestBody() {
+            private long length = -1;
+
+            @Override
+            public String contentType() {
+                return JSON;
+            }
+
+            @Override
+            public long contentLength() throws IOException {
+                if (length < 0) {
+                    JsonStreamWriter counter = new JsonStreamWriter(new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                        }
+                    });
+                    // Serializing into the counter costs what serializing does, without any I/O
+                    long span = Metrics.begin(Metrics.Stage.SERIALIZATION);
+                    try {
+                        content.writeTo(counter);
+                    } finally {
+                        Metrics.end(Metrics.Stage.SERIALIZATION, span);
+                    }
+                    length = counter.getByteCount();
+                }
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                JsonStreamWriter json = new JsonStreamWriter(out);
+                content.writeTo(json);
+                json.flush();
+            }
+        };
+    }
+}
@@ -0,0 +1,342 @@
+package com.softweb.chatwithpdf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One document's inverted index in a single read-only, memory-mapped file, written
+ * once when the document joins the {@link DocumentLibrary}.
+ * Layout: a header with the section offsets; the document key and name; per chunk its
+ * char offset, BM25 length and model tokens; a sorted table of term offsets; the chunk
+ * text in UTF-16; then the term dictionary, where each entry is the term in UTF-8, its
+ * document frequency and its postings as varint chunk id deltas and frequencies.
+ * Terms are found by binary search over the mapping and postings are decoded straight
+ * from it, so an open segment costs no heap beyond this object.
+ */
+public class IndexSegment {
+
+    private static final int MAGIC = 0x43575358; // "CWSX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    private final String key;
+    private final String name;
+    private final MappedByteBuffer mapped;
+    private final int chunkCount;
+    private final int termCount;
+    private final long totalTokens;
+    private final int chunkOffsetsStart;
+    private final int chunkLengthsStart;
+    private final int chunkModelTokensStart;
+    private final int termOffsetsStart;
+    private final int textStart;
+    private final int dictionaryStart;
+
+    private IndexSegment(MappedByteBuffer mapped, File file) throws IOException {
+        this.mapped = mapped;
+        if (mapped.capacity() < HEADER_BYTES || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            throw new IOException("Not an index segment: " + file);
+        }
+        chunkCount = mapped.getInt(8);
+        termCount = mapped.getInt(12);
+        totalTokens = mapped.getLong(16);
+        textStart = mapped.getInt(24);
+        dictionaryStart = mapped.getInt(28);
+
+        int position = HEADER_BYTES;
+        int keyChars = mapped.getInt(position);
+        key = readString(position + 4, keyChars);
+        position += 4 + 2 * keyChars;
+        int nameChars = mapped.getInt(position);
+        name = readString(position + 4, nameChars);
+        position += 4 + 2 * nameChars;
+
+        chunkOffsetsStart = position;
+        chunkLengthsStart = chunkOffsetsStart + 4 * (chunkCount + 1);
+        chunkModelTokensStart = chunkLengthsStart + 4 * chunkCount;
+        termOffsetsStart = chunkModelTokensStart + 4 * chunkCount;
+        if (chunkCount < 0 || termCount < 0 || termOffsetsStart + 4L * termCount != textStart
+                || textStart > dictionaryStart || dictionaryStart > mapped.capacity()) {
+            throw new IOException("Corrupt index segment: " + file);
+        }
+    }
+
+    /**
+     * Write a document's index as a segment
+     * @param key Content key of the document
+     * @param name Name shown for the document
+     */
+    public static void write(File file, String key, String name, DocumentIndex index) throws IOException {
+        // Encode every term's postings first, the dictionary is written sorted by term bytes
+        List<byte[]> terms = new ArrayList<>();
+        List<byte[]> entries = new ArrayList<>();
+        index.forEachTerm((term, chunkIds, frequencies, size) -> {
+            byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
+            VarintBuffer entry = new VarintBuffer(termBytes.length + 4 + size * 2);
+            entry.putVarint(termBytes.length);
+            entry.put(termBytes);
+            entry.putVarint(size);
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                entry.putVarint(chunkIds[i] - previous);
+                entry.putVarint(frequencies[i]);
+                previous = chunkIds[i];
+            }
+            terms.add(termBytes);
+            entries.add(entry.toByteArray());
+        });
+        Integer[] order = new Integer[terms.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compareBytes(terms.get(a), terms.get(b)));
+
+        int chunkCount = index.getChunkCount();
+        int termCount = order.length;
+        long textChars = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            textChars += index.getChunk(i).length();
+        }
+        long textStart = HEADER_BYTES + 4 + 2L * key.length() + 4 + 2L * name.length()
+                + 4L * (chunkCount + 1) + 8L * chunkCount + 4L * termCount;
+        long dictionaryStart = textStart + 2 * textChars;
+        long dictionaryBytes = 0;
+        for (byte[] entry : entries) {
+            dictionaryBytes += entry.length;
+        }
+        if (dictionaryStart + dictionaryBytes > Integer.MAX_VALUE) {
+            throw new IOException("Document too large for one segment");
+        }
+
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(chunkCount);
+            out.writeInt(termCount);
+            out.writeLong(index.getTotalTokens());
+            out.writeInt((int) textStart);
+            out.writeInt((int) dictionaryStart);
+            out.writeInt(key.length());
+            out.writeChars(key);
+            out.writeInt(name.length());
+            out.writeChars(name);
+
+            int charOffset = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                out.writeInt(charOffset);
+                charOffset += index.getChunk(i).length();
+            }
+            out.writeInt(charOffset);
+            for (int i = 0; i < chunkCount; i++) {
+                out.writeInt(index.getChunkLength(i));
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                out.writeInt(index.getChunkTokens(i));
+            }
+            int entryOffset = 0;
+            for (int i : order) {
+                out.writeInt(entryOffset);
+                entryOffset += entries.get(i).length;
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                CharSequence chunk = index.getChunk(i);
+                for (int c = 0, n = chunk.length(); c < n; c++) {
+                    out.writeChar(chunk.charAt(c));
+                }
+            }
+            for (int i : order) {
+                out.write(entries.get(i));
+            }
+            // On disk before the caller renames it into place, so a crash cannot leave a short segment
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+    }
+
+    /**
+     * Map a segment for querying
+     * @throws IOException if the file is missing or not a valid segment
+     */
+    public static IndexSegment open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the channel is closed and after the file is deleted
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new IndexSegment(mapped, file);
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getTotalTokens() {
+        return totalTokens;
+    }
+
+    /**
+     * Text of a chunk as a view over the mapping
+     */
+    public CharSequence getChunk(int chunkId) {
+        int start = textStart + 2 * mapped.getInt(chunkOffsetsStart + 4 * chunkId);
+        int end = textStart + 2 * mapped.getInt(chunkOffsetsStart + 4 * (chunkId + 1));
+        ByteBuffer chunk = mapped.duplicate();
+        chunk.limit(end).position(start);
+        return chunk.slice().asCharBuffer();
+    }
+
+    /**
+     * Estimated model tokens of a chunk, see {@link TokenEstimator}
+     */
+    public int getChunkTokens(int chunkId) {
+        return mapped.getInt(chunkModelTokensStart + 4 * chunkId);
+    }
+
+    /**
+     * Position of a term's dictionary entry, past the term itself
+     * @param term UTF-8 bytes of the term
+     * @return The position, or -1 if no chunk contains the term
+     */
+    int findTerm(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        int[] position = new int[1];
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            position[0] = dictionaryStart + mapped.getInt(termOffsetsStart + 4 * middle);
+            int length = readVarint(position);
+            int comparison = compareTerm(position[0], length, term);
+            if (comparison == 0) {
+                return position[0] + length;
+            }
+            if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Chunks containing the term at a position from {@link #findTerm}
+     */
+    int getDocumentFrequency(int termPosition) {
+        return readVarint(new int[]{termPosition});
+    }
+
+    /**
+     * Add a term's BM25 contribution to the score of every chunk containing it
+     * @param scores One score per chunk of this segment
+     */
+    void score(int termPosition, float idf, float averageLength, float[] scores) {
+        int[] position = {termPosition};
+        int size = readVarint(position);
+        int chunkId = 0;
+        for (int i = 0; i < size; i++) {
+            chunkId += readVarint(position);
+            int tf = readVarint(position);
+            int length = mapped.getInt(chunkLengthsStart + 4 * chunkId);
+            float norm = DocumentIndex.K1 * (1 - DocumentIndex.B + DocumentIndex.B * length / averageLength);
+            scores[chunkId] += idf * tf * (DocumentIndex.K1 + 1) / (tf + norm);
+        }
+    }
+
+    private int readVarint(int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = mapped.get(position[0]++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private int compareTerm(int start, int length, byte[] term) {
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int difference = (mapped.get(start + i) & 0xFF) - (term[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - term.length;
+    }
+
+    private String readString(int start, int chars) {
+        ByteBuffer bytes = mapped.duplicate();
+        bytes.limit(start + 2 * chars).position(start);
+        return bytes.slice().asCharBuffer().toString();
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Growable byte array with varint encoding
+     */
+    private static class VarintBuffer {
+        private byte[] bytes;
+        private int size;
+
+        VarintBuffer(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        void putVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void put(byte[] values) {
+            ensure(values.length);
+            System.arraycopy(values, 0, bytes, size, values.length);
+            size += values.length;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.softweb.chatwithpdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes JSON as UTF-8 straight to an output stream, escaping string values from
+ * any CharSequence as it goes. Nothing is built up in memory: document text goes
+ * from the index to the connection through one byte buffer, which is reused by
+ * every writer on the same thread, so a thread must finish one writer before it
+ * starts the next. Commas are inserted automatically; the caller is trusted to
+ * nest begin/end calls correctly.
+ */
+public class JsonStreamWriter {
+
+    private static final int BUFFER_BYTES = 8 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_BYTES];
+        }
+    };
+
+    private final OutputStream out;
+    private final byte[] buffer = buffers.get();
+    private int position;
+
+    // Whether the current object or array needs a comma before its next element
+    private boolean needsComma;
+    private long written;
+
+    public JsonStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        separate();
+        writeByte('{');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        writeByte('}');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        separate();
+        writeByte('[');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        writeByte(']');
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Name of the next member of the current object
+     */
+    public JsonStreamWriter name(CharSequence name) throws IOException {
+        separate();
+        writeString(name);
+        writeByte(':');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter value(CharSequence value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        separate();
+        writeString(value);
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * A string value made of several parts joined by a separator, without joining them first
+     */
+    public JsonStreamWriter value(Iterable<? extends CharSequence> parts, CharSequence separator) throws IOException {
+        separate();
+        writeByte('"');
+        boolean first = true;
+        for (CharSequence part : parts) {
+            if (!first) {
+                writeEscaped(separator);
+            }
+            writeEscaped(part);
+            first = false;
+        }
+        writeByte('"');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        separate();
+        // Digits are ASCII, so write them without going through a String
+        if (value < 0) {
+            writeByte('-');
+        }
+        writeDigits(value);
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) throws IOException {
+        separate();
+        writeAscii(value ? "true" : "false");
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter nullValue() throws IOException {
+        separate();
+        writeAscii("null");
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Push buffered bytes to the stream; does not flush or close the stream itself
+     */
+    public void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            written += position;
+            position = 0;
+        }
+    }
+
+    /**
+     * Bytes produced so far, including those still buffered
+     */
+    public long getByteCount() {
+        return written + position;
+    }
+
+    private void separate() throws IOException {
+        if (needsComma) {
+            writeByte(',');
+        }
+    }
+
+    private void writeString(CharSequence value) throws IOException {
+        writeByte('"');
+        writeEscaped(value);
+        writeByte('"');
+    }
+
+    private void writeEscaped(CharSequence value) throws IOException {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        writeByte('\\');
+                        writeByte(c);
+                        break;
+                    case '\n':
+                        writeByte('\\');
+                        writeByte('n');
+                        break;
+                    case '\r':
+                        writeByte('\\');
+                        writeByte('r');
+                        break;
+                    case '\t':
+                        writeByte('\\');
+                        writeByte('t');
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writeUnicodeEscape(c);
+                        } else {
+                            writeByte(c);
+                        }
+                }
+            } else if (c < 0x800) {
+                writeByte(0xC0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeByte(0xF0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                writeByte(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are not valid UTF-8, escape them like JSONObject would
+                writeUnicodeEscape(c);
+            } else {
+                writeByte(0xE0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3F));
+                writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void writeUnicodeEscape(char c) throws IOException {
+        writeByte('\\');
+        writeByte('u');
+        writeByte(HEX[(c >> 12) & 0xF]);
+        writeByte(HEX[(c >> 8) & 0xF]);
+        writeByte(HEX[(c >> 4) & 0xF]);
+        writeByte(HEX[c & 0xF]);
+    }
+
+    private void writeDigits(long value) throws IOException {
+        // Works on the negative value so Long.MIN_VALUE needs no special case
+        long negative = value < 0 ? value : -value;
+        if (negative <= -10) {
+            writeDigits(-(negative / 10));
+        }
+        writeByte('0' - (int) (negative % 10));
+    }
+
+    private void writeAscii(String ascii) throws IOException {
+        for (int i = 0; i < ascii.length(); i++) {
+            writeByte(ascii.charAt(i));
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = (byte) b;
+    }
+}
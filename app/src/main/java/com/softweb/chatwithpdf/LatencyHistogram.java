@@ -0,0 +1,119 @@
+package com.softweb.chatwithpdf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in the style of an HDR histogram: each power of two is
+ * split into 32 linear buckets, so any recorded value is known to within about 3%
+ * from a nanosecond up to 18 minutes, in a fixed 9 KB. Recording is lock-free and
+ * allocation-free and may happen on any thread. Reads are not a consistent snapshot
+ * while other threads record, which is fine for percentiles of thousands of samples.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // Longer durations are counted as this one
+    static final long MAX_NANOS = (1L << 40) - 1;
+
+    static final int BUCKET_COUNT = bucketIndex(MAX_NANOS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_NANOS));
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        long max;
+        while (value > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, value)) {
+            // Lost to another thread, check against its maximum
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getMeanNanos() {
+        long samples = count.get();
+        return samples == 0 ? 0 : totalNanos.get() / samples;
+    }
+
+    /**
+     * Smallest duration that the given share of samples did not exceed, as the upper
+     * end of its bucket but never above the largest sample
+     * @param percentile From 0 to 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long samples = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            samples += counts.get(i);
+        }
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * samples));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Samples in a bucket, from 0 to {@link #BUCKET_COUNT} - 1
+     */
+    long getBucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * Bucket a duration is counted in. Values below 64 have a bucket each; above that,
+     * the top six bits of the value pick its bucket within its power of two.
+     */
+    static int bucketIndex(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value | SUB_BUCKET_COUNT);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * Smallest duration counted in a bucket
+     */
+    static long lowestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return (long) (bucket - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+
+    /**
+     * Largest duration counted in a bucket
+     */
+    static long highestValue(int bucket) {
+        return bucket + 1 < BUCKET_COUNT ? lowestValue(bucket + 1) - 1 : MAX_NANOS;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
@@ -0,0 +1,123 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A document too large to read up front. Opening it reads only the page count and
+ * the outline; each question then reads the sections whose titles match it, through
+ * {@link PdfTextExtractor#extractText(Context, Uri, int, int)}, and adds them to an
+ * index that grows over the conversation. Pages read once stay in the extraction
+ * cache, so sections read in earlier sessions are indexed again without extraction.
+ * Chunk ids depend on the order sections were read, so the index has no content key
+ * and questions send their context inline.
+ */
+public class LazyDocument {
+
+    private static final String TAG = "LazyDocument";
+
+    // Pages read for one question at most, keeps the time to answer independent of the document size
+    static final int MAX_PAGES_PER_QUESTION = 48;
+
+    private final Context context;
+    private final Uri pdfUri;
+    private final int pageCount;
+    private final DocumentOutline outline;
+    private final DocumentIndex index = new DocumentIndex();
+    // Sections already in the index
+    private final BitSet readSections = new BitSet();
+
+    private LazyDocument(Context context, Uri pdfUri, int pageCount, DocumentOutline outline) {
+        this.context = context.getApplicationContext();
+        this.pdfUri = pdfUri;
+        this.pageCount = pageCount;
+        this.outline = outline;
+    }
+
+    /**
+     * Read the outline, and index the sections already in the extraction cache
+     */
+    public static LazyDocument open(Context context, Uri pdfUri) throws IOException {
+        PdfDocumentSession session = PdfDocumentSession.get(context, pdfUri);
+        int pageCount = session.getPageCount();
+        LazyDocument document = new LazyDocument(context, pdfUri, pageCount,
+                DocumentOutline.build(session.getOutline(), pageCount));
+
+        for (DocumentOutline.Section section : document.outline.getSections()) {
+            if (PdfTextExtractor.hasPages(context, pdfUri, section.startPage, section.endPage)) {
+                document.read(section);
+            }
+        }
+        Log.d(TAG, pageCount + " pages in " + document.outline.getSections().size() + " sections, "
+                + document.readSections.cardinality() + " already extracted");
+        return document;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public DocumentIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Sections read so far
+     */
+    public synchronized int getReadSectionCount() {
+        return readSections.cardinality();
+    }
+
+    /**
+     * Read the sections a question is likely about, unless they are already indexed.
+     * When no title matches and nothing indexed matches either, the next unread
+     * sections in reading order are read instead. Runs on the question's worker thread.
+     */
+    public synchronized void prepare(String question) {
+        List<DocumentOutline.Section> sections = outline.select(question, MAX_PAGES_PER_QUESTION, readSections);
+        if (sections.isEmpty() && index.search(question, 1).length == 0) {
+            sections = nextUnread(MAX_PAGES_PER_QUESTION);
+        }
+
+        long start = System.nanoTime();
+        int pages = 0;
+        for (DocumentOutline.Section section : sections) {
+            if (!readSections.get(section.index) && !Thread.currentThread().isInterrupted()) {
+                read(section);
+                pages += section.getPageCount();
+            }
+        }
+        if (pages > 0) {
+            Log.d(TAG, "Read " + pages + " pages for a question in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+    }
+
+    private List<DocumentOutline.Section> nextUnread(int maxPages) {
+        List<DocumentOutline.Section> sections = new ArrayList<>();
+        int pages = 0;
+        for (DocumentOutline.Section section : outline.getSections()) {
+            if (readSections.get(section.index)) {
+                continue;
+            }
+            if (pages + section.getPageCount() > maxPages && !sections.isEmpty()) {
+                break;
+            }
+            sections.add(section);
+            pages += section.getPageCount();
+        }
+        return sections;
+    }
+
+    private void read(DocumentOutline.Section section) {
+        String text = PdfTextExtractor.extractText(context, pdfUri, section.startPage, section.endPage);
+        // The heading helps retrieval when the pages themselves never name the topic
+        index.addText(section.title + "\n" + text);
+        readSections.set(section.index);
+    }
+}
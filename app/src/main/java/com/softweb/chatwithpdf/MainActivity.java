@@ -10,6 +10,9 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.OpenableColumns;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -28,26 +31,32 @@ import androidx.drawerlayout.widget.DrawerLayout;
 import com.google.android.material.navigation.NavigationView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.core.os.BundleCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
+    private static final String TAG = "MainActivity";
+
     private static final int PICK_PDF_REQUEST = 1;
     private static final int STORAGE_PERMISSION_CODE = 2;
-    private static final long MAX_FILE_SIZE_BYTES = 10 * 1024 * 1024; // 10 MB max
-    private static final int MAX_TEXT_CHARS = 50000; // ~50K chars for model context
+    private static final int PICK_LIBRARY_REQUEST = 3;
+    private static final long MAX_FILE_SIZE_BYTES = 200 * 1024 * 1024; // 200 MB max, loaded with random access
+    private static final String STATE_PDF_URI = "pdfUri";
     
     // URLs
     private static final String PRIVACY_POLICY_URL = "https://omwaman1.github.io/chatwithpdf/privacy-policy.html";
     private static final String PLAY_STORE_URL = "https://play.google.com/store/search?q=pub:Softweb_technologies&c=apps";
     
     private Uri pdfUri;
-    private String pdfText = "";
 
     private TextView fileNameTextView;
     private EditText questionEditText;
@@ -60,9 +69,44 @@ public class MainActivity extends AppCompatActivity {
 
     private RecyclerView chatRecyclerView;
     private ChatAdapter chatAdapter;
-    private List<ChatMessage> chatMessages;
 
-    private ChatApiClient chatApiClient;
+    // Outlives this activity, so rotation keeps the document, the chat and questions in flight
+    private ChatSession session;
+
+    private final ChatSession.Listener sessionListener = new ChatSession.Listener() {
+        @Override
+        public void onMessageAdded(int position) {
+            chatAdapter.notifyItemInserted(position);
+            chatRecyclerView.scrollToPosition(position);
+        }
+
+        @Override
+        public void onMessageChanged(int position) {
+            chatAdapter.notifyItemChanged(position);
+            chatRecyclerView.scrollToPosition(position);
+        }
+
+        @Override
+        public void onHistoryChanged() {
+            chatAdapter.setHistory(session.getHistory());
+            scrollToLatest();
+        }
+
+        @Override
+        public void onLibraryLoaded() {
+            updateTitle();
+        }
+
+        @Override
+        public void onBusyChanged(boolean busy) {
+            progressBar.setVisibility(busy ? View.VISIBLE : View.GONE);
+        }
+
+        @Override
+        public void onError(String message) {
+            Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -79,18 +123,36 @@ public class MainActivity extends AppCompatActivity {
         navigationView = findViewById(R.id.navigationView);
         chatRecyclerView = findViewById(R.id.chatRecyclerView);
 
-        chatMessages = new ArrayList<>();
-        chatAdapter = new ChatAdapter(chatMessages);
+        session = ChatSession.getInstance(this);
+        chatAdapter = new ChatAdapter(session.getHistory());
         chatRecyclerView.setAdapter(chatAdapter);
         chatRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        session.attach(sessionListener);
 
-        // Initialize Chat API Client
-        chatApiClient = new ChatApiClient(this);
-        
-        fileNameTextView.setText("Ready - Select a PDF");
 
         uploadButton.setOnClickListener(v -> requestStoragePermission());
         askButton.setOnClickListener(v -> askQuestion());
+        // Prepared while typing, so asking only has to send it
+        questionEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                session.onQuestionTyped(s.toString());
+            }
+        });
+        askButton.setOnLongClickListener(v -> {
+            if (session.cancelPendingQuestions()) {
+                Toast.makeText(this, "Question cancelled", Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        });
         menuButton.setOnClickListener(v -> openDrawer());
         
         // Set up navigation drawer item selection
@@ -104,10 +166,50 @@ public class MainActivity extends AppCompatActivity {
                 shareApp();
             } else if (id == R.id.nav_more_apps) {
                 openMoreApps();
+            } else if (id == R.id.nav_library_add) {
+                selectLibraryPdfs();
+            } else if (id == R.id.nav_library_mode) {
+                item.setChecked(!item.isChecked());
+                session.setLibraryMode(item.isChecked());
+                updateTitle();
+            } else if (id == R.id.nav_library_manage) {
+                showLibraryDialog();
+            } else if (id == R.id.nav_metrics) {
+                showMetricsDialog();
             }
             drawerLayout.closeDrawer(GravityCompat.START);
             return true;
         });
+        
+        // After a rotation the session still has the document; after the process was
+        // killed its pages come back from the extraction cache instead of the PDF
+        Uri restoredUri = session.getDocumentUri();
+        if (restoredUri == null && savedInstanceState != null) {
+            restoredUri = BundleCompat.getParcelable(savedInstanceState, STATE_PDF_URI, Uri.class);
+        }
+        if (restoredUri != null) {
+            pdfUri = restoredUri;
+            session.openDocument(pdfUri);
+        }
+        navigationView.getMenu().findItem(R.id.nav_library_mode).setChecked(session.isLibraryMode());
+        navigationView.getMenu().findItem(R.id.nav_metrics).setVisible(Metrics.isEnabled());
+        updateTitle();
+        progressBar.setVisibility(session.isBusy() ? View.VISIBLE : View.GONE);
+        scrollToLatest();
+    }
+
+    private void scrollToLatest() {
+        if (chatAdapter.getItemCount() > 0) {
+            chatRecyclerView.scrollToPosition(chatAdapter.getItemCount() - 1);
+        }
+    }
+    
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (pdfUri != null) {
+            outState.putParcelable(STATE_PDF_URI, pdfUri);
+        }
     }
     
     private void openDrawer() {
@@ -137,7 +239,7 @@ public class MainActivity extends AppCompatActivity {
             .setMessage("Version: " + version + "\n\n" +
                     "Chat with PDF lets you upload any PDF document and ask questions about its content using AI.\n\n" +
                     "Features:\n" +
-                    "• Upload PDF files (max 10MB)\n" +
+                    "• Upload PDF files (max 200MB)\n" +
                     "• Ask questions in natural language\n" +
                     "• Get AI-powered answers\n\n" +
                     "Developed by Softweb Technologies")
@@ -161,6 +263,76 @@ public class MainActivity extends AppCompatActivity {
         startActivity(Intent.createChooser(shareIntent, "Share via"));
     }
     
+    private void selectLibraryPdfs() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("application/pdf");
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        startActivityForResult(intent, PICK_LIBRARY_REQUEST);
+    }
+    
+    private void showLibraryDialog() {
+        DocumentLibrary library = session.getLibrary();
+        if (library == null) {
+            Toast.makeText(this, "The library is still loading", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        List<IndexSegment> documents = library.getDocuments();
+        if (documents.isEmpty()) {
+            Toast.makeText(this, "The library is empty", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] names = new String[documents.size()];
+        boolean[] selected = new boolean[documents.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = documents.get(i).getName();
+        }
+        
+        new AlertDialog.Builder(this)
+            .setTitle("Select PDFs to remove")
+            .setMultiChoiceItems(names, selected, (d, which, checked) -> selected[which] = checked)
+            .setPositiveButton("Remove", (d, w) -> {
+                for (int i = 0; i < selected.length; i++) {
+                    if (selected[i]) {
+                        session.removeFromLibrary(documents.get(i).getKey());
+                    }
+                }
+                updateTitle();
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+    
+    private void showMetricsDialog() {
+        new AlertDialog.Builder(this)
+            .setTitle("Performance Metrics")
+            .setMessage(Metrics.summary())
+            .setPositiveButton("OK", null)
+            .setNeutralButton("Export JSON", (d, w) -> exportMetrics())
+            .setNegativeButton("Reset", (d, w) -> Metrics.reset())
+            .show();
+    }
+    
+    /**
+     * Write a snapshot to the app's external files dir, where adb can pull it from
+     */
+    private void exportMetrics() {
+        File dir = getExternalFilesDir(null);
+        File file = new File(dir != null ? dir : getFilesDir(), "metrics-" + System.currentTimeMillis() + ".json");
+        new Thread(() -> {
+            String message;
+            try (OutputStream out = new FileOutputStream(file)) {
+                Metrics.writeSnapshot(out);
+                message = "Metrics written to " + file.getPath();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not export metrics: " + e.getMessage(), e);
+                message = "Could not export metrics";
+            }
+            String result = message;
+            runOnUiThread(() -> Toast.makeText(this, result, Toast.LENGTH_LONG).show());
+        }, "metrics-export").start();
+    }
+    
     private void openMoreApps() {
         try {
             Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(PLAY_STORE_URL));
@@ -217,12 +389,28 @@ public class MainActivity extends AppCompatActivity {
             // Validate file size
             long fileSize = getFileSize(pdfUri);
             if (fileSize > MAX_FILE_SIZE_BYTES) {
-                Toast.makeText(this, "❌ File too large! Max size is 10MB", Toast.LENGTH_LONG).show();
+                Toast.makeText(this, "❌ File too large! Max size is 200MB", Toast.LENGTH_LONG).show();
                 return;
             }
             
-            displayFileName(pdfUri);
-            extractPdfText();
+            updateTitle();
+            session.openDocument(pdfUri);
+        } else if (requestCode == PICK_LIBRARY_REQUEST && resultCode == RESULT_OK && data != null) {
+            List<Uri> uris = new ArrayList<>();
+            if (data.getClipData() != null) {
+                for (int i = 0; i < data.getClipData().getItemCount(); i++) {
+                    uris.add(data.getClipData().getItemAt(i).getUri());
+                }
+            } else if (data.getData() != null) {
+                uris.add(data.getData());
+            }
+            
+            List<String> names = new ArrayList<>();
+            for (Uri uri : uris) {
+                String name = getDisplayName(uri);
+                names.add(name != null ? name : uri.getLastPathSegment());
+            }
+            session.importDocuments(uris, names);
         }
     }
     
@@ -238,8 +426,24 @@ public class MainActivity extends AppCompatActivity {
         return 0;
     }
 
+    /**
+     * Library size in library mode, otherwise the open document's name
+     */
+    private void updateTitle() {
+        if (session.isLibraryMode() && session.getLibrary() == null) {
+            fileNameTextView.setText("Library: loading...");
+        } else if (session.isLibraryMode()) {
+            int count = session.getLibrary().getDocumentCount();
+            fileNameTextView.setText("Library: " + count + " PDF" + (count == 1 ? "" : "s"));
+        } else if (pdfUri != null) {
+            fileNameTextView.setText(getDisplayName(pdfUri));
+        } else {
+            fileNameTextView.setText("Ready - Select a PDF");
+        }
+    }
+
     @SuppressLint("Range")
-    private void displayFileName(Uri uri) {
+    private String getDisplayName(Uri uri) {
         String displayName = null;
         if (uri.getScheme().equals("content")) {
             try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
@@ -250,36 +454,7 @@ public class MainActivity extends AppCompatActivity {
         } else if (uri.getScheme().equals("file")) {
             displayName = new File(uri.getPath()).getName();
         }
-        fileNameTextView.setText(displayName);
-    }
-
-    private void extractPdfText() {
-        progressBar.setVisibility(View.VISIBLE);
-        
-        new Thread(() -> {
-            try {
-                pdfText = PdfTextExtractor.extractText(this, pdfUri);
-                
-                runOnUiThread(() -> {
-                    progressBar.setVisibility(View.GONE);
-                    
-                    if (pdfText.isEmpty()) {
-                        Toast.makeText(this, "Could not extract text from PDF", Toast.LENGTH_LONG).show();
-                    } else {
-                        // Show clean confirmation without messy preview
-                        chatMessages.add(new ChatMessage("✅ PDF ready! Ask me anything about this document.", false));
-                        chatAdapter.notifyDataSetChanged();
-                        chatRecyclerView.scrollToPosition(chatMessages.size() - 1);
-                    }
-                });
-                
-            } catch (Exception e) {
-                runOnUiThread(() -> {
-                    progressBar.setVisibility(View.GONE);
-                    Toast.makeText(this, "Error: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                });
-            }
-        }).start();
+        return displayName;
     }
 
     private void askQuestion() {
@@ -290,45 +465,29 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
         
-        if (pdfText.isEmpty()) {
-            Toast.makeText(this, "Please upload a PDF first", Toast.LENGTH_SHORT).show();
+        if (!session.isDocumentReady()) {
+            Toast.makeText(this, session.isLibraryMode() ? "Please add PDFs to the library first"
+                    : "Please upload a PDF first", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        progressBar.setVisibility(View.VISIBLE);
         questionEditText.setText("");
-
-        chatMessages.add(new ChatMessage(question, true));
-        chatAdapter.notifyDataSetChanged();
-        chatRecyclerView.scrollToPosition(chatMessages.size() - 1);
-
-        chatApiClient.askQuestion(pdfText, question, new ChatApiClient.ChatCallback() {
-            @Override
-            public void onResult(String response) {
-                progressBar.setVisibility(View.GONE);
-                chatMessages.add(new ChatMessage(response, false));
-                chatAdapter.notifyDataSetChanged();
-                chatRecyclerView.scrollToPosition(chatMessages.size() - 1);
-            }
-
-            @Override
-            public void onError(String error) {
-                progressBar.setVisibility(View.GONE);
-                Toast.makeText(MainActivity.this, error, Toast.LENGTH_LONG).show();
-            }
-
-            @Override
-            public void onProgress(String status) {
-                // Could show status in UI if needed
-            }
-        });
+        session.ask(question);
+    }
+    
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        PdfDocumentSession.onTrimMemory(level);
     }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (chatApiClient != null) {
-            chatApiClient.close();
+        session.detach(sessionListener);
+        // A configuration change keeps everything running for the next activity
+        if (isFinishing()) {
+            session.close();
         }
     }
 }
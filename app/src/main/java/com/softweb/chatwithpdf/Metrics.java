@@ -0,0 +1,250 @@
+package com.softweb.chatwithpdf;
+
+import android.os.Trace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide timings of each stage a document and a question go through, kept in
+ * {@link LatencyHistogram}s, plus a few counters. Each span can also show up as an
+ * {@link Trace} section in system traces. Off by default: while disabled nothing is
+ * allocated and a span costs one volatile read.
+ * <pre>
+ * long span = Metrics.begin(Metrics.Stage.RETRIEVAL);
+ * try {
+ *     ...
+ * } finally {
+ *     Metrics.end(Metrics.Stage.RETRIEVAL, span);
+ * }
+ * </pre>
+ */
+public final class Metrics {
+
+    public enum Stage {
+        PDF_LOAD("pdf.load"),
+        PAGE_EXTRACTION("pdf.extractPage"),
+        NORMALIZATION("text.normalize"),
+        RETRIEVAL("question.retrieve"),
+        SERIALIZATION("request.serialize"),
+        NETWORK_SEND("request.send"),
+        // From asking to the first answer bytes
+        FIRST_BYTE("answer.firstByte"),
+        RENDER("chat.bind"),
+        TEXT_LAYOUT("chat.layoutText");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Counter {
+        PAGES_EXTRACTED("pdf.pages"),
+        CHUNKS_RETRIEVED("question.chunks"),
+        REQUEST_BYTES("request.bytes"),
+        ANSWER_CACHE_HITS("answer.cacheHits");
+
+        final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    private static class Registry {
+        final boolean tracing;
+        final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+        final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+        Registry(boolean tracing) {
+            this.tracing = tracing;
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    // Null while disabled
+    private static volatile Registry registry;
+
+    private Metrics() {
+    }
+
+    /**
+     * Start or stop recording; starting again begins from empty histograms
+     * @param tracing Whether spans also emit trace sections, only possible on a device
+     */
+    public static void setEnabled(boolean enabled, boolean tracing) {
+        registry = enabled ? new Registry(tracing) : null;
+    }
+
+    public static boolean isEnabled() {
+        return registry != null;
+    }
+
+    /**
+     * Start timing a stage on the current thread
+     * @return Token for {@link #end}, 0 while disabled
+     */
+    public static long begin(Stage stage) {
+        Registry current = registry;
+        if (current == null) {
+            return 0;
+        }
+        if (current.tracing) {
+            Trace.beginSection(stage.label);
+        }
+        // The lowest bit remembers whether a section has to be ended
+        return System.nanoTime() & ~1L | (current.tracing ? 1 : 0);
+    }
+
+    /**
+     * Finish a span on the thread that began it
+     */
+    public static void end(Stage stage, long span) {
+        end(stage, span, 1);
+    }
+
+    /**
+     * Finish a span that covered a number of like items, such as a slice of pages,
+     * recording an equal share of it for each
+     */
+    public static void end(Stage stage, long span, int items) {
+        if (span == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - span;
+        if ((span & 1) != 0) {
+            Trace.endSection();
+        }
+        Registry current = registry;
+        if (current != null && items > 0) {
+            LatencyHistogram histogram = current.histograms[stage.ordinal()];
+            for (int i = 0; i < items; i++) {
+                histogram.record(elapsed / items);
+            }
+        }
+    }
+
+    /**
+     * Record a duration measured some other way, such as one that spans threads
+     */
+    public static void record(Stage stage, long nanos) {
+        Registry current = registry;
+        if (current != null) {
+            current.histograms[stage.ordinal()].record(nanos);
+        }
+    }
+
+    public static void count(Counter counter, long delta) {
+        Registry current = registry;
+        if (current != null) {
+            current.counters.addAndGet(counter.ordinal(), delta);
+        }
+    }
+
+    /**
+     * Histogram of a stage, null while disabled
+     */
+    public static LatencyHistogram getHistogram(Stage stage) {
+        Registry current = registry;
+        return current != null ? current.histograms[stage.ordinal()] : null;
+    }
+
+    public static long getCount(Counter counter) {
+        Registry current = registry;
+        return current != null ? current.counters.get(counter.ordinal()) : 0;
+    }
+
+    public static void reset() {
+        Registry current = registry;
+        if (current != null) {
+            for (LatencyHistogram histogram : current.histograms) {
+                histogram.reset();
+            }
+            for (int i = 0; i < current.counters.length(); i++) {
+                current.counters.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * One line per stage that has samples and per counter, for a debug screen
+     */
+    public static String summary() {
+        Registry current = registry;
+        if (current == null) {
+            return "Metrics are disabled";
+        }
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = current.histograms[stage.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            summary.append(String.format(Locale.US, "%s: %d, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f ms%n",
+                    stage.label, histogram.getCount(), millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(90)), millis(histogram.getValueAtPercentile(99)),
+                    millis(histogram.getMaxNanos())));
+        }
+        for (Counter counter : Counter.values()) {
+            summary.append(counter.label).append(": ").append(current.counters.get(counter.ordinal())).append('\n');
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Write every stage and counter as JSON. Durations are in nanoseconds; the non-empty
+     * buckets of each histogram are included as [highest value, count] pairs so the
+     * distribution can be rebuilt elsewhere.
+     */
+    public static void writeSnapshot(OutputStream out) throws IOException {
+        Registry current = registry;
+        JsonStreamWriter json = new JsonStreamWriter(out);
+        json.beginObject();
+        json.name("enabled").value(current != null);
+        json.name("stages").beginObject();
+        if (current != null) {
+            for (Stage stage : Stage.values()) {
+                writeHistogram(json.name(stage.label), current.histograms[stage.ordinal()]);
+            }
+        }
+        json.endObject();
+        json.name("counters").beginObject();
+        if (current != null) {
+            for (Counter counter : Counter.values()) {
+                json.name(counter.label).value(current.counters.get(counter.ordinal()));
+            }
+        }
+        json.endObject();
+        json.endObject();
+        json.flush();
+    }
+
+    private static void writeHistogram(JsonStreamWriter json, LatencyHistogram histogram) throws IOException {
+        json.beginObject();
+        json.name("count").value(histogram.getCount());
+        json.name("meanNanos").value(histogram.getMeanNanos());
+        json.name("p50Nanos").value(histogram.getValueAtPercentile(50));
+        json.name("p90Nanos").value(histogram.getValueAtPercentile(90));
+        json.name("p99Nanos").value(histogram.getValueAtPercentile(99));
+        json.name("maxNanos").value(histogram.getMaxNanos());
+        json.name("buckets").beginArray();
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long count = histogram.getBucketCount(i);
+            if (count > 0) {
+                json.beginArray().value(LatencyHistogram.highestValue(i)).value(count).endArray();
+            }
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,95 @@
+package com.softweb.chatwithpdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Token budget of the model behind the backend, read from model_budget.json.
+ * The backend reads the same file and the app bundles it as an asset, so both
+ * sides pack prompts to one budget and nothing uploaded is cut off on arrival.
+ */
+public class ModelBudget {
+
+    static final String FILE_NAME = "model_budget.json";
+
+    /**
+     * Used if the bundled file cannot be read, matches the file as shipped
+     */
+    static final ModelBudget DEFAULT = new ModelBudget("meta-llama/Llama-3.2-1B-Instruct", 4096, 200, 64);
+
+    private final String model;
+    private final int contextTokens;
+    private final int answerTokens;
+    private final int promptTokens;
+
+    /**
+     * @param contextTokens Tokens per request, prompt and answer together
+     * @param answerTokens Tokens reserved for the answer
+     * @param promptTokens Tokens of the system prompt and template around the context and question
+     */
+    public ModelBudget(String model, int contextTokens, int answerTokens, int promptTokens) {
+        if (contextTokens <= answerTokens + promptTokens) {
+            throw new IllegalArgumentException("No room for input in " + contextTokens + " tokens");
+        }
+        this.model = model;
+        this.contextTokens = contextTokens;
+        this.answerTokens = answerTokens;
+        this.promptTokens = promptTokens;
+    }
+
+    /**
+     * Parse the shared config; fields it lacks keep their default
+     */
+    public static ModelBudget read(InputStream in) throws IOException {
+        String model = DEFAULT.model;
+        int contextTokens = DEFAULT.contextTokens;
+        int answerTokens = DEFAULT.answerTokens;
+        int promptTokens = DEFAULT.promptTokens;
+
+        JsonStreamReader json = new JsonStreamReader(in);
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "model":
+                    model = json.nextString();
+                    break;
+                case "context_tokens":
+                    contextTokens = json.nextInt();
+                    break;
+                case "answer_tokens":
+                    answerTokens = json.nextInt();
+                    break;
+                case "prompt_tokens":
+                    promptTokens = json.nextInt();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        try {
+            return new ModelBudget(model, contextTokens, answerTokens, promptTokens);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid model budget: " + e.getMessage());
+        }
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public int getContextTokens() {
+        return contextTokens;
+    }
+
+    public int getAnswerTokens() {
+        return answerTokens;
+    }
+
+    /**
+     * Tokens left for the document, question and history
+     */
+    public int getInputTokens() {
+        return contextTokens - answerTokens - promptTokens;
+    }
+}
@@ -0,0 +1,65 @@
+package com.softweb.chatwithpdf;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a one-time action on whichever thread gets to it first. Threads that arrive
+ * while it runs wait for it to finish instead of running it again, so e.g. the first
+ * extraction waits for a warm-up already under way. Plain Java so it stays testable.
+ */
+public class OnceLatch {
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Run the action unless it has run already; if another thread is running it,
+     * wait until it is done. An action that throws still counts as run.
+     * @return Whether this call ran the action
+     */
+    public boolean run(Runnable action) {
+        if (!started.compareAndSet(false, true)) {
+            await();
+            return false;
+        }
+        try {
+            action.run();
+        } finally {
+            done.countDown();
+        }
+        return true;
+    }
+
+    /**
+     * Wait until the action has finished, without giving up on interrupts, which are
+     * passed on to the caller once the wait is over
+     */
+    public void await() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the action at most the given time
+     * @return Whether it has finished
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+}
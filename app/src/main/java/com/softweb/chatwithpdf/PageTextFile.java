@@ -0,0 +1,318 @@
+package com.softweb.chatwithpdf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only file of per-page text that is memory-mapped on read.
+ * Layout: magic, version, expected page count, then one record per page: its index,
+ * its length in chars and its UTF-16 text. Pages may be appended in any order, e.g.
+ * the sections a question needs before the rest, and the page table is rebuilt from
+ * the records on open; a record cut short by a crash is dropped, so a partly extracted
+ * document can be resumed where it stopped. Pages are returned as views over the
+ * mapping, so reading a file does not copy its text onto the heap. While appending,
+ * the mapping is only renewed once the file has doubled since it was made; pages
+ * written after it are read into a buffer, so a file of n pages read as it is
+ * written leaves O(log n) mappings behind rather than n.
+ * Safe for one appending thread and any number of readers.
+ */
+public class PageTextFile implements Closeable {
+
+    private static final int MAGIC = 0x43575054; // "CWPT"
+    private static final int VERSION = 4; // 3: pages hold TextNormalizer output, 4: records carry their page index
+    private static final int HEADER_BYTES = 12;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    private final File file;
+    private final int expectedPageCount;
+    private FileChannel channel;
+
+    // Byte offset of each page's record, -1 while the page is missing
+    private final long[] recordOffsets;
+    private final int[] pageLengths;
+    private long end = HEADER_BYTES;
+    private int storedPageCount;
+    // Pages stored from the first one on without a gap
+    private int prefixPageCount;
+    private MappedByteBuffer mapped;
+    private int mappingCount;
+
+    private PageTextFile(File file, FileChannel channel, int expectedPageCount) {
+        this.file = file;
+        this.channel = channel;
+        this.expectedPageCount = expectedPageCount;
+        this.recordOffsets = new long[expectedPageCount];
+        this.pageLengths = new int[expectedPageCount];
+        Arrays.fill(recordOffsets, -1);
+    }
+
+    /**
+     * Start a new file for a document, replacing it if it exists
+     * @param expectedPageCount Pages the document has, so a partial file can be told from a complete one
+     */
+    public static PageTextFile create(File file, int expectedPageCount) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(expectedPageCount);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            return new PageTextFile(file, channel, expectedPageCount);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a complete file in one go
+     */
+    public static void write(File file, List<? extends CharSequence> pages) throws IOException {
+        try (PageTextFile pageFile = create(file, pages.size())) {
+            for (CharSequence page : pages) {
+                pageFile.appendPage(page);
+            }
+        }
+    }
+
+    /**
+     * Open an existing file, complete or partial, for reading and further appends
+     * @throws IOException if the file is missing or not a valid page text file
+     */
+    public static PageTextFile open(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("No page text file: " + file);
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if (size < HEADER_BYTES || channel.read(header, 0) < HEADER_BYTES) {
+                throw new IOException("Not a page text file: " + file);
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a page text file: " + file);
+            }
+            int expectedPageCount = header.getInt();
+            if (expectedPageCount < 0) {
+                throw new IOException("Corrupt page text file: " + file);
+            }
+
+            PageTextFile pageFile = new PageTextFile(file, channel, expectedPageCount);
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            long position = HEADER_BYTES;
+            while (pageFile.storedPageCount < expectedPageCount && position + RECORD_HEADER_BYTES <= size) {
+                recordHeader.clear();
+                channel.read(recordHeader, position);
+                int pageIndex = recordHeader.getInt(0);
+                int chars = recordHeader.getInt(4);
+                long end = position + RECORD_HEADER_BYTES + 2L * chars;
+                if (pageIndex < 0 || pageIndex >= expectedPageCount || chars < 0 || end > size
+                        || pageFile.hasPage(pageIndex)) {
+                    break;
+                }
+                pageFile.addRecord(pageIndex, position, chars);
+                position = end;
+            }
+            // Drop whatever an interrupted append left behind
+            if (position < size) {
+                channel.truncate(position);
+            }
+            return pageFile;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Append the text of page {@code pageIndex}. Pages already stored are left alone,
+     * so a second extraction of the same document appends nothing twice.
+     * @return Whether the page was written
+     */
+    public synchronized boolean appendPage(int pageIndex, CharSequence page) throws IOException {
+        if (pageIndex < 0 || pageIndex >= expectedPageCount) {
+            throw new IOException("Page " + pageIndex + " of " + expectedPageCount + " appended to " + file);
+        }
+        if (hasPage(pageIndex)) {
+            return false;
+        }
+        if (channel == null) {
+            throw new IOException("Page text file is closed: " + file);
+        }
+
+        long start = end;
+        channel.position(start);
+        ByteBuffer chunk = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+        chunk.putInt(pageIndex).putInt(page.length());
+        CharBuffer chars = chunk.asCharBuffer();
+        int headerBytes = RECORD_HEADER_BYTES;
+        for (int i = 0, n = page.length(); i < n; i++) {
+            if (!chars.hasRemaining()) {
+                flush(chunk, headerBytes + chars.position() * 2);
+                chars = chunk.asCharBuffer();
+                headerBytes = 0;
+            }
+            chars.put(page.charAt(i));
+        }
+        flush(chunk, headerBytes + chars.position() * 2);
+
+        addRecord(pageIndex, start, page.length());
+        return true;
+    }
+
+    /**
+     * Append the text of the first missing page
+     */
+    public synchronized void appendPage(CharSequence page) throws IOException {
+        if (isComplete()) {
+            throw new IOException("Page text file is already complete: " + file);
+        }
+        appendPage(prefixPageCount, page);
+    }
+
+    private void flush(ByteBuffer chunk, int bytes) throws IOException {
+        chunk.position(0).limit(bytes);
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        chunk.clear();
+    }
+
+    private void addRecord(int pageIndex, long offset, int chars) {
+        recordOffsets[pageIndex] = offset;
+        pageLengths[pageIndex] = chars;
+        end = offset + RECORD_HEADER_BYTES + 2L * chars;
+        storedPageCount++;
+        while (prefixPageCount < expectedPageCount && recordOffsets[prefixPageCount] >= 0) {
+            prefixPageCount++;
+        }
+    }
+
+    /**
+     * Pages stored from the first one on without a gap, where a sequential extraction resumes
+     */
+    public synchronized int getPageCount() {
+        return prefixPageCount;
+    }
+
+    /**
+     * Pages stored, in any order
+     */
+    public synchronized int getStoredPageCount() {
+        return storedPageCount;
+    }
+
+    /**
+     * Whether a page is stored
+     * @param pageIndex 0-based page index
+     */
+    public synchronized boolean hasPage(int pageIndex) {
+        return pageIndex >= 0 && pageIndex < expectedPageCount && recordOffsets[pageIndex] >= 0;
+    }
+
+    /**
+     * Pages the document has
+     */
+    public int getExpectedPageCount() {
+        return expectedPageCount;
+    }
+
+    /**
+     * Whether every page of the document is stored
+     */
+    public synchronized boolean isComplete() {
+        return storedPageCount == expectedPageCount;
+    }
+
+    /**
+     * Text of one page as a view over the mapped file, or a copy if appended since the last mapping
+     * @param pageIndex 0-based index of a stored page, see {@link #hasPage}
+     */
+    public synchronized CharSequence getPage(int pageIndex) {
+        if (!hasPage(pageIndex)) {
+            throw new IndexOutOfBoundsException("Page " + pageIndex + " is not stored");
+        }
+        long start = recordOffsets[pageIndex] + RECORD_HEADER_BYTES;
+        long pageEnd = start + 2L * pageLengths[pageIndex];
+        if (mapped == null || mapped.capacity() < pageEnd) {
+            if (channel != null && mapped != null && end < 2L * mapped.capacity()) {
+                return readPage(start, pageEnd);
+            }
+            remap();
+        }
+        ByteBuffer page = mapped.duplicate();
+        page.limit((int) pageEnd).position((int) start);
+        return page.slice().asCharBuffer();
+    }
+
+    /**
+     * Copy of a page written since the last mapping
+     */
+    private CharSequence readPage(long start, long pageEnd) {
+        ByteBuffer page = ByteBuffer.allocate((int) (pageEnd - start));
+        try {
+            while (page.hasRemaining()) {
+                if (channel.read(page, start + page.position()) < 0) {
+                    throw new IOException("Page cut short at " + (start + page.position()));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + file, e);
+        }
+        page.flip();
+        return page.asCharBuffer();
+    }
+
+    /**
+     * Map everything written so far. Views handed out earlier keep the old mapping alive.
+     */
+    private void remap() {
+        mappingCount++;
+        try {
+            if (channel != null) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            } else {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, end);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not map " + file, e);
+        }
+    }
+
+    /**
+     * Mappings made since the file was created or opened
+     */
+    synchronized int getMappingCount() {
+        return mappingCount;
+    }
+
+    /**
+     * Stop appending. Pages stay readable.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            if (storedPageCount > 0) {
+                remap();
+            }
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.softweb.chatwithpdf;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.text.PDFTextStripper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts PDF text on several cores.
+ * The page range is split into slices that workers claim in order. PDDocument and
+ * PDFTextStripper are not thread-safe, so the first worker reads through the shared
+ * {@link PdfDocumentSession} and every other worker loads its own copy of the
+ * document; the number of workers is capped by a memory ceiling for that reason.
+ * Pages are still delivered to the callback in page order.
+ */
+public class ParallelPdfExtractor {
+
+    private static final String TAG = "ParallelPdfExtractor";
+
+    static final int SLICE_PAGES = 8;
+
+    // Rough heap cost of one loaded document: stream data stays in the file or scratch
+    // file, so only the parsed object graph grows with the file size
+    private static final int FILE_SIZE_DIVISOR = 2;
+    private static final long MIN_DOCUMENT_HEAP_BYTES = 8 * 1024 * 1024;
+
+    private static final int CORE_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService workerPool = Executors.newFixedThreadPool(CORE_COUNT);
+
+    private final int maxWorkers;
+    private final long memoryCeilingBytes;
+
+    /**
+     * One worker per core, limited to a quarter of the heap
+     */
+    public ParallelPdfExtractor() {
+        this(CORE_COUNT, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * @param maxWorkers Upper bound on parallel workers (clamped to the core count)
+     * @param memoryCeilingBytes Heap the loaded documents may use together
+     */
+    public ParallelPdfExtractor(int maxWorkers, long memoryCeilingBytes) {
+        this.maxWorkers = Math.max(1, Math.min(maxWorkers, CORE_COUNT));
+        this.memoryCeilingBytes = memoryCeilingBytes;
+    }
+
+    /**
+     * How many workers fit under the memory ceiling for a file of this size
+     */
+    static int workersFor(long fileSizeBytes, long memoryCeilingBytes, int maxWorkers, int pageCount) {
+        long perWorker = MIN_DOCUMENT_HEAP_BYTES + fileSizeBytes / FILE_SIZE_DIVISOR;
+        long byMemory = Math.max(1, memoryCeilingBytes / perWorker);
+        int bySlices = (pageCount + SLICE_PAGES - 1) / SLICE_PAGES;
+        return (int) Math.max(1, Math.min(Math.min(byMemory, maxWorkers), bySlices));
+    }
+
+    /**
+     * Extract every page, delivering them to the callback in order on the calling thread.
+     * Stops early if the calling thread is interrupted.
+     * @return Number of pages delivered to the callback
+     */
+    public int extractPages(Context context, Uri pdfUri, PdfTextExtractor.PageCallback callback) {
+        return extractPages(context, pdfUri, 1, callback);
+    }
+
+    /**
+     * Extract the pages from firstPage on, e.g. to resume an interrupted extraction
+     * @param firstPage 1-based number of the first page to extract
+     * @return Number of pages delivered to the callback
+     */
+    public int extractPages(Context context, Uri pdfUri, int firstPage, PdfTextExtractor.PageCallback callback) {
+        PdfDocumentSession session = PdfDocumentSession.get(context, pdfUri);
+        int pageCount;
+        try {
+            pageCount = session.getPageCount();
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading PDF: " + e.getMessage(), e);
+            return 0;
+        }
+
+        int remaining = Math.max(0, pageCount - firstPage + 1);
+        if (remaining == 0) {
+            return 0;
+        }
+        int sliceCount = (remaining + SLICE_PAGES - 1) / SLICE_PAGES;
+        int workerCount = workersFor(getFileSize(context, pdfUri), memoryCeilingBytes, maxWorkers, remaining);
+        Log.d(TAG, "Extracting " + remaining + " of " + pageCount + " pages with " + workerCount + " workers");
+
+        SliceResults results = new SliceResults(sliceCount);
+        AtomicInteger nextSlice = new AtomicInteger();
+        List<Future<?>> workers = new ArrayList<>();
+
+        // The first worker reads through the shared session, the others load their own copy
+        workers.add(workerPool.submit(() -> runWorker(session::getPages, firstPage, pageCount, nextSlice, results)));
+        for (int i = 1; i < workerCount; i++) {
+            workers.add(workerPool.submit(() -> {
+                try (PDDocument document = PdfTextExtractor.openDocument(context, pdfUri)) {
+                    PDFTextStripper stripper = new PDFTextStripper();
+                    runWorker((startPage, endPage) -> {
+                        String[] pages = new String[endPage - startPage + 1];
+                        for (int page = startPage; page <= endPage; page++) {
+                            stripper.setStartPage(page);
+                            stripper.setEndPage(page);
+                            pages[page - startPage] = stripper.getText(document);
+                        }
+                        return pages;
+                    }, firstPage, pageCount, nextSlice, results);
+                } catch (IOException e) {
+                    // The remaining workers pick up this worker's share
+                    Log.w(TAG, "Worker could not load PDF: " + e.getMessage());
+                }
+            }));
+        }
+
+        int pagesDone = 0;
+        try {
+            for (int slice = 0; slice < sliceCount; slice++) {
+                String[] pages = results.await(slice);
+                if (pages == null) {
+                    break;
+                }
+                for (int i = 0; i < pages.length; i++) {
+                    callback.onPage(firstPage + slice * SLICE_PAGES + i, pageCount, pages[i]);
+                    pagesDone++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Extraction cancelled after " + pagesDone + " pages");
+            Thread.currentThread().interrupt();
+        } finally {
+            results.cancel();
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+
+        return pagesDone;
+    }
+
+    /**
+     * Source of page text for one worker
+     */
+    private interface PageSource {
+        String[] getPages(int startPage, int endPage) throws IOException;
+    }
+
+    private static void runWorker(PageSource source, int firstPage, int pageCount,
+                                  AtomicInteger nextSlice, SliceResults results) {
+        try {
+            int slice;
+            while ((slice = nextSlice.getAndIncrement()) < results.size() && !results.isCancelled()) {
+                int startPage = firstPage + slice * SLICE_PAGES;
+                int endPage = Math.min(startPage + SLICE_PAGES - 1, pageCount);
+                String[] pages;
+                long span = Metrics.begin(Metrics.Stage.PAGE_EXTRACTION);
+                try {
+                    pages = source.getPages(startPage, endPage);
+                } finally {
+                    Metrics.end(Metrics.Stage.PAGE_EXTRACTION, span, endPage - startPage + 1);
+                }
+                Metrics.count(Metrics.Counter.PAGES_EXTRACTED, pages.length);
+                results.put(slice, pages);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error extracting pages: " + e.getMessage(), e);
+            results.fail();
+        }
+    }
+
+    private static long getFileSize(Context context, Uri pdfUri) {
+        try (AssetFileDescriptor descriptor = context.getContentResolver().openAssetFileDescriptor(pdfUri, "r")) {
+            if (descriptor != null && descriptor.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                return descriptor.getLength();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read PDF size: " + e.getMessage());
+        }
+        // Unknown size, assume the worst so only one worker runs
+        return Long.MAX_VALUE / 2;
+    }
+
+    /**
+     * Finished slices waiting to be delivered in order
+     */
+    private static class SliceResults {
+        private final String[][] slices;
+        private boolean failed;
+        private volatile boolean cancelled;
+
+        SliceResults(int sliceCount) {
+            slices = new String[sliceCount][];
+        }
+
+        int size() {
+            return slices.length;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        synchronized void put(int slice, String[] pages) {
+            slices[slice] = pages;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Wait for a slice and release it, or null if a worker failed before producing it
+         */
+        synchronized String[] await(int slice) throws InterruptedException {
+            while (slices[slice] == null && !failed) {
+                wait();
+            }
+            String[] pages = slices[slice];
+            slices[slice] = null;
+            return pages;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.softweb.chatwithpdf;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDDocumentInformation;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import com.tom_roush.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import com.tom_roush.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineNode;
+import com.tom_roush.pdfbox.text.PDFTextStripper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one loaded PDDocument per URI so page count, page text, outline and
+ * metadata are all served from a single parse. PDDocument is not thread-safe, so
+ * every access holds the session lock; this makes a session safe to share with
+ * the extraction worker pool. The document is closed after an idle timeout or on
+ * memory pressure and reloaded transparently on the next access.
+ */
+public class PdfDocumentSession {
+
+    private static final String TAG = "PdfDocumentSession";
+
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+
+    private static final Map<Uri, PdfDocumentSession> sessions = new HashMap<>();
+    private static final ScheduledExecutorService idleTimer = Executors.newSingleThreadScheduledExecutor();
+
+    private final Context context;
+    private final Uri pdfUri;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private PDDocument document;
+    private PDFTextStripper stripper;
+    private long lastUsed;
+    private boolean idleCheckScheduled;
+
+    /**
+     * One entry of the document outline (bookmarks)
+     */
+    public static class OutlineEntry {
+        public final String title;
+        public final int pageNumber; // 1-based, 0 if the bookmark has no page destination
+        public final int level;
+
+        OutlineEntry(String title, int pageNumber, int level) {
+            this.title = title;
+            this.pageNumber = pageNumber;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Document information dictionary values, null where absent
+     */
+    public static class Metadata {
+        public final String title;
+        public final String author;
+        public final String subject;
+        public final String keywords;
+
+        Metadata(PDDocumentInformation info) {
+            this.title = info.getTitle();
+            this.author = info.getAuthor();
+            this.subject = info.getSubject();
+            this.keywords = info.getKeywords();
+        }
+    }
+
+    private PdfDocumentSession(Context context, Uri pdfUri) {
+        this.context = context.getApplicationContext();
+        this.pdfUri = pdfUri;
+    }
+
+    /**
+     * Shared session for a URI; the document is loaded on first use
+     */
+    public static PdfDocumentSession get(Context context, Uri pdfUri) {
+        synchronized (sessions) {
+            PdfDocumentSession session = sessions.get(pdfUri);
+            if (session == null) {
+                session = new PdfDocumentSession(context, pdfUri);
+                sessions.put(pdfUri, session);
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Release loaded documents when the system asks the app to trim memory.
+     * Sessions that are busy keep their document.
+     */
+    public static void onTrimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+        List<PdfDocumentSession> all;
+        synchronized (sessions) {
+            all = new ArrayList<>(sessions.values());
+        }
+        for (PdfDocumentSession session : all) {
+            session.closeIfNotBusy();
+        }
+    }
+
+    public int getPageCount() throws IOException {
+        lock.lock();
+        try {
+            return document().getNumberOfPages();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Text of a page range as one string
+     * @param startPage 1-based first page
+     * @param endPage 1-based last page, inclusive
+     */
+    public String getText(int startPage, int endPage) throws IOException {
+        lock.lock();
+        try {
+            PDDocument doc = document();
+            stripper.setStartPage(startPage);
+            stripper.setEndPage(endPage);
+            return stripper.getText(doc);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Text of each page in a range
+     * @param startPage 1-based first page
+     * @param endPage 1-based last page, inclusive
+     */
+    public String[] getPages(int startPage, int endPage) throws IOException {
+        lock.lock();
+        try {
+            PDDocument doc = document();
+            String[] pages = new String[endPage - startPage + 1];
+            for (int page = startPage; page <= endPage; page++) {
+                stripper.setStartPage(page);
+                stripper.setEndPage(page);
+                pages[page - startPage] = stripper.getText(doc);
+            }
+            return pages;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Flattened outline in reading order, empty if the document has no bookmarks
+     */
+    public List<OutlineEntry> getOutline() throws IOException {
+        lock.lock();
+        try {
+            PDDocument doc = document();
+            PDDocumentOutline outline = doc.getDocumentCatalog().getDocumentOutline();
+            if (outline == null) {
+                return Collections.emptyList();
+            }
+            List<OutlineEntry> entries = new ArrayList<>();
+            addOutlineEntries(doc, outline, 0, entries);
+            return entries;
+        } finally {
+            release();
+        }
+    }
+
+    public Metadata getMetadata() throws IOException {
+        lock.lock();
+        try {
+            return new Metadata(document().getDocumentInformation());
+        } finally {
+            release();
+        }
+    }
+
+    private static void addOutlineEntries(PDDocument doc, PDOutlineNode node, int level,
+                                          List<OutlineEntry> entries) throws IOException {
+        for (PDOutlineItem item : node.children()) {
+            PDPage page = item.findDestinationPage(doc);
+            int pageNumber = page != null ? doc.getPages().indexOf(page) + 1 : 0;
+            entries.add(new OutlineEntry(item.getTitle(), pageNumber, level));
+            addOutlineEntries(doc, item, level + 1, entries);
+        }
+    }
+
+    /**
+     * Loaded document, loading it if needed. Caller must hold the lock.
+     */
+    private PDDocument document() throws IOException {
+        if (document == null) {
+            document = PdfTextExtractor.openDocument(context, pdfUri);
+            stripper = new PDFTextStripper();
+            Log.d(TAG, "Loaded " + pdfUri);
+        }
+        return document;
+    }
+
+    /**
+     * Mark the session used, make sure an idle check is pending and unlock
+     */
+    private void release() {
+        lastUsed = System.currentTimeMillis();
+        if (!idleCheckScheduled) {
+            idleCheckScheduled = true;
+            idleTimer.schedule(this::checkIdle, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        lock.unlock();
+    }
+
+    private void checkIdle() {
+        if (!lock.tryLock()) {
+            // In use right now, look again later
+            idleTimer.schedule(this::checkIdle, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        try {
+            long idle = System.currentTimeMillis() - lastUsed;
+            if (idle < IDLE_TIMEOUT_MS) {
+                idleTimer.schedule(this::checkIdle, IDLE_TIMEOUT_MS - idle, TimeUnit.MILLISECONDS);
+                return;
+            }
+            idleCheckScheduled = false;
+            closeDocument();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeIfNotBusy() {
+        if (lock.tryLock()) {
+            try {
+                closeDocument();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Caller must hold the lock
+     */
+    private void closeDocument() {
+        if (document == null) {
+            return;
+        }
+        try {
+            document.close();
+            Log.d(TAG, "Closed " + pdfUri);
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing PDF: " + e.getMessage());
+        }
+        document = null;
+        stripper = null;
+    }
+}
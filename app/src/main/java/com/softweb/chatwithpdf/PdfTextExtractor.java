@@ -2,13 +2,25 @@ package com.softweb.chatwithpdf;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Trace;
 import android.util.Log;
 
 import com.tom_roush.pdfbox.android.PDFBoxResourceLoader;
+import com.tom_roush.pdfbox.cos.COSObject;
+import com.tom_roush.pdfbox.io.MemoryUsageSetting;
+import com.tom_roush.pdfbox.pdmodel.DefaultResourceCache;
 import com.tom_roush.pdfbox.pdmodel.PDDocument;
+import com.tom_roush.pdfbox.pdmodel.PDPage;
+import com.tom_roush.pdfbox.pdmodel.PDPageContentStream;
+import com.tom_roush.pdfbox.pdmodel.font.PDType1Font;
+import com.tom_roush.pdfbox.pdmodel.graphics.PDXObject;
 import com.tom_roush.pdfbox.text.PDFTextStripper;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Locale;
 
 /**
  * Extracts text content from PDF files using PDFBox
@@ -16,75 +28,211 @@ import java.io.InputStream;
 public class PdfTextExtractor {
     
     private static final String TAG = "PdfTextExtractor";
-    private static boolean isInitialized = false;
+    
+    // PDFBox's resource loader, set up once whichever thread needs it first
+    private static final OnceLatch resourcesLoaded = new OnceLatch();
+    // Fonts, glyph lists and parser classes, loaded by extracting a tiny document
+    private static final OnceLatch warmedUp = new OnceLatch();
+    
+    // In-memory buffer per document before PDFBox spills stream data to a scratch file
+    private static final long SCRATCH_MEMORY_BYTES = 4 * 1024 * 1024;
+    
+    /**
+     * Receives extracted text one page at a time, in page order
+     */
+    public interface PageCallback {
+        /**
+         * Called on the extraction thread after each page
+         * @param pageNumber 1-based page number
+         * @param pageCount Total pages in the document
+         * @param text Text of this page, usually a view over the mapped extraction cache
+         */
+        void onPage(int pageNumber, int pageCount, CharSequence text);
+    }
     
     /**
-     * Initialize PDFBox resources (call once on app start)
+     * Initialize PDFBox resources. Safe to call from any thread; a call made while
+     * another thread initializes waits for it.
      */
     public static void initialize(Context context) {
-        if (!isInitialized) {
-            PDFBoxResourceLoader.init(context.getApplicationContext());
-            isInitialized = true;
-        }
+        resourcesLoaded.run(() -> PDFBoxResourceLoader.init(context.getApplicationContext()));
     }
     
     /**
-     * Extract all text from a PDF file
-     * @param context Application context
-     * @param pdfUri URI of the PDF file
-     * @return Extracted text content
+     * Load what the first extraction would otherwise load on top of parsing: the
+     * standard font metrics, the glyph list, font mapping and the text stripper's
+     * classes. Runs once, by extracting a one-page document built in memory.
      */
-    public static String extractText(Context context, Uri pdfUri) {
+    public static void warmUp(Context context) {
         initialize(context);
+        warmedUp.run(() -> {
+            Trace.beginSection("PdfTextExtractor.warmUp");
+            long start = System.nanoTime();
+            try (PDDocument document = new PDDocument()) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(72, 720);
+                    content.showText("Warm-up");
+                    content.endText();
+                }
+                new PDFTextStripper().getText(document);
+                Log.d(TAG, "Warmed up PDFBox in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            } catch (IOException | RuntimeException e) {
+                // The first extraction loads whatever is missing
+                Log.w(TAG, "PDFBox warm-up failed: " + e.getMessage());
+            } finally {
+                Trace.endSection();
+            }
+        });
+    }
+    
+    /**
+     * Whether {@link #warmUp} has finished
+     */
+    public static boolean isWarmedUp() {
+        return warmedUp.isDone();
+    }
+    
+    /**
+     * Extract text page by page, delivering each page as soon as it is ready.
+     * Pages are appended to the {@link ExtractionCache} as they are extracted and
+     * delivered as views over the cached file, so nothing keeps page text on the heap.
+     * Pages already in the cache, from a finished or an interrupted extraction, are
+     * served from it and extraction resumes after them. Text is cleaned up by a
+     * {@link TextNormalizer} before it is stored.
+     * Stops early if the calling thread is interrupted.
+     * @return Number of pages delivered to the callback
+     */
+    public static int extractPages(Context context, Uri pdfUri, PageCallback callback) {
+        ExtractionCache cache = ExtractionCache.getInstance(context);
+        String key;
+        try {
+            key = cache.getContentKey(context, pdfUri);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compute cache key: " + e.getMessage());
+            return extractNormalized(context, pdfUri, 1, callback);
+        }
         
-        StringBuilder textBuilder = new StringBuilder();
+        PageTextFile pages = cache.get(key);
+        if (pages == null) {
+            try {
+                pages = cache.create(key, PdfDocumentSession.get(context, pdfUri).getPageCount());
+            } catch (IOException e) {
+                Log.w(TAG, "Could not start cache entry: " + e.getMessage());
+                return extractNormalized(context, pdfUri, 1, callback);
+            }
+        }
         
-        try (InputStream inputStream = context.getContentResolver().openInputStream(pdfUri)) {
-            if (inputStream == null) {
-                Log.e(TAG, "Could not open input stream for PDF");
-                return "";
+        int pageCount = pages.getExpectedPageCount();
+        int stored = pages.getPageCount();
+        if (stored > 0) {
+            Log.d(TAG, "Serving " + stored + " of " + pageCount + " pages from extraction cache");
+        }
+        for (int i = 0; i < stored; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return i;
             }
-            
-            PDDocument document = PDDocument.load(inputStream);
-            PDFTextStripper stripper = new PDFTextStripper();
-            
-            // Extract text from all pages
-            String text = stripper.getText(document);
-            textBuilder.append(text);
-            
-            document.close();
-            
-            Log.d(TAG, "Extracted " + textBuilder.length() + " characters from PDF");
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error extracting text from PDF: " + e.getMessage(), e);
+            callback.onPage(i + 1, pageCount, pages.getPage(i));
+        }
+        if (pages.isComplete()) {
+            return stored;
         }
         
-        return textBuilder.toString();
+        PageTextFile store = pages;
+        int extracted = extractNormalized(context, pdfUri, stored + 1,
+                (pageNumber, count, text) -> {
+                    CharSequence page = text;
+                    try {
+                        // Another extraction of the same document may have stored it first
+                        store.appendPage(pageNumber - 1, text);
+                        page = store.getPage(pageNumber - 1);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not cache page " + pageNumber + ": " + e.getMessage());
+                    }
+                    callback.onPage(pageNumber, count, page);
+                });
+        
+        if (store.isComplete()) {
+            cache.finish(key);
+        }
+        return stored + extracted;
+    }
+    
+    /**
+     * Extract pages from firstPage on through a {@link TextNormalizer}
+     * @return Number of normalized pages delivered to the callback
+     */
+    private static int extractNormalized(Context context, Uri pdfUri, int firstPage, PageCallback callback) {
+        TextNormalizer normalizer = new TextNormalizer(callback);
+        new ParallelPdfExtractor().extractPages(context, pdfUri, firstPage, normalizer);
+        if (normalizer.getPageCount() > 0) {
+            Log.d(TAG, String.format(Locale.US, "Normalized %d pages: %d -> %d chars (%.2fx), %d -> %d tokens",
+                    normalizer.getPageCount(), normalizer.getInputChars(), normalizer.getOutputChars(),
+                    normalizer.getCompressionRatio(), normalizer.getInputTokens(), normalizer.getOutputTokens()));
+        }
+        return normalizer.getPageCount();
+    }
+    
+    /**
+     * Cached pages for a document, or null if it has not been fully extracted before
+     */
+    private static PageTextFile getCachedPages(Context context, Uri pdfUri) {
+        ExtractionCache cache = ExtractionCache.getInstance(context);
+        try {
+            PageTextFile pages = cache.get(cache.getContentKey(context, pdfUri));
+            return pages != null && pages.isComplete() ? pages : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compute cache key: " + e.getMessage());
+            return null;
+        }
     }
     
     /**
-     * Extract text from specific page range
+     * Extract text from specific page range. Pages already in the extraction cache are
+     * served from it; missing ones are extracted, normalized and added to it, so the
+     * cached pages of a document grow with every range asked for.
+     * @param startPage 1-based first page
+     * @param endPage 1-based last page, inclusive
      */
     public static String extractText(Context context, Uri pdfUri, int startPage, int endPage) {
-        initialize(context);
-        
+        ExtractionCache cache = ExtractionCache.getInstance(context);
         StringBuilder textBuilder = new StringBuilder();
         
-        try (InputStream inputStream = context.getContentResolver().openInputStream(pdfUri)) {
-            if (inputStream == null) {
-                return "";
+        try {
+            String key = cache.getContentKey(context, pdfUri);
+            PageTextFile pages = cache.get(key);
+            if (pages == null) {
+                pages = cache.create(key, PdfDocumentSession.get(context, pdfUri).getPageCount());
             }
+            int first = Math.max(startPage, 1);
+            int last = Math.min(endPage, pages.getExpectedPageCount());
             
-            PDDocument document = PDDocument.load(inputStream);
-            PDFTextStripper stripper = new PDFTextStripper();
-            stripper.setStartPage(startPage);
-            stripper.setEndPage(endPage);
-            
-            String text = stripper.getText(document);
-            textBuilder.append(text);
+            // Extract each run of missing pages in one pass of the stripper
+            int page = first;
+            while (page <= last) {
+                if (pages.hasPage(page - 1)) {
+                    page++;
+                    continue;
+                }
+                int runEnd = page;
+                while (runEnd < last && !pages.hasPage(runEnd)) {
+                    runEnd++;
+                }
+                extractRun(context, pdfUri, pages, page, runEnd);
+                page = runEnd + 1;
+            }
+            if (pages.isComplete()) {
+                cache.finish(key);
+            }
             
-            document.close();
+            for (page = first; page <= last; page++) {
+                if (pages.hasPage(page - 1)) {
+                    textBuilder.append(pages.getPage(page - 1)).append('\n');
+                }
+            }
             
         } catch (Exception e) {
             Log.e(TAG, "Error extracting text: " + e.getMessage(), e);
@@ -93,26 +241,117 @@ public class PdfTextExtractor {
         return textBuilder.toString();
     }
     
+    /**
+     * Whether every page of a range is in the extraction cache, so reading it costs no extraction
+     */
+    public static boolean hasPages(Context context, Uri pdfUri, int startPage, int endPage) {
+        ExtractionCache cache = ExtractionCache.getInstance(context);
+        try {
+            PageTextFile pages = cache.get(cache.getContentKey(context, pdfUri));
+            if (pages == null) {
+                return false;
+            }
+            for (int page = startPage; page <= endPage; page++) {
+                if (!pages.hasPage(page - 1)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    private static void extractRun(Context context, Uri pdfUri, PageTextFile store, int startPage, int endPage)
+            throws IOException {
+        String[] raw = PdfDocumentSession.get(context, pdfUri).getPages(startPage, endPage);
+        TextNormalizer normalizer = new TextNormalizer((pageNumber, count, text) -> {
+            try {
+                store.appendPage(pageNumber - 1, text);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not cache page " + pageNumber + ": " + e.getMessage());
+            }
+        });
+        int pageCount = store.getExpectedPageCount();
+        for (int i = 0; i < raw.length; i++) {
+            normalizer.onPage(startPage + i, pageCount, raw[i]);
+        }
+        normalizer.flush();
+        Log.d(TAG, "Extracted pages " + startPage + "-" + endPage + " on demand");
+    }
+    
     /**
      * Get page count of a PDF
      */
     public static int getPageCount(Context context, Uri pdfUri) {
-        initialize(context);
+        PageTextFile cached = getCachedPages(context, pdfUri);
+        if (cached != null) {
+            return cached.getPageCount();
+        }
         
-        try (InputStream inputStream = context.getContentResolver().openInputStream(pdfUri)) {
-            if (inputStream == null) {
-                return 0;
-            }
-            
-            PDDocument document = PDDocument.load(inputStream);
-            int pageCount = document.getNumberOfPages();
-            document.close();
-            
-            return pageCount;
+        try {
+            return PdfDocumentSession.get(context, pdfUri).getPageCount();
             
         } catch (Exception e) {
             Log.e(TAG, "Error getting page count: " + e.getMessage(), e);
             return 0;
         }
     }
+    
+    /**
+     * Open a PDF with random access to the underlying file instead of buffering it in heap.
+     * Content URIs are read through their file descriptor; stream data beyond a small
+     * in-memory buffer spills to a scratch file in the cache dir.
+     */
+    static PDDocument openDocument(Context context, Uri pdfUri) throws IOException {
+        // Joins the warm-up if the app started it, rather than loading the same resources alongside it
+        warmUp(context);
+        
+        long span = Metrics.begin(Metrics.Stage.PDF_LOAD);
+        try {
+            PDDocument document = loadDocument(context, pdfUri);
+            document.setResourceCache(new TextResourceCache());
+            return document;
+        } finally {
+            Metrics.end(Metrics.Stage.PDF_LOAD, span);
+        }
+    }
+    
+    private static PDDocument loadDocument(Context context, Uri pdfUri) throws IOException {
+        MemoryUsageSetting memoryUsage = MemoryUsageSetting.setupMixed(SCRATCH_MEMORY_BYTES)
+                .setTempDir(context.getCacheDir());
+        PDDocument document = null;
+        
+        try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(pdfUri, "r")) {
+            // Reopening through /proc gives PDFBox a seekable file for any provider backed by a real fd
+            File file = descriptor != null ? new File("/proc/self/fd/" + descriptor.getFd()) : null;
+            if (file != null && file.canRead()) {
+                document = PDDocument.load(file, memoryUsage);
+            }
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Random access unavailable, falling back to stream: " + e.getMessage());
+        }
+        
+        if (document == null) {
+            try (InputStream inputStream = context.getContentResolver().openInputStream(pdfUri)) {
+                if (inputStream == null) {
+                    throw new IOException("Could not open input stream for PDF");
+                }
+                // Copied to a scratch file rather than a heap buffer
+                document = PDDocument.load(inputStream, MemoryUsageSetting.setupTempFileOnly()
+                        .setTempDir(context.getCacheDir()));
+            }
+        }
+        return document;
+    }
+    
+    /**
+     * Keeps parsed fonts for reuse across pages but not images and form XObjects,
+     * which text extraction never needs again once a page is done
+     */
+    private static class TextResourceCache extends DefaultResourceCache {
+        @Override
+        public void put(COSObject indirect, PDXObject xobject) {
+        }
+    }
 }
@@ -0,0 +1,315 @@
+package com.softweb.chatwithpdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HttpURLConnection transport tuned for repeated calls to the same backend.
+ * HttpURLConnection keeps idle keep-alive connections in a per-host pool, but only
+ * takes a connection back once its response body has been read to the end, so
+ * responses are drained on close instead of abandoned mid-stream. Request bodies
+ * are streamed (fixed length, or chunked when compressed) rather than buffered by
+ * the connection, responses are requested gzipped, and request bodies are gzipped
+ * once the server has advertised support with an Accept-Encoding response header
+ * (RFC 7694). Connect and response header timeouts adapt to the latencies observed,
+ * while reads within a body keep a fixed timeout since a streamed answer may pause
+ * for as long as the backend waits on its own upstream.
+ * {@link #warmUp} opens a pooled connection ahead of a request unless one was used
+ * recently enough to still be open.
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    static final int GZIP_MIN_BYTES = 1024;
+
+    private static final String GZIP = "gzip";
+    private static final int CHUNK_BYTES = 16 * 1024;
+    private static final int DRAIN_LIMIT_BYTES = 64 * 1024;
+    // The backend closes keep-alive connections idle for 30 s (gunicorn --keep-alive 30)
+    static final long IDLE_MILLIS = 25_000;
+    // The backend gives each upstream read 60 s (requests timeout=60), a body may pause that long
+    static final int BODY_READ_TIMEOUT_MS = 120_000;
+
+    // Closes connections whose response headers take longer than the adaptive timeout
+    private static final ScheduledExecutorService deadlineTimer = Executors.newSingleThreadScheduledExecutor();
+
+    private final AdaptiveTimeout connectTimeout = new AdaptiveTimeout(5_000, 60_000);
+    private final AdaptiveTimeout responseTimeout;
+    private final int bodyReadTimeoutMs;
+
+    // host:port of servers that accept gzip request bodies
+    private final Set<String> gzipHosts = ConcurrentHashMap.newKeySet();
+
+    // When a response last came in, 0 before the first
+    private volatile long lastResponseNanos;
+
+    public PooledHttpTransport() {
+        this(new AdaptiveTimeout(30_000, 120_000), BODY_READ_TIMEOUT_MS);
+    }
+
+    PooledHttpTransport(AdaptiveTimeout responseTimeout, int bodyReadTimeoutMs) {
+        this.responseTimeout = responseTimeout;
+        this.bodyReadTimeoutMs = bodyReadTimeoutMs;
+    }
+
+    @Override
+    public Response post(String url, RequestBody body, Map<String, String> headers,
+                         CancellationToken cancellation) throws IOException {
+        URL target = new URL(url);
+        long length = body.contentLength();
+        boolean gzip = gzipHosts.contains(target.getAuthority()) && (length < 0 || length >= GZIP_MIN_BYTES);
+
+        ConnectionResponse response = send(target, body, headers, gzip, cancellation);
+        if (gzip && response.code() == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+            // The server changed its mind, e.g. a deploy behind the same host
+            response.close();
+            gzipHosts.remove(target.getAuthority());
+            response = send(target, body, headers, false, cancellation);
+        }
+        return response;
+    }
+
+    @Override
+    public void warmUp(String url, CancellationToken cancellation) throws IOException {
+        if (lastResponseNanos != 0 && elapsedMs(lastResponseNanos) < IDLE_MILLIS) {
+            return;
+        }
+        cancellation.throwIfCancelled();
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        cancellation.setOnCancel(conn::disconnect);
+        conn.setConnectTimeout(connectTimeout.getMillis());
+        conn.setReadTimeout(connectTimeout.getMillis());
+        conn.setRequestProperty("Accept-Encoding", GZIP);
+        int code = conn.getResponseCode();
+        lastResponseNanos = System.nanoTime();
+        // Drained on close, so the connection is pooled for the request that follows
+        new ConnectionResponse(conn, code, cancellation, null).close();
+    }
+
+    private ConnectionResponse send(URL target, RequestBody body, Map<String, String> headers,
+                                    boolean gzip, CancellationToken cancellation) throws IOException {
+        cancellation.throwIfCancelled();
+        HttpURLConnection conn = (HttpURLConnection) target.openConnection();
+        // Closes the socket under whichever read or write is blocked
+        cancellation.setOnCancel(conn::disconnect);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setConnectTimeout(connectTimeout.getMillis());
+        // Only applies between reads; the wait for the headers has its own deadline below
+        conn.setReadTimeout(bodyReadTimeoutMs);
+        conn.setRequestProperty("Content-Type", body.contentType());
+        // Set explicitly so the response is decoded here on every platform
+        conn.setRequestProperty("Accept-Encoding", GZIP);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        if (gzip) {
+            conn.setRequestProperty("Content-Encoding", GZIP);
+            conn.setChunkedStreamingMode(CHUNK_BYTES);
+        } else if (body.contentLength() >= 0) {
+            conn.setFixedLengthStreamingMode(body.contentLength());
+        } else {
+            conn.setChunkedStreamingMode(CHUNK_BYTES);
+        }
+
+        long span = Metrics.begin(Metrics.Stage.NETWORK_SEND);
+        try {
+            long start = System.nanoTime();
+            try {
+                conn.connect();
+            } catch (SocketTimeoutException e) {
+                if (!cancellation.isCancelled()) {
+                    connectTimeout.onTimeout();
+                }
+                throw e;
+            }
+            connectTimeout.onSample(elapsedMs(start));
+
+            try (OutputStream out = gzip
+                    ? new GZIPOutputStream(conn.getOutputStream(), CHUNK_BYTES)
+                    : conn.getOutputStream()) {
+                body.writeTo(out);
+            }
+        } finally {
+            Metrics.end(Metrics.Stage.NETWORK_SEND, span);
+        }
+        // Uncompressed size, the length was worked out before sending
+        Metrics.count(Metrics.Counter.REQUEST_BYTES, Math.max(0, body.contentLength()));
+
+        long sent = System.nanoTime();
+        int waitMs = responseTimeout.getMillis();
+        // Whichever of the headers and the deadline comes first sets this
+        AtomicBoolean settled = new AtomicBoolean();
+        ScheduledFuture<?> deadline = deadlineTimer.schedule(() -> {
+            if (settled.compareAndSet(false, true)) {
+                conn.disconnect();
+            }
+        }, waitMs, TimeUnit.MILLISECONDS);
+        int code = -1;
+        IOException failure = null;
+        try {
+            code = conn.getResponseCode();
+        } catch (IOException e) {
+            failure = e;
+        }
+        // The deadline may have closed the connection just as the headers came in
+        boolean expired = !settled.compareAndSet(false, true);
+        deadline.cancel(false);
+        if (expired || failure instanceof SocketTimeoutException) {
+            if (!cancellation.isCancelled()) {
+                responseTimeout.onTimeout();
+            }
+            conn.disconnect();
+            throw failure instanceof SocketTimeoutException
+                    ? (SocketTimeoutException) failure
+                    : new SocketTimeoutException("No response within " + waitMs + " ms");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        responseTimeout.onSample(elapsedMs(sent));
+        lastResponseNanos = System.nanoTime();
+
+        String accepted = conn.getHeaderField("Accept-Encoding");
+        if (accepted != null && accepted.toLowerCase().contains(GZIP)) {
+            gzipHosts.add(target.getAuthority());
+        }
+        return new ConnectionResponse(conn, code, cancellation, responseTimeout);
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static class ConnectionResponse implements Response {
+        private final HttpURLConnection conn;
+        private final int code;
+        private final CancellationToken cancellation;
+        // Told about stalled bodies, null if nobody is interested
+        private final AdaptiveTimeout timeout;
+        private InputStream raw;
+        private InputStream decoded;
+
+        ConnectionResponse(HttpURLConnection conn, int code, CancellationToken cancellation,
+                           AdaptiveTimeout timeout) {
+            this.conn = conn;
+            this.code = code;
+            this.cancellation = cancellation;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int code() {
+            return code;
+        }
+
+        @Override
+        public String header(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream body() throws IOException {
+            if (decoded == null) {
+                InputStream stream = raw();
+                decoded = GZIP.equalsIgnoreCase(conn.getContentEncoding())
+                        ? new GZIPInputStream(stream, CHUNK_BYTES)
+                        : stream;
+            }
+            return decoded;
+        }
+
+        private InputStream raw() throws IOException {
+            if (raw == null) {
+                raw = code < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+                if (raw == null) {
+                    raw = new ByteArrayInputStream(new byte[0]);
+                } else if (timeout != null) {
+                    raw = new TimeoutReportingStream(raw);
+                }
+            }
+            return raw;
+        }
+
+        /**
+         * Read what is left of the body so the connection goes back to the pool,
+         * unless so much is left that a new connection is cheaper
+         */
+        @Override
+        public void close() {
+            // The connection may go back to the pool, a late cancel must not close it
+            cancellation.setOnCancel(null);
+            try {
+                InputStream stream = raw();
+                byte[] buffer = new byte[8192];
+                long drained = 0;
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    drained += read;
+                    if (drained > DRAIN_LIMIT_BYTES) {
+                        conn.disconnect();
+                        return;
+                    }
+                }
+                stream.close();
+            } catch (IOException e) {
+                conn.disconnect();
+            }
+        }
+
+        /**
+         * Backs the response timeout off once when the server stops sending mid-body,
+         * not again for the same stall while draining on close
+         */
+        private class TimeoutReportingStream extends FilterInputStream {
+            private boolean reported;
+
+            TimeoutReportingStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (SocketTimeoutException e) {
+                    onReadTimeout();
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                try {
+                    return super.read(buffer, offset, length);
+                } catch (SocketTimeoutException e) {
+                    onReadTimeout();
+                    throw e;
+                }
+            }
+
+            private void onReadTimeout() {
+                if (!reported && !cancellation.isCancelled()) {
+                    reported = true;
+                    timeout.onTimeout();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.softweb.chatwithpdf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs backend requests on a bounded pool so one slow answer does not hold up the
+ * next question. Interactive requests are taken from the queue before background
+ * ones. Requests with the same key that are queued or running are collapsed into
+ * one call whose results go to every caller. A call is cancelled, and its
+ * connection aborted, once every caller waiting on it has cancelled.
+ */
+public class RequestScheduler {
+
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    /**
+     * The work of a request. Should register an abort action on the token while it blocks.
+     */
+    public interface Task<T> {
+        T run(CancellationToken cancellation, Progress<T> progress) throws Exception;
+    }
+
+    /**
+     * Publishes intermediate results, such as a partial answer. Each one should stand
+     * for the whole result so far, e.g. the answer text up to now rather than the
+     * latest token: a caller that joins late is only given the latest one.
+     */
+    public interface Progress<T> {
+        void publish(T partial);
+    }
+
+    /**
+     * Called on a worker thread, except that a caller joining a request already under way
+     * gets its latest partial result on the submitting thread. Partial results arrive in
+     * the order they were published. Nothing is called after the caller cancels.
+     */
+    public interface Callback<T> {
+        default void onPartial(T partial) {
+        }
+
+        void onSuccess(T result);
+
+        void onFailure(Exception e);
+    }
+
+    /**
+     * Count, mean and maximum of a duration
+     */
+    public static class Timing {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        synchronized void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getAverageMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        public synchronized double getMaxMillis() {
+            return maxNanos / 1e6;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    private final Object lock = new Object();
+    private final Map<String, Call<?>> callsByKey = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Timing waitTime = new Timing();
+    private final Timing executionTime = new Timing();
+    private final AtomicLong dedupedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    /**
+     * @param maxParallel Requests that may run at the same time
+     */
+    public RequestScheduler(int maxParallel) {
+        executor = new ThreadPoolExecutor(maxParallel, maxParallel, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, queue);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a request, or join the queued or running one with the same key. A caller
+     * that joins is first given the latest partial result, so what it sees agrees with
+     * the final result the other callers get.
+     * @param key Identifies equivalent requests, or null to never collapse this one
+     * @return Handle to cancel this caller's interest in the request
+     */
+    public <T> Handle submit(String key, Priority priority, Task<T> task, Callback<T> callback) {
+        Handle handle;
+        boolean requeue = false;
+        Call<T> call;
+
+        synchronized (lock) {
+            @SuppressWarnings("unchecked")
+            Call<T> existing = key != null ? (Call<T>) callsByKey.get(key) : null;
+            if (existing != null) {
+                call = existing;
+                dedupedCount.incrementAndGet();
+                // Raising a queued call's priority means taking it out of the heap first
+                if (priority.compareTo(call.priority) < 0 && queue.remove(call)) {
+                    call.priority = priority;
+                    requeue = true;
+                }
+            } else {
+                call = new Call<>(key, priority, task);
+                if (key != null) {
+                    callsByKey.put(key, call);
+                }
+                requeue = true;
+            }
+            handle = new Handle(call, callback);
+            call.handles.add(handle);
+        }
+
+        call.replayPartial(callback);
+        if (requeue) {
+            executor.execute(call);
+        }
+        return handle;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getRunningCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Time from submission until a worker picked the request up
+     */
+    public Timing getWaitTime() {
+        return waitTime;
+    }
+
+    public Timing getExecutionTime() {
+        return executionTime;
+    }
+
+    /**
+     * Submissions that joined a request already queued or running
+     */
+    public long getDedupedCount() {
+        return dedupedCount.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * Cancel everything and stop the workers
+     */
+    public void shutdown() {
+        List<Call<?>> calls;
+        synchronized (lock) {
+            calls = new ArrayList<>(callsByKey.values());
+        }
+        for (Call<?> call : calls) {
+            call.token.cancel();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * One caller's interest in a request
+     */
+    public class Handle {
+        private final Call<?> call;
+        private final Callback<?> callback;
+        private boolean cancelled;
+
+        Handle(Call<?> call, Callback<?> callback) {
+            this.call = call;
+            this.callback = callback;
+        }
+
+        /**
+         * Stop delivering results to this caller; the request itself is cancelled
+         * when no other caller is waiting on it
+         */
+        public void cancel() {
+            boolean abort = false;
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                call.handles.remove(this);
+                if (call.handles.isEmpty() && !call.finished) {
+                    if (call.key != null) {
+                        callsByKey.remove(call.key, call);
+                    }
+                    if (queue.remove(call)) {
+                        cancelledCount.incrementAndGet();
+                    } else {
+                        abort = true;
+                    }
+                }
+            }
+            // Outside the lock, aborting closes a connection
+            if (abort) {
+                call.token.cancel();
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (lock) {
+                return cancelled;
+            }
+        }
+    }
+
+    private class Call<T> implements Runnable, Comparable<Call<?>>, Progress<T> {
+        final String key;
+        final Task<T> task;
+        final long order = sequence.getAndIncrement();
+        final long submittedNanos = System.nanoTime();
+        final CancellationToken token = new CancellationToken();
+        final List<Handle> handles = new ArrayList<>();
+        volatile Priority priority;
+        // Guarded by this call, which also orders the delivery of partial results
+        T latestPartial;
+        boolean finished;
+
+        Call(String key, Priority priority, Task<T> task) {
+            this.key = key;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Call<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(order, other.order);
+        }
+
+        @Override
+        public void run() {
+            long started = System.nanoTime();
+            waitTime.record(started - submittedNanos);
+
+            T result = null;
+            Exception error = null;
+            if (!token.isCancelled()) {
+                try {
+                    result = task.run(token, this);
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+            executionTime.record(System.nanoTime() - started);
+
+            List<Handle> waiting;
+            synchronized (lock) {
+                finished = true;
+                if (key != null) {
+                    callsByKey.remove(key, this);
+                }
+                waiting = new ArrayList<>(handles);
+            }
+            if (token.isCancelled()) {
+                cancelledCount.incrementAndGet();
+                return;
+            }
+            for (Handle handle : waiting) {
+                if (handle.isCancelled()) {
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                Callback<T> callback = (Callback<T>) handle.callback;
+                if (error == null) {
+                    callback.onSuccess(result);
+                } else {
+                    callback.onFailure(error);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void publish(T partial) {
+            latestPartial = partial;
+            List<Handle> waiting;
+            synchronized (lock) {
+                waiting = new ArrayList<>(handles);
+            }
+            for (Handle handle : waiting) {
+                if (!handle.isCancelled()) {
+                    @SuppressWarnings("unchecked")
+                    Callback<T> callback = (Callback<T>) handle.callback;
+                    callback.onPartial(partial);
+                }
+            }
+        }
+
+        /**
+         * Catch a caller that just joined up with the partial results published so far.
+         * It may get the latest one twice, never an older one after a newer.
+         */
+        synchronized void replayPartial(Callback<T> callback) {
+            if (latestPartial != null) {
+                callback.onPartial(latestPartial);
+            }
+        }
+    }
+}
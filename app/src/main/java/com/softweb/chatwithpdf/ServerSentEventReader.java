@@ -0,0 +1,88 @@
+package com.softweb.chatwithpdf;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses a text/event-stream response one event at a time as bytes arrive.
+ * Supports the event and data fields; ids, retry hints and comments are ignored.
+ */
+public class ServerSentEventReader implements Closeable {
+
+    public static final String DEFAULT_EVENT = "message";
+
+    private final BufferedReader reader;
+
+    public static class Event {
+        public final String name;
+        public final String data;
+
+        Event(String name, String data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    public ServerSentEventReader(InputStream inputStream) {
+        this.reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Block until the next complete event
+     * @return The event, or null when the stream ends
+     */
+    public Event next() throws IOException {
+        String name = null;
+        StringBuilder data = null;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                // A blank line dispatches the event, if it had any data
+                if (data != null) {
+                    return new Event(name != null ? name : DEFAULT_EVENT, data.toString());
+                }
+                name = null;
+                continue;
+            }
+            if (line.startsWith(":")) {
+                continue;
+            }
+
+            int colon = line.indexOf(':');
+            String field = colon == -1 ? line : line.substring(0, colon);
+            String value = colon == -1 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+
+            if (field.equals("event")) {
+                name = value;
+            } else if (field.equals("data")) {
+                if (data == null) {
+                    data = new StringBuilder(value);
+                } else {
+                    data.append('\n').append(value);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether more of the stream has arrived, so {@link #next} can go on without waiting
+     * for the network
+     */
+    public boolean isReady() throws IOException {
+        return reader.ready();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
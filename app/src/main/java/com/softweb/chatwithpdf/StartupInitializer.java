@@ -0,0 +1,76 @@
+package com.softweb.chatwithpdf;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Moves work off the first extraction and the first question without adding it to
+ * startup: once the first activity has drawn its first frame, PDFBox is warmed up on
+ * a low-priority thread and a connection to the backend is opened. An extraction
+ * started meanwhile waits for the warm-up instead of repeating it.
+ */
+public class StartupInitializer implements Application.ActivityLifecycleCallbacks {
+
+    private static final String TAG = "StartupInitializer";
+
+    private final Application application;
+
+    private StartupInitializer(Application application) {
+        this.application = application;
+    }
+
+    /**
+     * Warm up after the first frame of whichever activity is shown first
+     */
+    public static void install(Application application) {
+        application.registerActivityLifecycleCallbacks(new StartupInitializer(application));
+    }
+
+    @Override
+    public void onActivityResumed(@NonNull Activity activity) {
+        application.unregisterActivityLifecycleCallbacks(this);
+        // Runs after the first traversal, i.e. once the first frame has been drawn
+        activity.getWindow().getDecorView().post(this::warmUp);
+    }
+
+    private void warmUp() {
+        ChatSession.getInstance(application).getChatApiClient().prepareConnection();
+
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            long start = System.nanoTime();
+            PdfTextExtractor.warmUp(application);
+            Log.d(TAG, "Warm-up finished " + (System.nanoTime() - start) / 1_000_000 + " ms after the first frame");
+        }, "startup-warm-up");
+        thread.start();
+    }
+
+    @Override
+    public void onActivityCreated(@NonNull Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(@NonNull Activity activity) {
+    }
+}
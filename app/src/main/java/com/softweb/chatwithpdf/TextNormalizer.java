@@ -0,0 +1,390 @@
+package com.softweb.chatwithpdf;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Cleans extracted page text before it is stored and indexed. Running headers and
+ * footers (lines near the top or bottom of a page that recur on nearby pages, page
+ * numbers included) are dropped, words hyphenated across lines are joined, wrapped
+ * lines are joined into paragraphs, whitespace is collapsed and glyphs that carry no
+ * text (control characters, private-use symbol font glyphs, zero-width marks) are
+ * stripped. Pages stream through: each is emitted once the next
+ * {@link #LOOKAHEAD_PAGES} have arrived, so a header can be recognised on the first
+ * page it appears on, and the last page or {@link #flush} emits the rest.
+ * Not thread-safe; pages must arrive in order from one thread. Normalized pages are
+ * cached, so bump {@link PageTextFile}'s version whenever the output changes.
+ */
+public class TextNormalizer implements PdfTextExtractor.PageCallback {
+
+    static final int EDGE_LINES = 3; // Lines at each end of a page that may be a header or footer
+    static final int LOOKAHEAD_PAGES = 2;
+    static final int WINDOW_PAGES = 8; // Pages before the current one compared against
+    static final int MIN_REPEATS = 3; // Pages in the window a line must be on, this one included
+
+    private static final long HASH_MULTIPLIER = 1_000_003L;
+    private static final long NO_LINE = 0;
+
+    private final PdfTextExtractor.PageCallback downstream;
+    // Pages received but not emitted yet, oldest first
+    private final ArrayDeque<Page> pending = new ArrayDeque<>();
+    // Recently emitted pages, oldest first, the one being emitted last
+    private final ArrayDeque<Page> history = new ArrayDeque<>();
+    private final StringBuilder output = new StringBuilder();
+
+    private int pagesEmitted;
+    private long inputChars;
+    private long outputChars;
+    private long inputTokens;
+    private long outputTokens;
+
+    /**
+     * A page waiting for its neighbours, with the hashes of its edge lines
+     */
+    private static class Page {
+        final int pageNumber;
+        final int pageCount;
+        final CharSequence text;
+        final long[] topHashes = new long[EDGE_LINES];
+        final long[] bottomHashes = new long[EDGE_LINES];
+        // Char ranges of the edge lines, to skip them when they turn out to repeat
+        final int[] topStarts = new int[EDGE_LINES];
+        final int[] bottomStarts = new int[EDGE_LINES];
+
+        Page(int pageNumber, int pageCount, CharSequence text) {
+            this.pageNumber = pageNumber;
+            this.pageCount = pageCount;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @param downstream Receives the normalized pages, in order and with their original numbers
+     */
+    public TextNormalizer(PdfTextExtractor.PageCallback downstream) {
+        this.downstream = downstream;
+    }
+
+    /**
+     * Normalize a list of pages in one go
+     */
+    public static String[] normalize(CharSequence... pages) {
+        String[] normalized = new String[pages.length];
+        TextNormalizer normalizer = new TextNormalizer(
+                (pageNumber, pageCount, text) -> normalized[pageNumber - 1] = text.toString());
+        for (int i = 0; i < pages.length; i++) {
+            normalizer.onPage(i + 1, pages.length, pages[i]);
+        }
+        return normalized;
+    }
+
+    @Override
+    public void onPage(int pageNumber, int pageCount, CharSequence text) {
+        Page page = new Page(pageNumber, pageCount, text);
+        hashEdgeLines(page);
+        pending.addLast(page);
+
+        while (pending.size() > LOOKAHEAD_PAGES || (pageNumber == pageCount && !pending.isEmpty())) {
+            emit(pending.removeFirst());
+        }
+    }
+
+    /**
+     * Emit the pages still held back, for a page range that ends before the document does
+     */
+    public void flush() {
+        while (!pending.isEmpty()) {
+            emit(pending.removeFirst());
+        }
+    }
+
+    /**
+     * Pages passed downstream so far
+     */
+    public int getPageCount() {
+        return pagesEmitted;
+    }
+
+    public long getInputChars() {
+        return inputChars;
+    }
+
+    public long getOutputChars() {
+        return outputChars;
+    }
+
+    public long getInputTokens() {
+        return inputTokens;
+    }
+
+    public long getOutputTokens() {
+        return outputTokens;
+    }
+
+    /**
+     * Input chars per output char, over the pages emitted so far
+     */
+    public double getCompressionRatio() {
+        return outputChars > 0 ? (double) inputChars / outputChars : 1.0;
+    }
+
+    private void emit(Page page) {
+        String normalized;
+        long span = Metrics.begin(Metrics.Stage.NORMALIZATION);
+        try {
+            normalized = normalize(page);
+        } finally {
+            Metrics.end(Metrics.Stage.NORMALIZATION, span);
+        }
+
+        pagesEmitted++;
+        downstream.onPage(page.pageNumber, page.pageCount, normalized);
+    }
+
+    private String normalize(Page page) {
+        CharSequence text = page.text;
+        output.setLength(0);
+        history.addLast(page);
+        if (history.size() > WINDOW_PAGES + 1) {
+            history.removeFirst();
+        }
+
+        // State carried from one kept line to the next
+        boolean paragraphBreak = false;
+        boolean lineBreak = false;
+        int hyphenAt = -1;
+
+        int length = text.length();
+        int lineStart = 0;
+        while (lineStart <= length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && text.charAt(lineEnd) != '\n' && text.charAt(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            int next = lineEnd < length && text.charAt(lineEnd) == '\r'
+                    && lineEnd + 1 < length && text.charAt(lineEnd + 1) == '\n' ? lineEnd + 2 : lineEnd + 1;
+
+            if (isRepeatedEdgeLine(page, lineStart)) {
+                lineStart = next;
+                continue;
+            }
+
+            int lineOutputStart = output.length();
+            boolean pendingSpace = false;
+            for (int i = lineStart; i < lineEnd; i++) {
+                char c = text.charAt(i);
+                if (isSpace(c)) {
+                    pendingSpace = output.length() > lineOutputStart;
+                    continue;
+                }
+                if (isNonContent(c)) {
+                    continue;
+                }
+
+                if (output.length() == lineOutputStart && lineOutputStart > 0) {
+                    // First char of a line, decide how it joins the previous one
+                    if (hyphenAt >= 0 && Character.isLowerCase(c)) {
+                        output.setLength(hyphenAt);
+                        lineOutputStart = hyphenAt;
+                    } else if (paragraphBreak) {
+                        output.append("\n\n");
+                    } else if (lineBreak || isListMarker(text, i, lineEnd)) {
+                        output.append('\n');
+                    } else {
+                        output.append(' ');
+                    }
+                    lineOutputStart = output.length();
+                    hyphenAt = -1;
+                    paragraphBreak = false;
+                } else if (pendingSpace) {
+                    output.append(' ');
+                }
+                pendingSpace = false;
+                appendGlyph(c);
+            }
+
+            int kept = output.length() - lineOutputStart;
+            if (kept == 0) {
+                // Blank lines separate paragraphs
+                paragraphBreak = output.length() > 0;
+                hyphenAt = -1;
+            } else {
+                char last = output.charAt(output.length() - 1);
+                lineBreak = last == '.' || last == '!' || last == '?' || last == ':';
+                hyphenAt = last == '-' && kept > 1 && Character.isLetter(output.charAt(output.length() - 2))
+                        ? output.length() - 1 : -1;
+            }
+
+            lineStart = next;
+        }
+
+        String normalized = output.toString();
+        inputChars += length;
+        inputTokens += TokenEstimator.count(text);
+        outputChars += normalized.length();
+        outputTokens += TokenEstimator.count(normalized);
+        return normalized;
+    }
+
+    private void appendGlyph(char c) {
+        // Ligatures from PDF fonts, spelled out so the words match the index and the model vocabulary
+        switch (c) {
+            case 0xFB00:
+                output.append("ff");
+                break;
+            case 0xFB01:
+                output.append("fi");
+                break;
+            case 0xFB02:
+                output.append("fl");
+                break;
+            case 0xFB03:
+                output.append("ffi");
+                break;
+            case 0xFB04:
+                output.append("ffl");
+                break;
+            default:
+                output.append(c);
+        }
+    }
+
+    /**
+     * Whether the line starting at lineStart is an edge line of the page repeated on enough nearby pages
+     */
+    private boolean isRepeatedEdgeLine(Page page, int lineStart) {
+        for (int i = 0; i < EDGE_LINES; i++) {
+            if (page.topHashes[i] != NO_LINE && page.topStarts[i] == lineStart) {
+                return countPages(page.topHashes[i], true) >= MIN_REPEATS;
+            }
+            if (page.bottomHashes[i] != NO_LINE && page.bottomStarts[i] == lineStart) {
+                return countPages(page.bottomHashes[i], false) >= MIN_REPEATS;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pages in the window, history and lookahead, with the hash at the same end of the page
+     */
+    private int countPages(long hash, boolean top) {
+        int count = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            Iterator<Page> pages = pass == 0 ? history.iterator() : pending.iterator();
+            while (pages.hasNext()) {
+                long[] hashes = top ? pages.next().topHashes : pages.next().bottomHashes;
+                for (long candidate : hashes) {
+                    if (candidate == hash) {
+                        count++;
+                        break;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Hash the first and last non-blank lines of a page
+     */
+    private static void hashEdgeLines(Page page) {
+        CharSequence text = page.text;
+        int top = 0;
+        int lineStart = 0;
+        int length = text.length();
+        while (top < EDGE_LINES && lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && text.charAt(lineEnd) != '\n' && text.charAt(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            long hash = hashLine(text, lineStart, lineEnd);
+            if (hash != NO_LINE) {
+                page.topHashes[top] = hash;
+                page.topStarts[top] = lineStart;
+                top++;
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        // The bottom lines are found walking back, stopping short of the top ones
+        int bottom = 0;
+        int lineEnd = length;
+        int topEnd = top > 0 ? page.topStarts[top - 1] : -1;
+        while (bottom < EDGE_LINES && lineEnd > 0) {
+            int start = lineEnd;
+            while (start > 0 && text.charAt(start - 1) != '\n' && text.charAt(start - 1) != '\r') {
+                start--;
+            }
+            if (start <= topEnd) {
+                break;
+            }
+            long hash = hashLine(text, start, lineEnd);
+            if (hash != NO_LINE) {
+                page.bottomHashes[bottom] = hash;
+                page.bottomStarts[bottom] = start;
+                bottom++;
+            }
+            lineEnd = start - 1;
+        }
+    }
+
+    /**
+     * Polynomial hash of a line, built one char at a time, ignoring case and whitespace and
+     * treating every run of digits as one digit so "Page 3 of 9" matches "Page 4 of 9"
+     * @return The hash, or {@link #NO_LINE} for a blank line
+     */
+    static long hashLine(CharSequence text, int start, int end) {
+        long hash = 1;
+        boolean blank = true;
+        boolean inDigits = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (isSpace(c) || isNonContent(c)) {
+                continue;
+            }
+            blank = false;
+            if (c >= '0' && c <= '9') {
+                if (inDigits) {
+                    continue;
+                }
+                inDigits = true;
+                c = '0';
+            } else {
+                inDigits = false;
+                c = Character.toLowerCase(c);
+            }
+            hash = hash * HASH_MULTIPLIER + c;
+        }
+        return blank || hash == NO_LINE ? NO_LINE : hash;
+    }
+
+    /**
+     * Bullet or numbered list item, which keeps its own line
+     */
+    private static boolean isListMarker(CharSequence text, int start, int end) {
+        char c = text.charAt(start);
+        if (c == '•' || c == '▪' || c == '●' || c == '*' || c == '-' || c == '–') {
+            return true;
+        }
+        int i = start;
+        while (i < end && i - start < 3 && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            i++;
+        }
+        return i > start && i < end && (text.charAt(i) == '.' || text.charAt(i) == ')');
+    }
+
+    private static boolean isSpace(char c) {
+        // Tab, space, no-break space, the typographic spaces and the ideographic space
+        return c == ' ' || c == '\t' || c == 0xA0 || (c >= 0x2000 && c <= 0x200A) || c == 0x3000;
+    }
+
+    /**
+     * Glyphs with no text: controls, soft hyphens, zero-width and direction marks,
+     * private-use symbol font glyphs and the replacement char for unmappable ones
+     */
+    private static boolean isNonContent(char c) {
+        return c < 0x20 || (c >= 0x7F && c <= 0x9F) || c == 0xAD
+                || (c >= 0x200B && c <= 0x200F) || c == 0x2060 || c == 0xFEFF
+                || (c >= 0xE000 && c <= 0xF8FF) || c == 0xFFFD;
+    }
+}
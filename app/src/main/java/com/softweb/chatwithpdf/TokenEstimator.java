@@ -0,0 +1,125 @@
+package com.softweb.chatwithpdf;
+
+/**
+ * Approximate token counts for a BPE vocabulary like Llama's, without a vocabulary.
+ * Text is scanned once with no allocation: a run of Latin letters costs one token
+ * plus one per further six letters, digits go in groups of three, other scripts
+ * cost a token per few letters (one per ideograph), and every symbol and line break
+ * costs one. Single spaces are free since BPE merges them into the next word. The
+ * estimate errs high for English so packed prompts stay inside the real budget.
+ * backend/main.py has a port of this; keep the two in sync.
+ */
+public final class TokenEstimator {
+
+    private static final int LATIN_CHARS_PER_TOKEN = 6;
+    private static final int DIGITS_PER_TOKEN = 3;
+    private static final int OTHER_SCRIPT_CHARS_PER_TOKEN = 3;
+
+    private static final int NONE = 0;
+    private static final int LATIN = 1;
+    private static final int DIGIT = 2;
+    private static final int OTHER_SCRIPT = 3;
+
+    private TokenEstimator() {
+    }
+
+    public static int count(CharSequence text) {
+        return count(text, 0, text.length());
+    }
+
+    /**
+     * Estimated tokens in text[start, end)
+     */
+    public static int count(CharSequence text, int start, int end) {
+        int tokens = 0;
+        int run = NONE;
+        int runLength = 0;
+        boolean lastWasSpace = false;
+
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int kind = kindOf(c);
+            if (kind != NONE && kind == run) {
+                runLength++;
+                continue;
+            }
+            tokens += runTokens(run, runLength);
+            run = kind;
+            runLength = kind != NONE ? 1 : 0;
+
+            if (kind == NONE) {
+                if (c == ' ') {
+                    // A second space in a row is a token of its own
+                    if (lastWasSpace) {
+                        tokens++;
+                    }
+                    lastWasSpace = true;
+                    continue;
+                }
+                if (!Character.isLowSurrogate(c)) {
+                    tokens++;
+                }
+            }
+            lastWasSpace = false;
+        }
+        return tokens + runTokens(run, runLength);
+    }
+
+    /**
+     * End of the longest prefix of text[start, length) estimated at no more than maxTokens,
+     * cut at a space where possible so no word is split
+     */
+    public static int prefixEnd(CharSequence text, int start, int maxTokens) {
+        int length = text.length();
+        if (count(text, start, length) <= maxTokens) {
+            return length;
+        }
+        // Binary search on the end, the count is monotonic in it
+        int low = start;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (count(text, start, middle) <= maxTokens) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int end = low;
+        while (end > start && text.charAt(end - 1) != ' ' && text.charAt(end - 1) != '\n') {
+            end--;
+        }
+        return end > start ? end : low;
+    }
+
+    private static int kindOf(char c) {
+        if (c < 0x80) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                return LATIN;
+            }
+            return c >= '0' && c <= '9' ? DIGIT : NONE;
+        }
+        // Explicit ranges rather than Character.UnicodeBlock, so the Python port can match them
+        if (isIdeograph(c) || !Character.isLetter(c)) {
+            return NONE;
+        }
+        return c <= 0x24F ? LATIN : OTHER_SCRIPT;
+    }
+
+    private static boolean isIdeograph(char c) {
+        return (c >= 0x3400 && c <= 0x4DBF) || (c >= 0x4E00 && c <= 0x9FFF) || (c >= 0xF900 && c <= 0xFAFF);
+    }
+
+    private static int runTokens(int run, int runLength) {
+        switch (run) {
+            case LATIN:
+                return 1 + (runLength - 1) / LATIN_CHARS_PER_TOKEN;
+            case DIGIT:
+                return (runLength + DIGITS_PER_TOKEN - 1) / DIGITS_PER_TOKEN;
+            case OTHER_SCRIPT:
+                return (runLength + OTHER_SCRIPT_CHARS_PER_TOKEN - 1) / OTHER_SCRIPT_CHARS_PER_TOKEN;
+            default:
+                return 0;
+        }
+    }
+}
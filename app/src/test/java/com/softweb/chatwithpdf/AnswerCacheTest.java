@@ -0,0 +1,111 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the two-tier answer cache.
+ */
+public class AnswerCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void key_ignoresCaseSpacingAndTrailingPunctuation() {
+        String key = AnswerCache.key("doc", "[1, 2]", "What is the deadline?");
+
+        assertEquals(key, AnswerCache.key("doc", "[1, 2]", "  what IS the\tdeadline  "));
+        assertEquals(key, AnswerCache.key("doc", "[1, 2]", "What is the deadline?!"));
+        assertNotEquals(key, AnswerCache.key("doc", "[1, 3]", "What is the deadline?"));
+        assertNotEquals(key, AnswerCache.key("other", "[1, 2]", "What is the deadline?"));
+        assertNotEquals(key, AnswerCache.key("doc", "[1, 2]", "What is the fee?"));
+    }
+
+    @Test
+    public void repeatedQuestion_servedFromMemory() throws IOException {
+        AnswerCache cache = new AnswerCache(folder.newFolder(), 8, 1024 * 1024);
+        String key = AnswerCache.key("doc", "ctx", "summarize this");
+
+        assertNull(cache.get(key));
+        cache.put(key, "A short summary.");
+
+        long start = System.nanoTime();
+        assertEquals("A short summary.", cache.get(key));
+        assertTrue(System.nanoTime() - start < 10_000_000);
+        assertEquals(1, cache.getMemoryHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void answers_surviveANewInstanceOnDisk() throws IOException {
+        File directory = folder.newFolder();
+        String key = AnswerCache.key("doc", "ctx", "What is the deadline?");
+        new AnswerCache(directory, 8, 1024 * 1024).put(key, "Friday — 17:00 CET");
+
+        AnswerCache reopened = new AnswerCache(directory, 8, 1024 * 1024);
+        long start = System.nanoTime();
+        assertEquals("Friday — 17:00 CET", reopened.get(key));
+        assertTrue(System.nanoTime() - start < 10_000_000);
+        assertEquals(1, reopened.getDiskHitCount());
+
+        // Promoted to memory by the disk hit
+        reopened.get(key);
+        assertEquals(1, reopened.getMemoryHitCount());
+    }
+
+    @Test
+    public void peek_leavesStatsAlone() throws IOException {
+        File directory = folder.newFolder();
+        String key = AnswerCache.key("doc", "ctx", "What is the deadline?");
+        new AnswerCache(directory, 8, 1024 * 1024).put(key, "Friday");
+
+        AnswerCache cache = new AnswerCache(directory, 8, 1024 * 1024);
+        assertNull(cache.peek(AnswerCache.key("doc", "ctx", "Who signed it?")));
+        assertEquals("Friday", cache.peek(key));
+        assertEquals("Friday", cache.peek(key));
+
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void memoryTier_evictsLeastRecentlyUsedToDisk() throws IOException {
+        AnswerCache cache = new AnswerCache(folder.newFolder(), 2, 1024 * 1024);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertEquals("2", cache.get("b"));
+        assertEquals(1, cache.getDiskHitCount());
+        assertEquals(1, cache.getMemoryHitCount());
+    }
+
+    @Test
+    public void diskTier_staysWithinSizeBound() throws IOException {
+        File directory = folder.newFolder();
+        AnswerCache cache = new AnswerCache(directory, 1, 1000);
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'x');
+        String answer = new String(chars);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, answer);
+        }
+
+        long total = 0;
+        for (File entry : directory.listFiles()) {
+            total += entry.length();
+        }
+        assertTrue(total <= 1000);
+        assertEquals(answer, new AnswerCache(directory, 1, 1000).get("key9"));
+    }
+}
@@ -0,0 +1,332 @@
+package com.softweb.chatwithpdf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the backend protocol against a local stand-in for the Flask server.
+ */
+public class ChatBackendTest {
+
+    private HttpServer server;
+    private String baseUrl;
+    private volatile JSONObject lastRequest;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void streamingAnswer_reportsBurstOfTokensOnce() throws Exception {
+        StringBuilder burst = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            burst.append("data: w").append(i).append("\n\n");
+            expected.append('w').append(i);
+        }
+        burst.append("event: done\ndata: \n\n");
+        serveEvents(burst.toString());
+        List<String> partials = new ArrayList<>();
+
+        String answer = new ChatBackend(baseUrl).ask("ctx", "q", partials::add);
+
+        assertEquals(expected.toString(), answer);
+        assertTrue("Reported " + partials.size() + " times", partials.size() < 50);
+        assertEquals(answer, partials.get(partials.size() - 1));
+    }
+
+    @Test
+    public void streamingAnswer_deliversPartialsInOrder() throws Exception {
+        serveEvents("data: The deadline\n\n", "data:  is\ndata: Friday\n\n", "event: done\ndata: \n\n");
+        List<String> partials = new ArrayList<>();
+
+        String answer = new ChatBackend(baseUrl).ask("ctx", "When?", partials::add);
+
+        assertEquals("The deadline is\nFriday", answer);
+        assertEquals(Arrays.asList("The deadline", "The deadline is\nFriday"), partials);
+        assertTrue(lastRequest.getBoolean("stream"));
+        assertEquals("When?", lastRequest.getString("question"));
+    }
+
+    @Test
+    public void streamingAnswer_firstTokenArrivesBeforeGenerationEnds() throws Exception {
+        CountDownLatch firstTokenSeen = new CountDownLatch(1);
+        server.createContext("/chat", exchange -> {
+            lastRequest = new JSONObject(readBody(exchange.getRequestBody()));
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                writeFlushed(out, "data: first\n\n");
+                // Keep "generating" until the client has shown the first token,
+                // otherwise end the stream early so the client call fails
+                if (!firstTokenSeen.await(5, TimeUnit.SECONDS)) {
+                    return;
+                }
+                writeFlushed(out, "data:  second\n\nevent: done\ndata: \n\n");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        String answer = new ChatBackend(baseUrl).ask("ctx", "q", partial -> firstTokenSeen.countDown());
+
+        assertEquals("first second", answer);
+    }
+
+    @Test
+    public void streamingAnswer_errorEventThrows() throws Exception {
+        serveEvents("data: partial\n\n", "event: error\ndata: API error: overloaded\n\n");
+
+        try {
+            new ChatBackend(baseUrl).ask("ctx", "q", partial -> { });
+            fail("Expected error event to throw");
+        } catch (Exception e) {
+            assertEquals("API error: overloaded", e.getMessage());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void streamingAnswer_truncatedStreamThrows() throws Exception {
+        serveEvents("data: partial\n\n");
+        new ChatBackend(baseUrl).ask("ctx", "q", partial -> { });
+    }
+
+    @Test
+    public void jsonAnswer_stillSupported() throws Exception {
+        server.createContext("/chat", exchange -> {
+            lastRequest = new JSONObject(readBody(exchange.getRequestBody()));
+            byte[] body = "{\"success\": true, \"answer\": \"Forty two\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        List<String> partials = new ArrayList<>();
+
+        assertEquals("Forty two", new ChatBackend(baseUrl).ask("ctx", "q", partials::add));
+        assertTrue(partials.isEmpty());
+    }
+
+    @Test
+    public void documentQuestions_sendEachChunkOnce() throws Exception {
+        DocumentIndex index = twoChunkIndex();
+        List<JSONObject> chatRequests = new ArrayList<>();
+        int[] registrations = {0};
+        serveDocuments(registrations, chatRequests, false);
+        ChatBackend backend = new ChatBackend(baseUrl);
+
+        backend.ask(index, new int[]{0}, "first?", null);
+        backend.ask(index, new int[]{0, 1}, "second?", null);
+
+        assertEquals(1, registrations[0]);
+        JSONObject first = chatRequests.get(0).getJSONObject("chunks");
+        JSONObject second = chatRequests.get(1).getJSONObject("chunks");
+        assertEquals(index.getChunk(0).toString(), first.getString("0"));
+        assertFalse(second.has("0"));
+        assertEquals(index.getChunk(1).toString(), second.getString("1"));
+        assertEquals(2, chatRequests.get(1).getJSONArray("chunk_ids").length());
+    }
+
+    @Test
+    public void documentQuestions_reRegisterWhenServerForgets() throws Exception {
+        DocumentIndex index = twoChunkIndex();
+        List<JSONObject> chatRequests = new ArrayList<>();
+        int[] registrations = {0};
+        serveDocuments(registrations, chatRequests, true);
+        ChatBackend backend = new ChatBackend(baseUrl);
+
+        backend.ask(index, new int[]{0}, "first?", null);
+        assertEquals("answer", backend.ask(index, new int[]{0}, "again?", null));
+
+        // The second question was refused once, then retried with its chunk after registering again
+        assertEquals(2, registrations[0]);
+        assertEquals(3, chatRequests.size());
+        assertFalse(chatRequests.get(1).getJSONObject("chunks").has("0"));
+        assertTrue(chatRequests.get(2).getJSONObject("chunks").has("0"));
+    }
+
+    @Test
+    public void followUpQuestions_carrySummaryAndRecentTurns() throws Exception {
+        DocumentIndex index = twoChunkIndex();
+        List<JSONObject> chatRequests = new ArrayList<>();
+        serveDocuments(new int[]{0}, chatRequests, false);
+        ChatBackend backend = new ChatBackend(baseUrl);
+        ConversationMemory memory = new ConversationMemory(60);
+        memory.add("What is the deadline for the report?", "The deadline is Friday. It was moved twice, first from Monday and then from Wednesday after the audit.");
+        memory.add("Who signs off?", "The site manager.");
+
+        backend.ask(index, new int[]{0}, "first?", null);
+        backend.ask(index, new int[]{0}, "and then?", memory.snapshot(), null, CancellationToken.NONE);
+
+        assertFalse(chatRequests.get(0).has("history"));
+        assertFalse(chatRequests.get(0).has("summary"));
+        JSONObject followUp = chatRequests.get(1);
+        assertEquals("Q: What is the deadline for the report? A: The deadline is Friday.", followUp.getString("summary"));
+        assertEquals(1, followUp.getJSONArray("history").length());
+        assertEquals("The site manager.", followUp.getJSONArray("history").getJSONObject(0).getString("answer"));
+    }
+
+    @Test
+    public void preparedQuestion_sendsBodySerializedAhead() throws Exception {
+        DocumentIndex index = twoChunkIndex();
+        List<JSONObject> chatRequests = new ArrayList<>();
+        int[] registrations = {0};
+        serveDocuments(registrations, chatRequests, false);
+        ChatBackend backend = new ChatBackend(baseUrl);
+
+        ChatBackend.PreparedQuestion prepared = backend.prepare(index, new int[]{0, 1}, "first?",
+                ConversationMemory.Snapshot.EMPTY, CancellationToken.NONE);
+        // Registered while preparing, nothing asked yet
+        assertEquals(1, registrations[0]);
+        assertTrue(chatRequests.isEmpty());
+
+        assertEquals("answer", backend.ask(prepared, partial -> { }, CancellationToken.NONE));
+        JSONObject request = chatRequests.get(0);
+        assertEquals("first?", request.getString("question"));
+        assertTrue(request.getBoolean("stream"));
+        assertEquals(index.getChunk(1).toString(), request.getJSONObject("chunks").getString("1"));
+
+        // The chunks went up with the prepared request and are not sent again
+        backend.ask(index, new int[]{0, 1}, "second?", null);
+        assertEquals(0, chatRequests.get(1).getJSONObject("chunks").length());
+    }
+
+    @Test
+    public void preparedQuestion_askedAfreshWhenServerForgets() throws Exception {
+        DocumentIndex index = twoChunkIndex();
+        List<JSONObject> chatRequests = new ArrayList<>();
+        int[] registrations = {0};
+        serveDocuments(registrations, chatRequests, true);
+        ChatBackend backend = new ChatBackend(baseUrl);
+
+        backend.ask(index, new int[]{0}, "first?", null);
+        // Prepared while the server still held chunk 0, so only its id is in the body
+        ChatBackend.PreparedQuestion prepared = backend.prepare(index, new int[]{0}, "again?",
+                ConversationMemory.Snapshot.EMPTY, CancellationToken.NONE);
+        assertFalse(new String(prepared.body, StandardCharsets.UTF_8).contains("invoice"));
+
+        assertEquals("answer", backend.ask(prepared, partial -> { }, CancellationToken.NONE));
+        assertEquals(2, registrations[0]);
+        assertEquals(3, chatRequests.size());
+        assertTrue(chatRequests.get(2).getJSONObject("chunks").has("0"));
+    }
+
+    @Test
+    public void eventReader_ignoresCommentsAndUnknownFields() throws IOException {
+        String stream = ": keep-alive\nid: 7\nretry: 1000\ndata: hello\n\nevent: done\ndata\n\n";
+        ServerSentEventReader reader = new ServerSentEventReader(
+                new ByteArrayInputStream(stream.getBytes(StandardCharsets.UTF_8)));
+
+        ServerSentEventReader.Event first = reader.next();
+        assertEquals(ServerSentEventReader.DEFAULT_EVENT, first.name);
+        assertEquals("hello", first.data);
+
+        ServerSentEventReader.Event second = reader.next();
+        assertEquals("done", second.name);
+        assertEquals("", second.data);
+
+        assertNull(reader.next());
+    }
+
+    private void serveEvents(String... events) {
+        server.createContext("/chat", exchange -> {
+            lastRequest = new JSONObject(readBody(exchange.getRequestBody()));
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (String event : events) {
+                    writeFlushed(out, event);
+                }
+            }
+        });
+    }
+
+    private static DocumentIndex twoChunkIndex() {
+        DocumentIndex index = new DocumentIndex("0123abcd");
+        StringBuilder text = new StringBuilder();
+        while (text.length() < DocumentIndex.CHUNK_CHARS * 2) {
+            text.append("invoice payment terms net thirty days ");
+        }
+        index.addText(text);
+        assertTrue(index.getChunkCount() >= 2);
+        return index;
+    }
+
+    /**
+     * Minimal document store: registration hands out a fresh id, and with
+     * forgetAfterFirstChat the store is dropped after the first answered question
+     */
+    private void serveDocuments(int[] registrations, List<JSONObject> chatRequests, boolean forgetAfterFirstChat) {
+        String[] liveId = {null};
+        server.createContext("/documents", exchange -> {
+            registrations[0]++;
+            liveId[0] = "doc-" + registrations[0];
+            respond(exchange, 200, "{\"success\": true, \"document_id\": \"" + liveId[0] + "\", \"chunk_ids\": []}");
+        });
+        server.createContext("/chat", exchange -> {
+            JSONObject request = new JSONObject(readBody(exchange.getRequestBody()));
+            chatRequests.add(request);
+            if (!request.getString("document_id").equals(liveId[0])) {
+                respond(exchange, 404, "{\"success\": false, \"code\": \"document_not_found\"}");
+                return;
+            }
+            if (forgetAfterFirstChat && chatRequests.size() == 1) {
+                liveId[0] = null;
+            }
+            respond(exchange, 200, "{\"success\": true, \"answer\": \"answer\"}");
+        });
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void writeFlushed(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
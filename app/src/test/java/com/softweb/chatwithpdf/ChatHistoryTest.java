@@ -0,0 +1,143 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the chat history file: messages survive reopening, a cut-off write is
+ * dropped, drafts wait until they are finished, and reading stays paged.
+ */
+public class ChatHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void messages_surviveReopen() throws IOException {
+        File file = new File(folder.getRoot(), "chat.log");
+        ChatHistory history = ChatHistory.open(file);
+        history.add(new ChatMessage("What is the deadline?", true));
+        history.add(new ChatMessage("Friday, ünless extended ✅", false));
+        history.flush();
+        history.close();
+
+        ChatHistory reopened = ChatHistory.open(file);
+        assertEquals(2, reopened.size());
+        assertEquals("What is the deadline?", reopened.get(0).getMessage());
+        assertTrue(reopened.get(0).isUserMessage());
+        assertEquals("Friday, ünless extended ✅", reopened.get(1).getMessage());
+        assertFalse(reopened.get(1).isUserMessage());
+        reopened.close();
+    }
+
+    @Test
+    public void open_dropsCutOffRecord() throws IOException {
+        File file = new File(folder.getRoot(), "chat.log");
+        ChatHistory history = ChatHistory.open(file);
+        history.add(new ChatMessage("First", true));
+        history.add(new ChatMessage("Second, cut off by a crash", false));
+        history.flush();
+        history.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 6);
+        }
+
+        ChatHistory reopened = ChatHistory.open(file);
+        assertEquals(1, reopened.size());
+        assertEquals("First", reopened.get(0).getMessage());
+        // Appends continue after the last whole record
+        reopened.add(new ChatMessage("Third", true));
+        reopened.flush();
+        reopened.close();
+
+        ChatHistory again = ChatHistory.open(file);
+        assertEquals(2, again.size());
+        assertEquals("Third", again.get(1).getMessage());
+        again.close();
+    }
+
+    @Test
+    public void draft_isWrittenOnlyOnceFinished() throws IOException {
+        File file = new File(folder.getRoot(), "chat.log");
+        ChatHistory history = ChatHistory.open(file);
+        history.add(new ChatMessage("Who signs off?", true));
+        int answer = history.addDraft(new ChatMessage("The site", false));
+        history.add(new ChatMessage("✅ PDF ready!", false));
+        history.flush();
+
+        // The question is written, the draft and the message after it wait
+        assertEquals(1, history.getStoredCount());
+        history.set(answer, history.get(answer).withMessage("The site manager."));
+        assertEquals("The site manager.", history.get(answer).getMessage());
+
+        history.finish(answer);
+        history.flush();
+        assertEquals(3, history.getStoredCount());
+        assertEquals("The site manager.", history.get(answer).getMessage());
+        history.close();
+
+        ChatHistory reopened = ChatHistory.open(file);
+        assertEquals(3, reopened.size());
+        assertEquals("The site manager.", reopened.get(1).getMessage());
+        assertEquals("✅ PDF ready!", reopened.get(2).getMessage());
+        reopened.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void set_finishedMessage_isRejected() {
+        ChatHistory history = ChatHistory.inMemory();
+        int position = history.add(new ChatMessage("Question", true));
+        history.set(position, new ChatMessage("Changed", true));
+    }
+
+    @Test
+    public void close_writesUnfinishedDrafts() throws IOException {
+        File file = new File(folder.getRoot(), "chat.log");
+        ChatHistory history = ChatHistory.open(file);
+        history.add(new ChatMessage("Question", true));
+        history.addDraft(new ChatMessage("Half an ans", false));
+        history.close();
+
+        ChatHistory reopened = ChatHistory.open(file);
+        assertEquals(2, reopened.size());
+        assertEquals("Half an ans", reopened.get(1).getMessage());
+        reopened.close();
+    }
+
+    @Test
+    public void open5000Messages_isQuickAndReadsPaged() throws IOException {
+        File file = new File(folder.getRoot(), "chat.log");
+        ChatHistory history = ChatHistory.open(file);
+        for (int i = 0; i < 5000; i++) {
+            history.add(new ChatMessage("Message " + i + " about pumps, valves and the maintenance schedule.",
+                    i % 2 == 0));
+        }
+        history.flush();
+        history.close();
+
+        long start = System.nanoTime();
+        ChatHistory reopened = ChatHistory.open(file);
+        long openMicros = (System.nanoTime() - start) / 1000;
+        assertEquals(5000, reopened.size());
+        assertEquals(0, reopened.getCachedMessageCount());
+
+        // Scroll from the latest message back to the first
+        start = System.nanoTime();
+        for (int i = 4999; i >= 0; i--) {
+            assertTrue(reopened.get(i).getMessage().startsWith("Message " + i + " "));
+            assertTrue(reopened.getCachedMessageCount() <= ChatHistory.CACHED_PAGES * ChatHistory.PAGE_SIZE);
+        }
+        long scrollMicros = (System.nanoTime() - start) / 1000;
+        System.out.println("Opened 5000 messages in " + openMicros + " us, read them all in " + scrollMicros + " us");
+        assertTrue("Opening took " + openMicros + " us", openMicros < 200_000);
+        reopened.close();
+    }
+}
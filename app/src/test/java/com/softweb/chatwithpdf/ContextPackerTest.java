@@ -0,0 +1,163 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests the token estimator, the shared model budget and packing requests into it.
+ */
+public class ContextPackerTest {
+
+    @Test
+    public void estimator_countsWordsDigitsAndSymbols() {
+        assertEquals(2, TokenEstimator.count("Hello world"));
+        assertEquals(2, TokenEstimator.count("calibration"));
+        assertEquals(2, TokenEstimator.count("2024"));
+        assertEquals(4, TokenEstimator.count("Hi, there!"));
+        // A double space and a line break cost a token each
+        assertEquals(3, TokenEstimator.count("a  b"));
+        assertEquals(3, TokenEstimator.count("a\nb"));
+        assertEquals(2, TokenEstimator.count("中文"));
+        assertEquals(2, TokenEstimator.count("Привет"));
+        assertEquals(1, TokenEstimator.count("😀"));
+        assertEquals(0, TokenEstimator.count(""));
+    }
+
+    @Test
+    public void estimator_prefixEndFitsAndKeepsWordsWhole() {
+        String text = "one two three four five six seven";
+
+        int end = TokenEstimator.prefixEnd(text, 0, 3);
+
+        assertEquals("one two three ", text.substring(0, end));
+        assertEquals(text.length(), TokenEstimator.prefixEnd(text, 0, 100));
+    }
+
+    @Test
+    public void estimator_allocatesNothing() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        String page = PooledHttpTransportTest.largeContext() + " Ünïcödé 中文 12345";
+        long id = Thread.currentThread().getId();
+
+        int total = 0;
+        for (int i = 0; i < 1000; i++) {
+            total += TokenEstimator.count(page);
+        }
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; i++) {
+            total += TokenEstimator.count(page);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        assertTrue(total > 0);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void sharedConfig_matchesDefault() throws Exception {
+        // The file the backend reads, on the test classpath through the build config
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(ModelBudget.FILE_NAME)) {
+            assertNotNull(in);
+            ModelBudget shared = ModelBudget.read(in);
+
+            assertEquals(ModelBudget.DEFAULT.getModel(), shared.getModel());
+            assertEquals(ModelBudget.DEFAULT.getContextTokens(), shared.getContextTokens());
+            assertEquals(ModelBudget.DEFAULT.getAnswerTokens(), shared.getAnswerTokens());
+            assertEquals(ModelBudget.DEFAULT.getInputTokens(), shared.getInputTokens());
+        }
+    }
+
+    @Test
+    public void pack_staysWithinBudgetAndKeepsBestChunk() {
+        DocumentIndex index = new DocumentIndex();
+        for (int i = 0; i < 40; i++) {
+            // Every chunk matches a little, so all of them are candidates
+            index.addText("Sensor notes. " + filler(900) + (i == 27 ? " The torque sensor is calibrated yearly." : ""));
+        }
+        ModelBudget budget = new ModelBudget("test", 1000, 200, 100);
+
+        ContextPacker.Packing packing = new ContextPacker(budget)
+                .pack(index, "How is the torque sensor calibrated?", Collections.<String>emptyList());
+
+        assertTrue(packing.tokens <= budget.getInputTokens());
+        assertTrue(Arrays.binarySearch(packing.chunkIds, 27) >= 0);
+        // Room left over is smaller than any chunk that was left out
+        int smallest = Integer.MAX_VALUE;
+        for (int i = 0; i < index.getChunkCount(); i++) {
+            if (Arrays.binarySearch(packing.chunkIds, i) < 0) {
+                smallest = Math.min(smallest, index.getChunkTokens(i));
+            }
+        }
+        int separator = TokenEstimator.count(DocumentIndex.CHUNK_SEPARATOR);
+        assertTrue(budget.getInputTokens() - packing.tokens < smallest + separator);
+        assertEquals(TokenEstimator.count(index.joinChunks(packing.chunkIds))
+                + TokenEstimator.count("How is the torque sensor calibrated?"), packing.tokens);
+    }
+
+    @Test
+    public void pack_leavesOutChunksMatchingNothing() {
+        DocumentIndex index = new DocumentIndex();
+        index.addText("Chapter one is about the battery. " + filler(900));
+        index.addText(filler(900));
+        index.addText("Chapter three is about the charger. " + filler(900));
+        ModelBudget budget = new ModelBudget("test", 10000, 200, 100);
+
+        ContextPacker.Packing packing = new ContextPacker(budget)
+                .pack(index, "battery charger", Collections.<String>emptyList());
+
+        assertArrayEquals(new int[]{0, 2}, packing.chunkIds);
+    }
+
+    @Test
+    public void pack_withoutMatch_sendsDocumentFromStart() {
+        DocumentIndex index = new DocumentIndex();
+        for (int i = 0; i < 10; i++) {
+            index.addText(filler(900));
+        }
+        ModelBudget budget = new ModelBudget("test", 1000, 200, 100);
+
+        ContextPacker.Packing packing = new ContextPacker(budget)
+                .pack(index, "zebra", Collections.<String>emptyList());
+
+        assertTrue(packing.chunkIds.length > 0);
+        for (int i = 0; i < packing.chunkIds.length; i++) {
+            assertEquals(i, packing.chunkIds[i]);
+        }
+    }
+
+    @Test
+    public void pack_keepsRecentHistoryWithinItsShare() {
+        DocumentIndex index = DocumentIndex.build(filler(20000));
+        ModelBudget budget = new ModelBudget("test", 1300, 200, 100);
+        String turn = filler(300);
+        List<String> history = Collections.nCopies(10, turn);
+
+        ContextPacker.Packing packing = new ContextPacker(budget).pack(index, "summary?", history);
+
+        int turnTokens = TokenEstimator.count(turn);
+        assertEquals(budget.getInputTokens() / 4 / turnTokens, packing.historyTurns);
+        assertTrue(packing.chunkIds.length > 0);
+        assertTrue(packing.tokens <= budget.getInputTokens());
+    }
+
+    private static String filler(int chars) {
+        String[] words = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit"};
+        StringBuilder builder = new StringBuilder(chars + 16);
+        int i = 0;
+        while (builder.length() < chars) {
+            builder.append(words[i++ % words.length]).append(' ');
+        }
+        return builder.toString();
+    }
+}
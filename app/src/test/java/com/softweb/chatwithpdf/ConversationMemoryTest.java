@@ -0,0 +1,111 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests keeping a conversation within its token budget.
+ */
+public class ConversationMemoryTest {
+
+    @Test
+    public void shortConversation_keptVerbatim() {
+        ConversationMemory memory = new ConversationMemory(1000);
+        memory.add("What is the deadline?", "Friday.");
+        memory.add("And for section 3?", "Monday.");
+
+        ConversationMemory.Snapshot snapshot = memory.snapshot();
+
+        assertEquals("", snapshot.summary);
+        assertEquals(2, snapshot.turns.size());
+        assertEquals("And for section 3?", snapshot.turns.get(1).question);
+        assertEquals(0, memory.getCompactedCount());
+    }
+
+    @Test
+    public void oldTurns_compactedOneAtATime() {
+        ConversationMemory memory = new ConversationMemory(300);
+        for (int i = 0; i < 10; i++) {
+            memory.add("Question " + i + " about the pump?", answer(i));
+        }
+        ConversationMemory.Snapshot snapshot = memory.snapshot();
+
+        assertTrue(memory.getCompactedCount() > 0);
+        assertEquals(10, memory.getCompactedCount() + snapshot.turns.size());
+        // The newest turn is verbatim and the last compacted one is the newest digest
+        assertEquals(answer(9), snapshot.turns.get(snapshot.turns.size() - 1).answer);
+        int lastCompacted = memory.getCompactedCount() - 1;
+        assertTrue(snapshot.summary.endsWith("Q: Question " + lastCompacted + " about the pump? A: Answer "
+                + lastCompacted + " starts here."));
+    }
+
+    @Test
+    public void longConversation_staysWithinBudget() {
+        int budget = ModelBudget.DEFAULT.getInputTokens() / 4;
+        ConversationMemory memory = new ConversationMemory(budget);
+        int maxTokens = 0;
+        for (int i = 0; i < 1000; i++) {
+            memory.add("Follow-up question number " + i + " on the manual?", answer(i));
+            maxTokens = Math.max(maxTokens, memory.getTokens());
+        }
+        ConversationMemory.Snapshot snapshot = memory.snapshot();
+
+        assertTrue(maxTokens + " tokens", maxTokens <= budget);
+        assertFalse(snapshot.summary.isEmpty());
+        assertFalse(snapshot.summary.contains("number 0 "));
+        // The packer takes all of it next to a question
+        List<String> texts = snapshot.getTexts();
+        assertEquals(texts.size(), new ContextPacker(ModelBudget.DEFAULT).historyTurns("and then?", texts));
+    }
+
+    @Test
+    public void turnLargerThanBudget_isDigested() {
+        ConversationMemory memory = new ConversationMemory(90);
+        StringBuilder answer = new StringBuilder("A very long answer. ");
+        for (int i = 0; i < 200; i++) {
+            answer.append("word").append(i).append(' ');
+        }
+        memory.add("Summarize everything?", answer.toString());
+
+        ConversationMemory.Snapshot snapshot = memory.snapshot();
+        assertTrue(snapshot.turns.isEmpty());
+        assertEquals("Q: Summarize everything? A: A very long answer.", snapshot.summary);
+        assertTrue(memory.getTokens() <= 90);
+    }
+
+    @Test
+    public void latest_dropsSummaryBeforeTurns() {
+        ConversationMemory memory = new ConversationMemory(60);
+        memory.add("What is the deadline for the report?", "The deadline is Friday.");
+        memory.add("Who signs off?", "The site manager.");
+        ConversationMemory.Snapshot snapshot = memory.snapshot();
+        assertEquals(2, snapshot.getTexts().size());
+
+        assertSame(snapshot, snapshot.latest(2));
+        assertEquals("", snapshot.latest(1).summary);
+        assertEquals(1, snapshot.latest(1).turns.size());
+        assertTrue(snapshot.latest(0).isEmpty());
+        assertEquals(Collections.singletonList("Who signs off?\nThe site manager."), snapshot.latest(1).getTexts());
+    }
+
+    @Test
+    public void clear_forgetsEverything() {
+        ConversationMemory memory = new ConversationMemory(60);
+        memory.add("What is the deadline for the report?", "The deadline is Friday.");
+        memory.add("Who signs off?", "The site manager.");
+
+        memory.clear();
+
+        assertTrue(memory.snapshot().isEmpty());
+        assertEquals(0, memory.getTokens());
+    }
+
+    private static String answer(int i) {
+        return "Answer " + i + " starts here. Then it goes into the details of the procedure at some length, "
+                + "with the torque values, the tools needed and the order of the steps.";
+    }
+}
@@ -0,0 +1,212 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the BM25 retrieval index, runs on the host JVM.
+ */
+public class DocumentIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void chunks_overlapAndCoverText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            text.append("word").append(i).append(' ');
+        }
+        DocumentIndex index = DocumentIndex.build(text.toString());
+
+        assertTrue(index.getChunkCount() > 1);
+        for (int i = 0; i < index.getChunkCount(); i++) {
+            assertTrue(index.getChunk(i).length() <= DocumentIndex.CHUNK_CHARS);
+        }
+        assertTrue(index.getChunk(0).toString().startsWith("word0 "));
+        assertTrue(index.getChunk(index.getChunkCount() - 1).toString().endsWith("word599"));
+
+        // The tail of one chunk is repeated at the head of the next
+        String first = index.getChunk(0).toString();
+        String lastWord = first.substring(first.lastIndexOf(' ') + 1);
+        assertTrue(index.getChunk(1).toString().contains(lastWord + " "));
+    }
+
+    @Test
+    public void search_ranksMatchingChunkFirst() {
+        DocumentIndex index = DocumentIndex.build(filler(5000)
+                + " The warranty deadline is thirty days after purchase. "
+                + filler(5000));
+
+        int[] results = index.search("What is the warranty deadline?", 3);
+
+        assertTrue(results.length > 0);
+        assertTrue(index.getChunk(results[0]).toString().contains("warranty deadline"));
+    }
+
+    @Test
+    public void search_noMatchingTerms_returnsEmpty() {
+        DocumentIndex index = DocumentIndex.build(filler(3000));
+        assertEquals(0, index.search("zebra", 5).length);
+        assertEquals(0, new DocumentIndex().search("anything", 5).length);
+    }
+
+    @Test
+    public void selectContext_respectsBudgetAndFindsLatePages() {
+        String text = filler(200000) + " Section 40 explains calibration of the torque sensor. " + filler(1000);
+        DocumentIndex index = DocumentIndex.build(text);
+
+        String context = index.selectContext("How do I calibrate the torque sensor?", 3000);
+
+        assertTrue(context.length() <= 3000);
+        assertTrue(context.contains("torque sensor"));
+    }
+
+    @Test
+    public void selectContext_withoutMatch_fallsBackToDocumentStart() {
+        DocumentIndex index = DocumentIndex.build("Introduction to the manual. " + filler(20000));
+
+        String context = index.selectContext("summarize", 2000);
+
+        assertTrue(context.startsWith("Introduction to the manual."));
+        assertTrue(context.length() <= 2000);
+    }
+
+    @Test
+    public void rank_withoutMatch_isEmpty() {
+        DocumentIndex index = DocumentIndex.build(filler(3000));
+        assertEquals(0, index.rank("zebra").length);
+    }
+
+    @Test
+    public void addText_isIncremental() {
+        DocumentIndex index = new DocumentIndex();
+        index.addText("Page one talks about batteries.");
+        index.addText("Page two talks about chargers.");
+
+        assertEquals(2, index.getChunkCount());
+        assertEquals(1, index.search("chargers", 5)[0]);
+    }
+
+    @Test
+    public void mappedPages_indexedWithoutCopies() throws Exception {
+        File file = folder.newFile("doc.pages");
+        List<String> pages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            pages.add("  Page " + i + ". " + filler(2500) + "\n");
+        }
+        PageTextFile.write(file, pages);
+        PageTextFile mapped = PageTextFile.open(file);
+
+        DocumentIndex fromStrings = new DocumentIndex();
+        DocumentIndex fromMapping = new DocumentIndex();
+        for (int i = 0; i < pages.size(); i++) {
+            fromStrings.addText(pages.get(i));
+            fromMapping.addText(mapped.getPage(i));
+        }
+
+        assertEquals(fromStrings.getChunkCount(), fromMapping.getChunkCount());
+        for (int i = 0; i < fromMapping.getChunkCount(); i++) {
+            assertFalse(fromMapping.getChunk(i) instanceof String);
+            assertEquals(fromStrings.getChunk(i).toString(), fromMapping.getChunk(i).toString());
+        }
+        assertEquals(fromStrings.selectContext("Page 7", 3000), fromMapping.selectContext("Page 7", 3000));
+    }
+
+    @Test
+    public void mappedPages_1000PageBook_textStaysOffHeap() throws Exception {
+        File file = folder.newFile("book.pages");
+        try (PageTextFile book = PageTextFile.create(file, 1000)) {
+            for (int i = 0; i < 1000; i++) {
+                book.appendPage("Страница " + i + ". " + filler(3000));
+            }
+        }
+        PageTextFile mapped = PageTextFile.open(file);
+        long textBytes = file.length();
+
+        long before = usedHeap();
+        DocumentIndex fromMapping = new DocumentIndex();
+        for (int i = 0; i < mapped.getPageCount(); i++) {
+            fromMapping.addText(mapped.getPage(i));
+        }
+        long mappingHeap = usedHeap() - before;
+
+        before = usedHeap();
+        DocumentIndex fromStrings = new DocumentIndex();
+        for (int i = 0; i < mapped.getPageCount(); i++) {
+            fromStrings.addText(mapped.getPage(i).toString());
+        }
+        long stringHeap = usedHeap() - before;
+
+        assertEquals(fromStrings.getChunkCount(), fromMapping.getChunkCount());
+        // Chunk vectors are on the heap either way, they are bounded by EmbeddingIndexTest
+        mappingHeap -= fromMapping.getEmbeddingBytes();
+        stringHeap -= fromStrings.getEmbeddingBytes();
+        // Views leave only postings on the heap, copied chunks hold the whole book on top
+        String sizes = "Strings " + stringHeap + " vs mapping " + mappingHeap + " for " + textBytes + " bytes";
+        assertTrue(sizes, mappingHeap * 4 < stringHeap);
+        assertTrue(sizes, mappingHeap < textBytes / 4);
+    }
+
+    @Test
+    public void search_500PageDocument_withinLatencyBudget() {
+        Random random = new Random(42);
+        String[] vocabulary = new String[20000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = "term" + Integer.toString(i, 36);
+        }
+
+        // ~3000 characters per page, 500 pages
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 500 * 3000) {
+            text.append(vocabulary[(int) Math.abs(random.nextGaussian() * 3000) % vocabulary.length]).append(' ');
+        }
+        DocumentIndex index = DocumentIndex.build(text.toString());
+
+        String[] queries = new String[200];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = vocabulary[random.nextInt(4000)] + " " + vocabulary[random.nextInt(4000)]
+                    + " " + vocabulary[random.nextInt(vocabulary.length)];
+        }
+        ContextPacker packer = new ContextPacker(ModelBudget.DEFAULT);
+        for (String query : queries) {
+            packer.pack(index, query, Collections.<String>emptyList());
+        }
+
+        long start = System.nanoTime();
+        for (String query : queries) {
+            packer.pack(index, query, Collections.<String>emptyList());
+        }
+        double averageMillis = (System.nanoTime() - start) / 1e6 / queries.length;
+
+        assertTrue("Average query took " + averageMillis + " ms", averageMillis < 5);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String filler(int chars) {
+        String[] words = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit"};
+        StringBuilder builder = new StringBuilder(chars + 16);
+        int i = 0;
+        while (builder.length() < chars) {
+            builder.append(words[i++ % words.length]).append(' ');
+        }
+        return builder.toString();
+    }
+}
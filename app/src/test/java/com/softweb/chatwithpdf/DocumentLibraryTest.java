@@ -0,0 +1,219 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the on-disk index segments and searching a library of them.
+ */
+public class DocumentLibraryTest {
+
+    private static final int VOCABULARY_SIZE = 3000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void segment_roundTrip() throws IOException {
+        String text = "Calibration of the pressure sensor. " + words(new Random(1), 600);
+        DocumentIndex index = new DocumentIndex("key");
+        index.addText(text);
+        File file = folder.newFile("doc.seg");
+
+        IndexSegment.write(file, "key", "Manual ü.pdf", index);
+        IndexSegment segment = IndexSegment.open(file);
+
+        assertEquals("key", segment.getKey());
+        assertEquals("Manual ü.pdf", segment.getName());
+        assertEquals(index.getChunkCount(), segment.getChunkCount());
+        for (int i = 0; i < index.getChunkCount(); i++) {
+            assertEquals(index.getChunk(i).toString(), segment.getChunk(i).toString());
+            assertEquals(index.getChunkTokens(i), segment.getChunkTokens(i));
+        }
+        assertTrue(segment.findTerm("calibration".getBytes("UTF-8")) >= 0);
+        assertEquals(-1, segment.findTerm("absent".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void segment_postingsAreVarintCompressed() throws IOException {
+        DocumentIndex index = new DocumentIndex("key");
+        index.addText(words(new Random(2), 20000));
+        File file = folder.newFile("large.seg");
+        IndexSegment.write(file, "key", "large", index);
+
+        long[] postings = {0};
+        index.forEachTerm((term, chunkIds, frequencies, size) -> postings[0] += size);
+        long textBytes = 0;
+        for (int i = 0; i < index.getChunkCount(); i++) {
+            textBytes += 2L * index.getChunk(i).length();
+        }
+
+        // Terms, postings and tables together take less than fixed-width postings alone would
+        long indexBytes = file.length() - textBytes;
+        assertTrue(indexBytes + " bytes for " + postings[0] + " postings", indexBytes < 8 * postings[0] / 2);
+    }
+
+    @Test
+    public void search_matchesOneIndexOverAllDocuments() throws IOException {
+        DocumentLibrary library = new DocumentLibrary(folder.newFolder("library"));
+        DocumentIndex combined = new DocumentIndex();
+        List<int[]> chunkOrigins = new ArrayList<>();
+        Random random = new Random(3);
+        for (int d = 0; d < 12; d++) {
+            String text = words(random, 3000);
+            DocumentIndex index = new DocumentIndex("doc" + d);
+            index.addText(text);
+            library.add("doc" + d, "Document " + d, index);
+            // Chunking is per addText call, so the combined index has the same chunks and statistics
+            combined.addText(text);
+            for (int c = 0; c < index.getChunkCount(); c++) {
+                chunkOrigins.add(new int[]{d, c});
+            }
+        }
+
+        String query = vocabularyWord(7) + " " + vocabularyWord(150) + " " + vocabularyWord(2200);
+        List<DocumentLibrary.Hit> hits = library.search(query, 10);
+        int[] expected = combined.search(query, 10);
+
+        assertEquals(expected.length, hits.size());
+        for (int i = 0; i < expected.length; i++) {
+            int[] origin = chunkOrigins.get(expected[i]);
+            assertEquals("doc" + origin[0], hits.get(i).document.getKey());
+            assertEquals(origin[1], hits.get(i).chunkId);
+            assertEquals(combined.getChunk(expected[i]).toString(), hits.get(i).getText().toString());
+        }
+    }
+
+    @Test
+    public void addAndRemove_leaveOtherDocumentsAlone() throws IOException, InterruptedException {
+        File directory = folder.newFolder("library");
+        DocumentLibrary library = new DocumentLibrary(directory);
+        library.add("a", "A", DocumentIndex.build("Pump maintenance schedule for the north wing."));
+        library.add("b", "B", DocumentIndex.build("Valve replacement procedure and torque values."));
+        File segmentA = directory.listFiles((dir, name) -> name.endsWith("-a.seg"))[0];
+        long modifiedA = segmentA.lastModified();
+        Thread.sleep(20);
+
+        library.add("c", "C", DocumentIndex.build("Gauge calibration interval and tolerances."));
+        library.remove("b");
+
+        assertEquals(modifiedA, segmentA.lastModified());
+        assertTrue(library.search("torque", 5).isEmpty());
+        assertEquals("c", library.search("gauge", 5).get(0).document.getKey());
+
+        // A reopened library finds the same documents on disk
+        DocumentLibrary reopened = new DocumentLibrary(directory);
+        assertEquals(2, reopened.getDocumentCount());
+        assertTrue(reopened.contains("a"));
+        assertTrue(reopened.contains("c"));
+        assertEquals("a", reopened.search("pump", 5).get(0).document.getKey());
+    }
+
+    @Test
+    public void reopenedLibrary_keepsTheOrderDocumentsWereAddedIn() throws IOException {
+        File directory = folder.newFolder("ordered");
+        DocumentLibrary library = new DocumentLibrary(directory);
+        for (String key : new String[] {"c", "a", "b"}) {
+            library.add(key, key.toUpperCase(), DocumentIndex.build("Document " + key + " text."));
+        }
+        // Added again, so it moves to the end
+        library.add("c", "C", DocumentIndex.build("Document c revised."));
+
+        List<IndexSegment> documents = new DocumentLibrary(directory).getDocuments();
+
+        assertEquals(3, documents.size());
+        assertEquals("a", documents.get(0).getKey());
+        assertEquals("b", documents.get(1).getKey());
+        assertEquals("c", documents.get(2).getKey());
+        assertEquals(3, directory.listFiles((dir, name) -> name.endsWith(".seg")).length);
+    }
+
+    @Test
+    public void packer_fitsLabelledHitsIntoBudget() throws IOException {
+        DocumentLibrary library = new DocumentLibrary(folder.newFolder("library"));
+        Random random = new Random(4);
+        for (int d = 0; d < 5; d++) {
+            DocumentIndex index = new DocumentIndex();
+            index.addText("pump " + words(random, 5000));
+            library.add("doc" + d, "Document " + d, index);
+        }
+        ModelBudget budget = new ModelBudget("model", 1024, 200, 64);
+        String question = "pump";
+
+        List<DocumentLibrary.Hit> packed = new ContextPacker(budget).pack(library.search(question, 64), question);
+        String context = DocumentLibrary.joinHits(packed);
+
+        assertFalse(packed.isEmpty());
+        assertTrue(context.startsWith("[Document "));
+        assertTrue(TokenEstimator.count(context) + TokenEstimator.count(question) <= budget.getInputTokens());
+    }
+
+    @Test
+    public void search200Documents_takesTensOfMilliseconds() throws IOException {
+        DocumentLibrary library = new DocumentLibrary(folder.newFolder("library"));
+        Random random = new Random(5);
+        int chunks = 0;
+        for (int d = 0; d < 200; d++) {
+            DocumentIndex index = new DocumentIndex();
+            index.addText(words(random, 4000));
+            library.add("doc" + d, "Document " + d, index);
+            chunks += index.getChunkCount();
+        }
+
+        String[] queries = new String[50];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = vocabularyWord(random.nextInt(300)) + " " + vocabularyWord(random.nextInt(VOCABULARY_SIZE))
+                    + " " + vocabularyWord(random.nextInt(VOCABULARY_SIZE));
+        }
+        for (String query : queries) {
+            library.search(query, 20);
+        }
+
+        long[] times = new long[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            long start = System.nanoTime();
+            assertFalse(library.search(queries[i], 20).isEmpty());
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        long medianMicros = times[times.length / 2] / 1000;
+        long p95Micros = times[times.length * 95 / 100] / 1000;
+
+        System.out.println("Library search over 200 documents, " + chunks + " chunks: median "
+                + medianMicros + " us, p95 " + p95Micros + " us");
+        assertTrue("Median " + medianMicros + " us", medianMicros < 50_000);
+    }
+
+    /**
+     * Text drawn from a fixed vocabulary with a skewed distribution, like real prose
+     */
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            double skew = random.nextDouble();
+            text.append(vocabularyWord((int) (skew * skew * skew * VOCABULARY_SIZE)));
+            text.append(i % 12 == 11 ? ". " : " ");
+        }
+        return text.toString();
+    }
+
+    private static String vocabularyWord(int n) {
+        StringBuilder word = new StringBuilder();
+        int value = n + 1;
+        while (value > 0) {
+            word.append((char) ('a' + value % 26));
+            value /= 26;
+        }
+        return word.append("ing").toString();
+    }
+}
@@ -0,0 +1,131 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests splitting a document into sections along its bookmarks and picking the
+ * sections a question is about.
+ */
+public class DocumentOutlineTest {
+
+    @Test
+    public void build_sectionsRunToTheNextBookmark() {
+        DocumentOutline outline = DocumentOutline.build(Arrays.asList(
+                entry("Maintenance", 3, 0),
+                entry("Pumps", 3, 1),
+                entry("Valves", 10, 1),
+                entry("Safety", 15, 0)), 20);
+        List<DocumentOutline.Section> sections = outline.getSections();
+
+        assertEquals(4, sections.size());
+        assertEquals("Front matter", sections.get(0).title);
+        assertEquals(1, sections.get(0).startPage);
+        assertEquals(2, sections.get(0).endPage);
+        // Bookmarks on one page head one section, titled with their parents
+        assertEquals("Maintenance / Maintenance > Pumps", sections.get(1).title);
+        assertEquals("Maintenance > Valves", sections.get(2).title);
+        assertEquals(10, sections.get(2).startPage);
+        assertEquals(14, sections.get(2).endPage);
+        assertEquals(20, sections.get(3).endPage);
+    }
+
+    @Test
+    public void build_splitsLongSections() {
+        DocumentOutline outline = DocumentOutline.build(
+                Collections.singletonList(entry("Reference", 1, 0)), 60);
+        List<DocumentOutline.Section> sections = outline.getSections();
+
+        assertEquals(3, sections.size());
+        assertEquals("Reference (pages 1-24)", sections.get(0).title);
+        assertEquals(49, sections.get(2).startPage);
+        assertEquals(60, sections.get(2).endPage);
+    }
+
+    @Test
+    public void build_withoutBookmarks_cutsEqualParts() {
+        DocumentOutline outline = DocumentOutline.build(
+                Collections.<PdfDocumentSession.OutlineEntry>emptyList(), 2000);
+        List<DocumentOutline.Section> sections = outline.getSections();
+
+        int pages = 0;
+        for (DocumentOutline.Section section : sections) {
+            assertTrue(section.getPageCount() <= DocumentOutline.MAX_SECTION_PAGES);
+            pages += section.getPageCount();
+        }
+        assertEquals(2000, pages);
+    }
+
+    @Test
+    public void build_ignoresBookmarksOutsideTheDocument() {
+        DocumentOutline outline = DocumentOutline.build(Arrays.asList(
+                entry("Broken link", 0, 0),
+                entry("Intro", 1, 0),
+                entry("Past the end", 40, 0)), 10);
+
+        assertEquals(1, outline.getSections().size());
+        assertEquals("Intro", outline.getSections().get(0).title);
+    }
+
+    @Test
+    public void select_prefersRareTitleWordsWithinThePageBudget() {
+        List<PdfDocumentSession.OutlineEntry> entries = new ArrayList<>();
+        for (int chapter = 0; chapter < 100; chapter++) {
+            entries.add(entry("Chapter " + chapter + " pump maintenance", 1 + chapter * 20, 0));
+        }
+        entries.set(42, entry("Chapter 42 hydraulic pump calibration", 1 + 42 * 20, 0));
+        DocumentOutline outline = DocumentOutline.build(entries, 2000);
+
+        List<DocumentOutline.Section> selected = outline.select("How do I do the hydraulic pump calibration?", 48);
+
+        assertFalse(selected.isEmpty());
+        assertEquals(42, selected.get(0).index);
+        int pages = 0;
+        for (DocumentOutline.Section section : selected) {
+            pages += section.getPageCount();
+        }
+        assertTrue(pages <= 48);
+    }
+
+    @Test
+    public void select_sectionsAlreadyReadLeaveTheBudgetToUnreadOnes() {
+        List<PdfDocumentSession.OutlineEntry> entries = new ArrayList<>();
+        for (int chapter = 0; chapter < 4; chapter++) {
+            entries.add(entry("Chapter " + chapter + " pump maintenance", 1 + chapter * 20, 0));
+        }
+        entries.add(entry("Valves", 81, 0));
+        DocumentOutline outline = DocumentOutline.build(entries, 100);
+        BitSet read = new BitSet();
+
+        List<DocumentOutline.Section> first = outline.select("pump maintenance", 48, read);
+        assertEquals(2, first.size());
+        for (DocumentOutline.Section section : first) {
+            read.set(section.index);
+        }
+
+        List<DocumentOutline.Section> second = outline.select("pump maintenance", 48, read);
+        assertEquals(2, second.size());
+        for (DocumentOutline.Section section : second) {
+            assertFalse(read.get(section.index));
+        }
+    }
+
+    @Test
+    public void select_noMatchingTitle_isEmpty() {
+        DocumentOutline outline = DocumentOutline.build(Arrays.asList(
+                entry("Pumps", 1, 0), entry("Valves", 5, 0)), 10);
+
+        assertTrue(outline.select("What colour is the sky?", 48).isEmpty());
+    }
+
+    private static PdfDocumentSession.OutlineEntry entry(String title, int page, int level) {
+        return new PdfDocumentSession.OutlineEntry(title, page, level);
+    }
+}
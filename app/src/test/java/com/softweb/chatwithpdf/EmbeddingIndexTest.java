@@ -0,0 +1,117 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the hashed chunk vectors and their fusion with keyword ranking.
+ */
+public class EmbeddingIndexTest {
+
+    private static final String[] TOPICS = {
+            "Replacing the hydraulic pump seals requires draining the reservoir first.",
+            "Warranty claims must include the original receipt and serial number.",
+            "Calibration of pressure sensors is performed annually by certified technicians.",
+            "Battery packs should be stored at half charge in a cool dry room.",
+            "Firmware updates are downloaded over the maintenance network port.",
+    };
+
+    @Test
+    public void identicalText_hasSimilarityOne() {
+        EmbeddingIndex index = new EmbeddingIndex();
+        index.add(TOPICS[0]);
+
+        assertEquals(1f, index.similarities(TOPICS[0])[0], 0.02f);
+    }
+
+    @Test
+    public void search_findsRewordedPassage() {
+        EmbeddingIndex index = new EmbeddingIndex();
+        for (String topic : TOPICS) {
+            index.add(topic);
+        }
+
+        int[] results = index.search("How do I calibrate a pressure sensor?", 5);
+
+        assertTrue(results.length > 0);
+        assertEquals(2, results[0]);
+    }
+
+    @Test
+    public void search_unrelatedQuery_findsNothing() {
+        EmbeddingIndex index = new EmbeddingIndex();
+        for (String topic : TOPICS) {
+            index.add(topic);
+        }
+
+        assertEquals(0, index.search("zebra migration patterns", 5).length);
+        assertEquals(0, index.search("the and of", 5).length);
+    }
+
+    @Test
+    public void rank_findsPassageKeywordsMiss() {
+        DocumentIndex index = new DocumentIndex();
+        for (int i = 0; i < 30; i++) {
+            index.addText(i == 17 ? "Technicians recalibrate every torque wrench before shipping."
+                    : TOPICS[i % TOPICS.length] + " Section " + i + ".");
+        }
+        String question = "Do wrenches get calibrated?";
+
+        // Neither word appears as such, only their stems do
+        assertEquals(0, index.search(question, 5).length);
+        assertEquals(17, index.rank(question)[0]);
+        assertEquals(17, index.searchSimilar(question, 1)[0]);
+    }
+
+    @Test
+    public void document2000Pages_fewMillisecondsAndSmall() {
+        Random random = new Random(7);
+        EmbeddingIndex index = new EmbeddingIndex();
+        StringBuilder page = new StringBuilder();
+        // ~3000 characters per page, chunks of about 800 new characters each
+        int chunks = 2000 * 3000 / (DocumentIndex.CHUNK_CHARS - DocumentIndex.CHUNK_OVERLAP);
+        for (int c = 0; c < chunks; c++) {
+            page.setLength(0);
+            while (page.length() < DocumentIndex.CHUNK_CHARS) {
+                page.append(word(random)).append(' ');
+            }
+            index.add(page);
+        }
+
+        String[] queries = new String[100];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = word(random) + " " + word(random) + " " + word(random);
+        }
+        for (String query : queries) {
+            index.search(query, 20);
+        }
+        long[] times = new long[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            long start = System.nanoTime();
+            index.search(queries[i], 20);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        double medianMillis = times[times.length / 2] / 1e6;
+        long bytesPer100Pages = (long) index.size() * (EmbeddingIndex.DIMENSIONS + 4) / 20;
+
+        System.out.println("Vector search over " + index.size() + " chunks: median " + medianMillis
+                + " ms, " + bytesPer100Pages + " bytes per 100 pages");
+        assertTrue("Median " + medianMillis + " ms", medianMillis < 10);
+        assertTrue(bytesPer100Pages < 256 * 1024);
+    }
+
+    private static String word(Random random) {
+        StringBuilder word = new StringBuilder();
+        int value = (int) Math.abs(random.nextGaussian() * 3000) + 1;
+        while (value > 0) {
+            word.append((char) ('a' + value % 26));
+            value /= 26;
+        }
+        return word.append("tion").toString();
+    }
+}
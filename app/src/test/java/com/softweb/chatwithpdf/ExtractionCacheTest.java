@@ -0,0 +1,208 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the append-only page text file and the extraction cache.
+ */
+public class ExtractionCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pageTextFile_roundTrip() throws IOException {
+        List<String> pages = Arrays.asList("First page\n", "", "Ünïcödé — page three\n");
+        File file = folder.newFile("doc.pages");
+
+        PageTextFile.write(file, pages);
+        PageTextFile read = PageTextFile.open(file);
+
+        assertEquals(3, read.getPageCount());
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals(pages.get(i), read.getPage(i).toString());
+        }
+    }
+
+    @Test
+    public void pageTextFile_largePageSpansWriteBuffer() throws IOException {
+        char[] chars = new char[200 * 1024];
+        Arrays.fill(chars, 'x');
+        String page = new String(chars);
+        File file = folder.newFile("large.pages");
+
+        PageTextFile.write(file, Collections.singletonList(page));
+
+        assertEquals(page, PageTextFile.open(file).getPage(0).toString());
+    }
+
+    @Test(expected = IOException.class)
+    public void pageTextFile_rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("garbage.pages");
+        Files.write(file.toPath(), "not a page file".getBytes(StandardCharsets.UTF_8));
+        PageTextFile.open(file);
+    }
+
+    @Test
+    public void pageTextFile_reopenedPartialFileResumes() throws IOException {
+        File file = folder.newFile("partial.pages");
+        try (PageTextFile pages = PageTextFile.create(file, 3)) {
+            pages.appendPage("one");
+            pages.appendPage("two");
+        }
+        // An append cut short by a crash: a length with only part of its text
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(100);
+            raf.writeChars("thr");
+        }
+
+        PageTextFile reopened = PageTextFile.open(file);
+        assertEquals(2, reopened.getPageCount());
+        assertFalse(reopened.isComplete());
+        reopened.appendPage("three");
+        reopened.close();
+
+        PageTextFile complete = PageTextFile.open(file);
+        assertTrue(complete.isComplete());
+        assertEquals("three", complete.getPage(2).toString());
+    }
+
+    @Test
+    public void pageTextFile_appendSkipsPagesAlreadyStored() throws IOException {
+        PageTextFile pages = PageTextFile.create(folder.newFile("twice.pages"), 2);
+
+        assertTrue(pages.appendPage(0, "first"));
+        assertFalse(pages.appendPage(0, "first again"));
+        assertTrue(pages.appendPage(1, "second"));
+
+        assertEquals("first", pages.getPage(0).toString());
+        assertEquals(2, pages.getPageCount());
+    }
+
+    @Test
+    public void pageTextFile_sparsePagesSurviveReopen() throws IOException {
+        File file = folder.newFile("sparse.pages");
+        try (PageTextFile pages = PageTextFile.create(file, 6)) {
+            assertTrue(pages.appendPage(4, "five"));
+            assertTrue(pages.appendPage(0, "one"));
+            assertTrue(pages.appendPage(5, "six"));
+            // Sequential readers only see the pages before the first gap
+            assertEquals(1, pages.getPageCount());
+            assertEquals(3, pages.getStoredPageCount());
+        }
+
+        PageTextFile reopened = PageTextFile.open(file);
+        assertTrue(reopened.hasPage(4));
+        assertFalse(reopened.hasPage(1));
+        assertEquals("six", reopened.getPage(5).toString());
+        reopened.appendPage("two");
+        reopened.appendPage(2, "three");
+        reopened.appendPage(3, "four");
+        assertEquals(6, reopened.getPageCount());
+        assertTrue(reopened.isComplete());
+        reopened.close();
+
+        assertEquals("five", PageTextFile.open(file).getPage(4).toString());
+    }
+
+    @Test
+    public void pageTextFile_pagesAreViewsReadableWhileAppending() throws IOException {
+        PageTextFile pages = PageTextFile.create(folder.newFile("views.pages"), 2);
+        pages.appendPage("early page");
+        CharSequence early = pages.getPage(0);
+        pages.appendPage("late page");
+
+        assertFalse(early instanceof String);
+        assertEquals("early page", early.toString());
+        assertEquals("page", pages.getPage(1).subSequence(5, 9).toString());
+        pages.close();
+        assertEquals("late page", pages.getPage(1).toString());
+    }
+
+    @Test
+    public void pageTextFile_readingWhileAppendingMapsLogarithmically() throws IOException {
+        int pageCount = 1000;
+        PageTextFile pages = PageTextFile.create(folder.newFile("long.pages"), pageCount);
+        for (int i = 0; i < pageCount; i++) {
+            pages.appendPage("Page " + i + " of a long document.");
+            assertEquals("Page " + i + " of a long document.", pages.getPage(i).toString());
+        }
+
+        // The file doubles about ten times over 1000 pages of similar size
+        assertTrue(pages.getMappingCount() <= 12);
+        pages.close();
+        assertEquals("Page 999 of a long document.", pages.getPage(999).toString());
+        assertEquals("Page 0 of a long document.", pages.getPage(0).toString());
+    }
+
+    @Test
+    public void cache_partialEntrySurvivesReopen() throws IOException {
+        File directory = folder.newFolder("cache");
+        PageTextFile pages = new ExtractionCache(directory, 1024 * 1024).create("abc", 3);
+        pages.appendPage("one");
+
+        // A new process finds the pages extracted so far
+        PageTextFile reopened = new ExtractionCache(directory, 1024 * 1024).get("abc");
+        assertNotNull(reopened);
+        assertEquals(1, reopened.getPageCount());
+        assertEquals(3, reopened.getExpectedPageCount());
+        assertEquals("one", reopened.getPage(0).toString());
+    }
+
+    @Test
+    public void cache_missThenHit() throws IOException {
+        ExtractionCache cache = new ExtractionCache(folder.newFolder("cache"), 1024 * 1024);
+
+        assertNull(cache.get("abc"));
+        cache.put("abc", Arrays.asList("one", "two"));
+
+        PageTextFile cached = cache.get("abc");
+        assertNotNull(cached);
+        assertEquals("two", cached.getPage(1).toString());
+    }
+
+    @Test
+    public void cache_evictsLeastRecentlyUsed() throws IOException {
+        // Each entry is ~20 KB, the cache holds two
+        ExtractionCache cache = new ExtractionCache(folder.newFolder("cache"), 45 * 1024);
+        List<String> pages = Collections.singletonList(new String(new char[10 * 1024]));
+
+        cache.put("a", pages);
+        cache.put("b", pages);
+        backdate(folder.getRoot(), "a", 2000);
+        backdate(folder.getRoot(), "b", 3000);
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", pages);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void sha256Hex_matchesKnownDigest() throws IOException {
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                ExtractionCache.sha256Hex(new ByteArrayInputStream("abc".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    private static void backdate(File root, String key, long ageMillis) {
+        File entry = new File(new File(root, "cache"), key + ".pages");
+        assertTrue(entry.setLastModified(System.currentTimeMillis() - ageMillis));
+    }
+}
@@ -0,0 +1,194 @@
+package com.softweb.chatwithpdf;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests the streaming JSON writer and pull parser, and how much a large request allocates.
+ */
+public class JsonStreamTest {
+
+    private static final String AWKWARD = "quote \" slash \\ tab \t line\nreturn\r bell \u0007 "
+            + "é 中 emoji 😀 lone \uD800 end";
+
+    @Test
+    public void writer_outputParsesLikeJsonObject() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonStreamWriter json = new JsonStreamWriter(bytes);
+        json.beginObject()
+                .name("text").value(AWKWARD)
+                .name("joined").value(Arrays.asList("a", "b\"", "c"), "\n")
+                .name("ids").beginArray().value(0).value(-7).value(Long.MIN_VALUE).endArray()
+                .name("empty").beginObject().endObject()
+                .name("flag").value(true)
+                .name("nothing").nullValue()
+                .endObject();
+        json.flush();
+
+        assertEquals(bytes.size(), json.getByteCount());
+        JSONObject parsed = new JSONObject(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        // Unpaired surrogates go out as escapes, which decode back to the same char
+        assertEquals(AWKWARD, parsed.getString("text"));
+        assertEquals("a\nb\"\nc", parsed.getString("joined"));
+        assertEquals(Long.MIN_VALUE, parsed.getJSONArray("ids").getLong(2));
+        assertEquals(0, parsed.getJSONObject("empty").length());
+        assertTrue(parsed.getBoolean("flag"));
+        assertTrue(parsed.isNull("nothing"));
+    }
+
+    @Test
+    public void reader_readsWhatJsonObjectWrites() throws Exception {
+        JSONObject source = new JSONObject()
+                .put("answer", AWKWARD)
+                .put("chunk_ids", new JSONArray(Arrays.asList(3, 1, 4)))
+                .put("nested", new JSONObject().put("skip", new JSONArray("[{\"a\":[1,2]},\"x\"]")))
+                .put("success", true)
+                .put("ratio", 1.5);
+
+        JsonStreamReader reader = new JsonStreamReader(new StringReader(source.toString(2)));
+        List<Object> seen = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "answer":
+                    seen.add(reader.nextString());
+                    break;
+                case "chunk_ids":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        seen.add(reader.nextInt());
+                    }
+                    reader.endArray();
+                    break;
+                case "success":
+                    seen.add(reader.nextBoolean());
+                    break;
+                case "ratio":
+                    seen.add(reader.nextString());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        assertEquals(JsonStreamReader.Token.END_DOCUMENT, reader.peek());
+        assertTrue(seen.contains(AWKWARD));
+        assertTrue(seen.containsAll(Arrays.asList(3, 1, 4, true, "1.5")));
+    }
+
+    @Test(expected = IOException.class)
+    public void reader_rejectsTruncatedInput() throws Exception {
+        JsonStreamReader reader = new JsonStreamReader(new StringReader("{\"answer\":\"cut"));
+        reader.beginObject();
+        reader.nextName();
+        reader.nextString();
+    }
+
+    @Test
+    public void largeContext_allocatesAnOrderOfMagnitudeLess() throws Exception {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        assumeTrue(threads != null);
+        List<String> chunks = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            chunks.add(PooledHttpTransportTest.largeContext().substring(0, 1000) + i);
+        }
+        OutputStream socket = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        // Warm both paths so class loading and the thread's buffer are not counted
+        for (int i = 0; i < 20; i++) {
+            treeRequest(chunks, socket);
+            streamedRequest(chunks, socket);
+        }
+
+        long tree = allocatedBy(threads, () -> treeRequest(chunks, socket));
+        long streamed = allocatedBy(threads, () -> streamedRequest(chunks, socket));
+
+        System.out.println("Bytes allocated per request: tree " + tree + ", streamed " + streamed);
+        assertTrue("tree " + tree + " streamed " + streamed, streamed * 10 <= tree);
+    }
+
+    private interface Request {
+        void send() throws Exception;
+    }
+
+    private static long allocatedBy(com.sun.management.ThreadMXBean threads, Request request) throws Exception {
+        long id = Thread.currentThread().getId();
+        int rounds = 10;
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < rounds; i++) {
+            request.send();
+        }
+        return (threads.getThreadAllocatedBytes(id) - before) / rounds;
+    }
+
+    /**
+     * How requests were built before: a JSON tree, its string, then its bytes
+     */
+    private static void treeRequest(List<String> chunks, OutputStream socket) throws Exception {
+        JSONObject newChunks = new JSONObject();
+        JSONArray ids = new JSONArray();
+        for (int i = 0; i < chunks.size(); i++) {
+            ids.put(i);
+            newChunks.put(Integer.toString(i), chunks.get(i));
+        }
+        JSONObject body = new JSONObject()
+                .put("document_id", "doc")
+                .put("chunk_ids", ids)
+                .put("chunks", newChunks)
+                .put("question", "What is it about?");
+        socket.write(body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void streamedRequest(List<String> chunks, OutputStream socket) throws Exception {
+        HttpTransport.RequestBody body = HttpTransport.json(json -> {
+            json.beginObject().name("document_id").value("doc");
+            json.name("chunk_ids").beginArray();
+            for (int i = 0; i < chunks.size(); i++) {
+                json.value(i);
+            }
+            json.endArray();
+            json.name("chunks").beginObject();
+            for (int i = 0; i < chunks.size(); i++) {
+                json.name(Integer.toString(i)).value(chunks.get(i));
+            }
+            json.endObject();
+            json.name("question").value("What is it about?").endObject();
+        });
+        // Both passes a fixed-length upload makes
+        body.contentLength();
+        body.writeTo(socket);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled() ? threads : null;
+    }
+}
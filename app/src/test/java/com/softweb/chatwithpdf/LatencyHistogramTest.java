@@ -0,0 +1,99 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests bucket boundaries, percentile accuracy and concurrent recording of the histogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_coverEveryValueOnce() {
+        assertEquals(0, LatencyHistogram.lowestValue(0));
+        for (int bucket = 1; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long lowest = LatencyHistogram.lowestValue(bucket);
+            assertEquals(LatencyHistogram.highestValue(bucket - 1) + 1, lowest);
+            assertEquals(bucket, LatencyHistogram.bucketIndex(lowest));
+            assertEquals(bucket - 1, LatencyHistogram.bucketIndex(lowest - 1));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(LatencyHistogram.MAX_NANOS));
+    }
+
+    @Test
+    public void buckets_keepRelativeErrorSmall() {
+        for (int bucket = 64; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long lowest = LatencyHistogram.lowestValue(bucket);
+            long width = LatencyHistogram.highestValue(bucket) - lowest + 1;
+            assertTrue("Bucket " + bucket, (double) width / lowest <= 1.0 / 32);
+        }
+    }
+
+    @Test
+    public void percentiles_matchRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500_000L, histogram.getMeanNanos());
+        assertEquals(1_000_000_000L, histogram.getMaxNanos());
+        assertWithin(500_000_000L, histogram.getValueAtPercentile(50));
+        assertWithin(990_000_000L, histogram.getValueAtPercentile(99));
+        assertEquals(1_000_000_000L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void record_clampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.MAX_NANOS, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void record_countsEverySampleFromManyThreads() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            long value = (t + 1) * 1000L;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(value);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(4000, histogram.getMaxNanos());
+        assertEquals(2500, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void reset_emptiesHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(12345);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 32);
+    }
+}
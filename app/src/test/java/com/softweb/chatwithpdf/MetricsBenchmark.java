@@ -0,0 +1,44 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Cost of a span around a stage: nearly nothing while metrics are disabled, which is
+ * how release builds run, and the price of two clock reads and a few atomic adds when
+ * enabled. Trace sections are left out, they need a device.
+ */
+public class MetricsBenchmark {
+
+    private static final int WARMUP = 2_000_000;
+    private static final int ITERATIONS = 20_000_000;
+
+    @After
+    public void disable() {
+        Metrics.setEnabled(false, false);
+    }
+
+    @Test
+    public void spanOverhead() {
+        Metrics.setEnabled(false, false);
+        double disabled = nanosPerSpan();
+        Metrics.setEnabled(true, false);
+        double enabled = nanosPerSpan();
+
+        System.out.printf("Span cost: %.1f ns disabled, %.1f ns enabled%n", disabled, enabled);
+    }
+
+    private static double nanosPerSpan() {
+        run(WARMUP);
+        long start = System.nanoTime();
+        run(ITERATIONS);
+        return (double) (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static void run(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            long span = Metrics.begin(Metrics.Stage.NORMALIZATION);
+            Metrics.end(Metrics.Stage.NORMALIZATION, span);
+        }
+    }
+}
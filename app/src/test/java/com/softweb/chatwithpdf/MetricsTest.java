@@ -0,0 +1,111 @@
+package com.softweb.chatwithpdf;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests spans, counters and the JSON snapshot, without trace sections as those need a device.
+ */
+public class MetricsTest {
+
+    @After
+    public void disable() {
+        Metrics.setEnabled(false, false);
+    }
+
+    @Test
+    public void disabled_recordsNothing() {
+        long span = Metrics.begin(Metrics.Stage.RETRIEVAL);
+        Metrics.end(Metrics.Stage.RETRIEVAL, span);
+        Metrics.count(Metrics.Counter.PAGES_EXTRACTED, 3);
+
+        assertEquals(0, span);
+        assertNull(Metrics.getHistogram(Metrics.Stage.RETRIEVAL));
+        assertEquals(0, Metrics.getCount(Metrics.Counter.PAGES_EXTRACTED));
+    }
+
+    @Test
+    public void span_recordsElapsedTime() throws InterruptedException {
+        Metrics.setEnabled(true, false);
+        long span = Metrics.begin(Metrics.Stage.RETRIEVAL);
+        Thread.sleep(20);
+        Metrics.end(Metrics.Stage.RETRIEVAL, span);
+
+        LatencyHistogram histogram = Metrics.getHistogram(Metrics.Stage.RETRIEVAL);
+        assertEquals(1, histogram.getCount());
+        assertTrue(histogram.getMaxNanos() >= 20_000_000L);
+        assertEquals(0, Metrics.getHistogram(Metrics.Stage.PDF_LOAD).getCount());
+    }
+
+    @Test
+    public void span_overItemsRecordsEachShare() {
+        Metrics.setEnabled(true, false);
+        long span = Metrics.begin(Metrics.Stage.PAGE_EXTRACTION);
+        Metrics.end(Metrics.Stage.PAGE_EXTRACTION, span, 8);
+
+        assertEquals(8, Metrics.getHistogram(Metrics.Stage.PAGE_EXTRACTION).getCount());
+    }
+
+    @Test
+    public void spanBegunWhileDisabled_isDropped() {
+        long span = Metrics.begin(Metrics.Stage.RENDER);
+        Metrics.setEnabled(true, false);
+        Metrics.end(Metrics.Stage.RENDER, span);
+
+        assertEquals(0, Metrics.getHistogram(Metrics.Stage.RENDER).getCount());
+    }
+
+    @Test
+    public void reset_clearsStagesAndCounters() {
+        Metrics.setEnabled(true, false);
+        Metrics.record(Metrics.Stage.FIRST_BYTE, 1_000_000);
+        Metrics.count(Metrics.Counter.REQUEST_BYTES, 512);
+        Metrics.reset();
+
+        assertEquals(0, Metrics.getHistogram(Metrics.Stage.FIRST_BYTE).getCount());
+        assertEquals(0, Metrics.getCount(Metrics.Counter.REQUEST_BYTES));
+    }
+
+    @Test
+    public void snapshot_isValidJsonWithBuckets() throws Exception {
+        Metrics.setEnabled(true, false);
+        Metrics.record(Metrics.Stage.FIRST_BYTE, 40_000_000);
+        Metrics.record(Metrics.Stage.FIRST_BYTE, 40_000_000);
+        Metrics.record(Metrics.Stage.FIRST_BYTE, 90_000_000);
+        Metrics.count(Metrics.Counter.CHUNKS_RETRIEVED, 12);
+
+        JSONObject snapshot = snapshot();
+
+        assertTrue(snapshot.getBoolean("enabled"));
+        JSONObject firstByte = snapshot.getJSONObject("stages").getJSONObject("answer.firstByte");
+        assertEquals(3, firstByte.getLong("count"));
+        assertEquals(90_000_000L, firstByte.getLong("maxNanos"));
+        JSONArray buckets = firstByte.getJSONArray("buckets");
+        assertEquals(2, buckets.length());
+        assertEquals(2, buckets.getJSONArray(0).getLong(1));
+        assertTrue(buckets.getJSONArray(0).getLong(0) >= 40_000_000L);
+        assertEquals(0, snapshot.getJSONObject("stages").getJSONObject("pdf.load").getLong("count"));
+        assertEquals(12, snapshot.getJSONObject("counters").getLong("question.chunks"));
+    }
+
+    @Test
+    public void snapshot_whenDisabled() throws Exception {
+        JSONObject snapshot = snapshot();
+
+        assertFalse(snapshot.getBoolean("enabled"));
+        assertEquals(0, snapshot.getJSONObject("stages").length());
+    }
+
+    private static JSONObject snapshot() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Metrics.writeSnapshot(out);
+        return new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,168 @@
+package com.softweb.chatwithpdf;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for the Flask /chat endpoint with the same content negotiation:
+ * gzip request bodies are inflated and advertised with Accept-Encoding, JSON
+ * answers are gzipped for clients that accept it, event streams never are.
+ * /documents registers any hash and /health answers for warm-ups; every response
+ * can be held back to simulate a network round trip. /paused sends half a body,
+ * stops for a while and then sends the rest, like a stream waiting on its upstream.
+ */
+class MockBackendServer implements Closeable {
+
+    static {
+        // Otherwise Nagle's algorithm against delayed ACKs adds ~40 ms to every loopback response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+
+    volatile boolean acceptGzipRequests = true;
+    volatile String answer = "The deadline is Friday.";
+    volatile int streamEvents = 20;
+    volatile int roundTripMillis;
+    volatile int bodyPauseMillis;
+
+    final AtomicInteger registrations = new AtomicInteger();
+    final AtomicInteger healthChecks = new AtomicInteger();
+
+    volatile JSONObject lastRequest;
+    volatile String lastContentEncoding;
+
+    MockBackendServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/chat", this::handleChat);
+        server.createContext("/documents", exchange -> {
+            readAll(exchange.getRequestBody());
+            registrations.incrementAndGet();
+            delay();
+            respond(exchange, 200, "{\"success\": true, \"document_id\": \"doc-1\", \"chunk_ids\": []}");
+        });
+        server.createContext("/paused", exchange -> {
+            readAll(exchange.getRequestBody());
+            delay();
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write("first half, ".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                sleep(bodyPauseMillis);
+                out.write("second half".getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // The client gave up waiting
+            }
+        });
+        server.createContext("/health", exchange -> {
+            healthChecks.incrementAndGet();
+            delay();
+            respond(exchange, 200, "{\"status\": \"healthy\"}");
+        });
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleChat(HttpExchange exchange) throws IOException {
+        Headers requestHeaders = exchange.getRequestHeaders();
+        lastContentEncoding = requestHeaders.getFirst("Content-Encoding");
+        if (acceptGzipRequests) {
+            exchange.getResponseHeaders().set("Accept-Encoding", "gzip");
+        }
+
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equals(lastContentEncoding)) {
+            if (!acceptGzipRequests) {
+                readAll(body);
+                respond(exchange, 415, "{\"success\": false, \"error\": \"Unsupported encoding\"}");
+                return;
+            }
+            body = new GZIPInputStream(body);
+        }
+        JSONObject request = new JSONObject(new String(readAll(body), StandardCharsets.UTF_8));
+        lastRequest = request;
+        delay();
+
+        if (!request.optBoolean("stream")) {
+            respond(exchange, 200, new JSONObject().put("success", true).put("answer", answer).toString());
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            String[] words = answer.split(" ");
+            for (int i = 0; i < streamEvents; i++) {
+                String delta = (i == 0 ? "" : " ") + words[i % words.length];
+                out.write(("data: " + delta + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            out.write("event: done\ndata: \n\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void delay() {
+        sleep(roundTripMillis);
+    }
+
+    private static void sleep(int millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accepted != null && accepted.contains("gzip") && body.length >= PooledHttpTransport.GZIP_MIN_BYTES) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,90 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the latch runs its action once and holds back threads that arrive meanwhile.
+ */
+public class OnceLatchTest {
+
+    @Test
+    public void run_runsActionOnce() {
+        OnceLatch latch = new OnceLatch();
+        AtomicInteger runs = new AtomicInteger();
+
+        assertTrue(latch.run(runs::incrementAndGet));
+        assertFalse(latch.run(runs::incrementAndGet));
+
+        assertEquals(1, runs.get());
+        assertTrue(latch.isDone());
+    }
+
+    @Test
+    public void run_waitsForActionInProgress() throws InterruptedException {
+        OnceLatch latch = new OnceLatch();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean finished = new AtomicBoolean();
+
+        Thread first = new Thread(() -> latch.run(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.set(true);
+        }));
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        AtomicBoolean sawFinished = new AtomicBoolean();
+        Thread second = new Thread(() -> {
+            latch.run(() -> fail("Ran twice"));
+            sawFinished.set(finished.get());
+        });
+        second.start();
+        second.join(200);
+        // Still waiting for the first thread
+        assertTrue(second.isAlive());
+        assertFalse(latch.isDone());
+
+        release.countDown();
+        second.join(5000);
+        first.join(5000);
+        assertTrue(sawFinished.get());
+    }
+
+    @Test
+    public void run_throwingActionStillReleasesWaiters() throws InterruptedException {
+        OnceLatch latch = new OnceLatch();
+        try {
+            latch.run(() -> {
+                throw new IllegalStateException("broken");
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+            // The caller sees the failure, later callers do not wait forever
+        }
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(latch.run(() -> fail("Ran twice")));
+    }
+
+    @Test
+    public void await_keepsInterruptForCaller() {
+        OnceLatch latch = new OnceLatch();
+        latch.run(() -> { });
+
+        Thread.currentThread().interrupt();
+        latch.await();
+        assertTrue(Thread.interrupted());
+    }
+}
@@ -0,0 +1,36 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for worker sizing in the parallel extractor.
+ */
+public class ParallelPdfExtractorTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void workersFor_limitedByMemoryCeiling() {
+        // 40 MB file costs ~28 MB per loaded copy, so 64 MB only fits two
+        assertEquals(2, ParallelPdfExtractor.workersFor(40 * MB, 64 * MB, 8, 500));
+    }
+
+    @Test
+    public void workersFor_neverBelowOne() {
+        assertEquals(1, ParallelPdfExtractor.workersFor(200 * MB, 16 * MB, 8, 500));
+    }
+
+    @Test
+    public void workersFor_limitedBySliceCount() {
+        int slices = 2;
+        assertEquals(slices, ParallelPdfExtractor.workersFor(MB, 512 * MB, 8, slices * ParallelPdfExtractor.SLICE_PAGES));
+        assertEquals(1, ParallelPdfExtractor.workersFor(MB, 512 * MB, 8, 3));
+    }
+
+    @Test
+    public void workersFor_limitedByMaxWorkers() {
+        assertEquals(4, ParallelPdfExtractor.workersFor(MB, 512 * MB, 4, 500));
+    }
+}
@@ -0,0 +1,198 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests connection reuse, gzip negotiation and adaptive timeouts of the pooled transport.
+ */
+public class PooledHttpTransportTest {
+
+    private MockBackendServer server;
+    private CountingRelay relay;
+    private String baseUrl;
+
+    @Before
+    public void start() throws IOException {
+        server = new MockBackendServer();
+        relay = new CountingRelay(server.getPort());
+        baseUrl = "http://127.0.0.1:" + relay.getPort();
+    }
+
+    @After
+    public void stop() throws IOException {
+        relay.close();
+        server.close();
+    }
+
+    @Test
+    public void requestBodies_gzippedOnceServerAdvertisesIt() throws Exception {
+        ChatBackend backend = new ChatBackend(baseUrl, new PooledHttpTransport());
+        String context = largeContext();
+
+        backend.ask(context, "first?");
+        assertNull(server.lastContentEncoding);
+
+        assertEquals(server.answer, backend.ask(context, "second?"));
+        assertEquals("gzip", server.lastContentEncoding);
+        assertEquals(context, server.lastRequest.getString("context"));
+    }
+
+    @Test
+    public void smallBodies_stayUncompressed() throws Exception {
+        ChatBackend backend = new ChatBackend(baseUrl, new PooledHttpTransport());
+
+        backend.ask("short", "first?");
+        backend.ask("short", "second?");
+
+        assertNull(server.lastContentEncoding);
+    }
+
+    @Test
+    public void rejectedGzip_retriedUncompressedAndNotUsedAgain() throws Exception {
+        ChatBackend backend = new ChatBackend(baseUrl, new PooledHttpTransport());
+        backend.ask(largeContext(), "first?");
+        server.acceptGzipRequests = false;
+
+        assertEquals(server.answer, backend.ask(largeContext(), "second?"));
+        assertNull(server.lastContentEncoding);
+        assertEquals("second?", server.lastRequest.getString("question"));
+    }
+
+    @Test
+    public void gzippedResponse_decoded() throws Exception {
+        StringBuilder longAnswer = new StringBuilder();
+        while (longAnswer.length() < 4 * PooledHttpTransport.GZIP_MIN_BYTES) {
+            longAnswer.append("The payment terms are net thirty days. ");
+        }
+        server.answer = longAnswer.toString();
+
+        String answer = new ChatBackend(baseUrl, new PooledHttpTransport()).ask("ctx", "q");
+
+        assertEquals(server.answer, answer);
+        assertTrue(relay.bytesDown.get() < server.answer.length());
+    }
+
+    @Test
+    public void connection_reusedAcrossJsonAndStreamedAnswers() throws Exception {
+        ChatBackend backend = new ChatBackend(baseUrl, new PooledHttpTransport());
+
+        for (int i = 0; i < 5; i++) {
+            backend.ask(largeContext(), "json " + i);
+            backend.ask(largeContext(), "stream " + i, partial -> { });
+        }
+
+        assertEquals(1, relay.connections.get());
+    }
+
+    @Test
+    public void adaptiveTimeout_followsSamplesWithinBounds() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(1_000, 60_000);
+        assertEquals(60_000, timeout.getMillis());
+
+        for (int i = 0; i < 50; i++) {
+            timeout.onSample(400);
+        }
+        assertEquals(1_000, timeout.getMillis());
+
+        for (int i = 0; i < 50; i++) {
+            timeout.onSample(i % 2 == 0 ? 2_000 : 6_000);
+        }
+        int jittery = timeout.getMillis();
+        assertTrue(jittery > 6_000 && jittery < 60_000);
+
+        timeout.onTimeout();
+        assertEquals(Math.min(60_000, jittery * 2), timeout.getMillis());
+        for (int i = 0; i < 10; i++) {
+            timeout.onTimeout();
+        }
+        assertEquals(60_000, timeout.getMillis());
+    }
+
+    @Test
+    public void bodyPause_longerThanResponseTimeout_waitedOut() throws Exception {
+        AdaptiveTimeout responseTimeout = new AdaptiveTimeout(50, 100);
+        PooledHttpTransport transport = new PooledHttpTransport(responseTimeout, 5_000);
+        server.bodyPauseMillis = 400;
+
+        try (HttpTransport.Response response = post(transport, "/paused")) {
+            assertEquals("first half, second half", readBody(response));
+        }
+    }
+
+    @Test
+    public void slowHeaders_timeOutAndBackOff() throws Exception {
+        AdaptiveTimeout responseTimeout = new AdaptiveTimeout(100, 400);
+        PooledHttpTransport transport = new PooledHttpTransport(responseTimeout, 5_000);
+        for (int i = 0; i < 10; i++) {
+            post(transport, "/health").close();
+        }
+        int adapted = responseTimeout.getMillis();
+        assertTrue(adapted < 400);
+        server.roundTripMillis = 600;
+
+        try {
+            post(transport, "/health");
+            fail();
+        } catch (SocketTimeoutException expected) {
+            // Gave up on the headers long before the body timeout
+        }
+        assertEquals(Math.min(400, adapted * 2), responseTimeout.getMillis());
+    }
+
+    @Test
+    public void stalledBody_backsOffResponseTimeout() throws Exception {
+        AdaptiveTimeout responseTimeout = new AdaptiveTimeout(100, 400);
+        PooledHttpTransport transport = new PooledHttpTransport(responseTimeout, 200);
+        for (int i = 0; i < 10; i++) {
+            post(transport, "/health").close();
+        }
+        int adapted = responseTimeout.getMillis();
+        server.bodyPauseMillis = 800;
+
+        try (HttpTransport.Response response = post(transport, "/paused")) {
+            readBody(response);
+            fail();
+        } catch (SocketTimeoutException expected) {
+            // Nothing arrived within the body read timeout
+        }
+        assertEquals(Math.min(400, adapted * 2), responseTimeout.getMillis());
+    }
+
+    private HttpTransport.Response post(PooledHttpTransport transport, String path) throws IOException {
+        return transport.post(baseUrl + path, HttpTransport.bytes(HttpTransport.JSON, "{}".getBytes(StandardCharsets.UTF_8)),
+                Collections.emptyMap(), CancellationToken.NONE);
+    }
+
+    private static String readBody(HttpTransport.Response response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = response.body();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static String largeContext() {
+        StringBuilder context = new StringBuilder();
+        int section = 0;
+        while (context.length() < 8000) {
+            context.append("Section ").append(++section)
+                    .append(". The supplier shall deliver the goods within thirty days of the order date")
+                    .append(" and invoices are payable within forty five days of receipt.\n");
+        }
+        return context.toString();
+    }
+}
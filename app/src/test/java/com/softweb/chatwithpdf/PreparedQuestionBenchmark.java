@@ -0,0 +1,131 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time from pressing "Ask" to the first streamed answer bytes, for questions retrieved,
+ * serialized and sent only once they are asked, and for questions prepared while they
+ * were typed. The mock backend holds each response back for a simulated round trip,
+ * so the first question about a document also pays for its registration unless it was
+ * prepared. Loopback connections are nearly free, so the saving from a warmed
+ * connection (a TCP and TLS handshake on a mobile network) is not part of these numbers.
+ */
+public class PreparedQuestionBenchmark {
+
+    private static final int ROUND_TRIP_MILLIS = 40;
+    private static final int ITERATIONS = 15;
+    private static final int PAGES = 500;
+
+    private MockBackendServer server;
+    private String baseUrl;
+    private DocumentIndex index;
+    private ContextPacker packer;
+
+    @Before
+    public void start() throws IOException {
+        server = new MockBackendServer();
+        server.roundTripMillis = ROUND_TRIP_MILLIS;
+        baseUrl = "http://127.0.0.1:" + server.getPort();
+        index = new DocumentIndex("benchmark-document");
+        String[] words = {"pump", "valve", "pressure", "sensor", "calibrated", "monthly", "torque", "values",
+                "listed", "maintenance", "schedule", "warranty", "claims", "receipt", "firmware", "battery"};
+        Random random = new Random(23);
+        for (int page = 0; page < PAGES; page++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < 400; w++) {
+                text.append(words[random.nextInt(words.length)]).append(w % 12 == 11 ? ". " : " ");
+            }
+            index.addText(text);
+        }
+        packer = new ContextPacker(ModelBudget.DEFAULT);
+    }
+
+    @After
+    public void stop() {
+        server.close();
+    }
+
+    @Test
+    public void preparedQuestions_reachFirstByteSooner() throws Exception {
+        PooledHttpTransport transport = new PooledHttpTransport();
+        long[] coldFirst = new long[ITERATIONS];
+        long[] preparedFirst = new long[ITERATIONS];
+        long[] coldFollowUp = new long[ITERATIONS];
+        long[] preparedFollowUp = new long[ITERATIONS];
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            String question = "How often is the pressure sensor calibrated, question " + i + "?";
+
+            // A new backend knows no documents, as for the first question about one
+            ChatBackend cold = new ChatBackend(baseUrl, transport);
+            coldFirst[i] = askCold(cold, question);
+            coldFollowUp[i] = askCold(cold, question + " And the valve?");
+
+            ChatBackend prepared = new ChatBackend(baseUrl, transport);
+            preparedFirst[i] = askPrepared(prepared, question);
+            preparedFollowUp[i] = askPrepared(prepared, question + " And the valve?");
+        }
+
+        report("First question, not prepared", coldFirst);
+        report("First question, prepared", preparedFirst);
+        report("Follow-up, not prepared", coldFollowUp);
+        report("Follow-up, prepared", preparedFollowUp);
+        // The prepared first question skips the registration round trip
+        assertTrue(median(preparedFirst) + ROUND_TRIP_MILLIS * 1_000_000L / 2 < median(coldFirst));
+        assertTrue(median(preparedFollowUp) <= median(coldFollowUp));
+    }
+
+    /**
+     * Retrieve, serialize and send once asked, as without preparation
+     */
+    private long askCold(ChatBackend backend, String question) throws Exception {
+        long start = System.nanoTime();
+        long[] firstByte = {0};
+        int[] chunkIds = packer.pack(index, question, ConversationMemory.Snapshot.EMPTY.getTexts()).chunkIds;
+        backend.ask(index, chunkIds, question, ConversationMemory.Snapshot.EMPTY, partial -> {
+            if (firstByte[0] == 0) {
+                firstByte[0] = System.nanoTime();
+            }
+        }, CancellationToken.NONE);
+        return firstByte[0] - start;
+    }
+
+    /**
+     * Prepare while "typing", untimed, then send what was prepared
+     */
+    private long askPrepared(ChatBackend backend, String question) throws Exception {
+        int[] chunkIds = packer.pack(index, question, ConversationMemory.Snapshot.EMPTY.getTexts()).chunkIds;
+        ChatBackend.PreparedQuestion prepared = backend.prepare(index, chunkIds, question,
+                ConversationMemory.Snapshot.EMPTY, CancellationToken.NONE);
+
+        long start = System.nanoTime();
+        long[] firstByte = {0};
+        backend.ask(prepared, partial -> {
+            if (firstByte[0] == 0) {
+                firstByte[0] = System.nanoTime();
+            }
+        }, CancellationToken.NONE);
+        return firstByte[0] - start;
+    }
+
+    private static long median(long[] durations) {
+        long[] sorted = durations.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void report(String name, long[] durations) {
+        long[] sorted = durations.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-30s p50 %6.2f ms  max %6.2f ms%n",
+                name, median(durations) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+}
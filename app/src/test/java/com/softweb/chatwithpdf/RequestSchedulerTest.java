@@ -0,0 +1,249 @@
+package com.softweb.chatwithpdf;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests parallelism, collapsing, priorities, cancellation and metrics of the request scheduler.
+ */
+public class RequestSchedulerTest {
+
+    private static final RequestScheduler.Priority INTERACTIVE = RequestScheduler.Priority.INTERACTIVE;
+    private static final RequestScheduler.Priority BACKGROUND = RequestScheduler.Priority.BACKGROUND;
+
+    private final RequestScheduler scheduler = new RequestScheduler(2);
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void runsAtMostMaxParallel() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        Recorder<String> done = new Recorder<>(6);
+
+        for (int i = 0; i < 6; i++) {
+            scheduler.submit(null, INTERACTIVE, (cancellation, progress) -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(30);
+                running.decrementAndGet();
+                return "ok";
+            }, done);
+        }
+
+        done.await();
+        assertEquals(2, peak.get());
+        assertEquals(6, scheduler.getExecutionTime().getCount());
+        assertTrue(scheduler.getWaitTime().getMaxMillis() >= 30);
+    }
+
+    @Test
+    public void identicalRequests_collapseIntoOneCall() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch firstPartial = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        Recorder<String> first = new Recorder<>(1);
+        Recorder<String> second = new Recorder<>(1);
+        RequestScheduler.Task<String> task = (cancellation, progress) -> {
+            runs.incrementAndGet();
+            progress.publish("The");
+            firstPartial.countDown();
+            release.await();
+            return "The answer";
+        };
+
+        scheduler.submit("doc\nwhat is it", INTERACTIVE, task, first);
+        assertTrue(firstPartial.await(5, TimeUnit.SECONDS));
+        scheduler.submit("doc\nwhat is it", INTERACTIVE, task, second);
+        release.countDown();
+
+        first.await();
+        second.await();
+        assertEquals(1, runs.get());
+        assertEquals(Collections.singletonList("The answer"), second.results);
+        // The late caller still saw the answer so far
+        assertEquals(Collections.singletonList("The"), second.partials);
+        assertEquals(1, scheduler.getDedupedCount());
+    }
+
+    @Test
+    public void interactiveRequests_overtakeQueuedBackgroundWork() throws Exception {
+        RequestScheduler single = new RequestScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Recorder<String> done = new Recorder<>(5);
+        try {
+            single.submit(null, INTERACTIVE, (c, p) -> {
+                release.await();
+                return "blocker";
+            }, done);
+            single.submit("summary", BACKGROUND, record(order, "summary"), done);
+            single.submit("outline", BACKGROUND, record(order, "outline"), done);
+            single.submit("question", INTERACTIVE, record(order, "question"), done);
+            // Asked interactively while queued as a prefetch, so it moves up too
+            single.submit("outline", INTERACTIVE, record(order, "outline again"), done);
+            assertEquals(3, single.getQueueDepth());
+
+            release.countDown();
+            done.await();
+        } finally {
+            single.shutdown();
+        }
+        // Equal priorities keep submission order
+        assertEquals(Arrays.asList("outline", "question", "summary"), order);
+    }
+
+    @Test
+    public void cancelQueuedRequest_neverRuns() throws Exception {
+        RequestScheduler single = new RequestScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        Recorder<String> done = new Recorder<>(1);
+        Recorder<String> cancelled = new Recorder<>(1);
+        try {
+            single.submit(null, INTERACTIVE, (c, p) -> {
+                release.await();
+                return "blocker";
+            }, done);
+            RequestScheduler.Handle handle = single.submit("q", INTERACTIVE, (c, p) -> {
+                runs.incrementAndGet();
+                return "never";
+            }, cancelled);
+
+            handle.cancel();
+            release.countDown();
+            done.await();
+            assertEquals(0, single.getQueueDepth());
+        } finally {
+            single.shutdown();
+        }
+        assertEquals(0, runs.get());
+        assertTrue(cancelled.results.isEmpty());
+        assertEquals(1, single.getCancelledCount());
+    }
+
+    @Test
+    public void cancelOneOfTwoCallers_requestKeepsRunning() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder<String> kept = new Recorder<>(1);
+        Recorder<String> dropped = new Recorder<>(1);
+        RequestScheduler.Task<String> task = (cancellation, progress) -> {
+            started.countDown();
+            release.await();
+            return cancellation.isCancelled() ? "aborted" : "answer";
+        };
+
+        scheduler.submit("q", INTERACTIVE, task, kept);
+        RequestScheduler.Handle second = scheduler.submit("q", INTERACTIVE, task, dropped);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        second.cancel();
+        release.countDown();
+
+        kept.await();
+        assertEquals(Collections.singletonList("answer"), kept.results);
+        assertTrue(dropped.results.isEmpty());
+    }
+
+    @Test
+    public void cancelRunningRequest_abortsItsConnection() throws Exception {
+        CountDownLatch requestArrived = new CountDownLatch(1);
+        CountDownLatch serverDone = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/chat", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write("data: thinking\n\n".getBytes());
+                out.flush();
+                requestArrived.countDown();
+                // A generation that would outlast every timeout
+                serverDone.await(30, TimeUnit.SECONDS);
+            } catch (Exception ignored) {
+            }
+        });
+        server.start();
+        ChatBackend backend = new ChatBackend("http://127.0.0.1:" + server.getAddress().getPort());
+        CountDownLatch taskEnded = new CountDownLatch(1);
+        Recorder<String> callback = new Recorder<>(1);
+
+        try {
+            RequestScheduler.Handle handle = scheduler.submit("q", INTERACTIVE, (cancellation, progress) -> {
+                try {
+                    return backend.ask("ctx", "q", progress::publish, cancellation);
+                } finally {
+                    taskEnded.countDown();
+                }
+            }, callback);
+            assertTrue(requestArrived.await(5, TimeUnit.SECONDS));
+
+            handle.cancel();
+
+            assertTrue(taskEnded.await(5, TimeUnit.SECONDS));
+        } finally {
+            serverDone.countDown();
+            server.stop(0);
+        }
+        assertTrue(callback.results.isEmpty());
+        assertTrue(callback.failures.isEmpty());
+    }
+
+    private static RequestScheduler.Task<String> record(List<String> order, String name) {
+        return (cancellation, progress) -> {
+            order.add(name);
+            return name;
+        };
+    }
+
+    /**
+     * Collects what a caller receives and waits for the expected number of outcomes
+     */
+    private static class Recorder<T> implements RequestScheduler.Callback<T> {
+        final List<T> partials = Collections.synchronizedList(new ArrayList<>());
+        final List<T> results = Collections.synchronizedList(new ArrayList<>());
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch outcomes;
+
+        Recorder(int expected) {
+            outcomes = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onPartial(T partial) {
+            partials.add(partial);
+        }
+
+        @Override
+        public void onSuccess(T result) {
+            results.add(result);
+            outcomes.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failures.add(e);
+            outcomes.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(outcomes.await(10, TimeUnit.SECONDS));
+        }
+    }
+}
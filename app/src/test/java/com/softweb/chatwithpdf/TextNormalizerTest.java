@@ -0,0 +1,165 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests page text normalization on fixtures shaped like PDFTextStripper output:
+ * running headers and footers, page numbers, hyphenated line breaks, ragged whitespace
+ * and glyphs from symbol fonts.
+ */
+public class TextNormalizerTest {
+
+    private static final String HEADER = "ACME Instruments   -   Annual Report 2023";
+    private static final String[] WORDS = {
+            "sensor", "array", "drift", "quarter", "tolerance", "customer", "firmware", "north",
+            "wing", "replacement", "temperature", "board", "units", "measured", "stayed", "within",
+            "agreed", "update", "the", "of", "and", "after", "calibration", "readings",
+    };
+    private static final int LINES_PER_PAGE = 6;
+    private static final int WORDS_PER_LINE = 11;
+
+    @Test
+    public void runningHeadersFootersAndPageNumbers_areDropped() {
+        String[] pages = TextNormalizer.normalize(reportPages(12));
+
+        for (int i = 0; i < pages.length; i++) {
+            assertFalse(pages[i], pages[i].contains("Annual Report"));
+            assertFalse(pages[i], pages[i].contains("Page " + (i + 1)));
+            assertFalse(pages[i], pages[i].contains("Confidential"));
+            // Body text is kept on every page, the first and last included
+            assertTrue(pages[i], pages[i].startsWith("Section " + (i + 1) + ": "));
+            assertTrue(pages[i], pages[i].endsWith("compensation boards."));
+            assertTrue(pages[i], pages[i].contains(" compensation "));
+        }
+    }
+
+    @Test
+    public void lineOnOnlyOnePage_isKept() {
+        CharSequence[] raw = reportPages(6);
+        raw[0] = "Quarterly Summary\n" + raw[0];
+
+        String[] pages = TextNormalizer.normalize(raw);
+
+        assertTrue(pages[0], pages[0].startsWith("Quarterly Summary"));
+    }
+
+    @Test
+    public void shortDocument_keepsEverything() {
+        String[] pages = TextNormalizer.normalize("Title\nFirst page.\n1", "Title\nSecond page.\n2");
+
+        assertEquals("Title First page.\n1", pages[0]);
+        assertEquals("Title Second page.\n2", pages[1]);
+    }
+
+    @Test
+    public void hyphenatedLineBreaks_areJoined() {
+        String[] pages = TextNormalizer.normalize("The calibra-\ntion of the sensors took place in Smith-\nJones Hall.");
+
+        assertEquals("The calibration of the sensors took place in Smith- Jones Hall.", pages[0]);
+    }
+
+    @Test
+    public void whitespaceAndWrappedLines_areCollapsed() {
+        String[] pages = TextNormalizer.normalize(
+                "  The  quick\tbrown \r\nfox jumps.\n\n\nA new   paragraph:\n• first item\n2. second item  \n");
+
+        assertEquals("The quick brown fox jumps.\n\nA new paragraph:\n• first item\n2. second item", pages[0]);
+    }
+
+    @Test
+    public void nonContentGlyphs_areStripped() {
+        String[] pages = TextNormalizer.normalize("eﬃcient data​� flow­ rate\u0007");
+
+        assertEquals("efficient data flow rate", pages[0]);
+    }
+
+    @Test
+    public void pagesStreamInOrderWithBoundedLookahead() {
+        List<Integer> delivered = new ArrayList<>();
+        TextNormalizer normalizer = new TextNormalizer((pageNumber, pageCount, text) -> delivered.add(pageNumber));
+        CharSequence[] raw = reportPages(10);
+
+        for (int i = 0; i < raw.length; i++) {
+            normalizer.onPage(i + 1, raw.length, raw[i]);
+            int expected = i + 1 == raw.length ? raw.length : Math.max(0, i + 1 - TextNormalizer.LOOKAHEAD_PAGES);
+            assertEquals(expected, delivered.size());
+        }
+        for (int i = 0; i < delivered.size(); i++) {
+            assertEquals(i + 1, (int) delivered.get(i));
+        }
+        assertEquals(raw.length, normalizer.getPageCount());
+    }
+
+    @Test
+    public void resumedExtraction_stillDropsHeaders() {
+        CharSequence[] raw = reportPages(12);
+        List<String> pages = new ArrayList<>();
+        TextNormalizer normalizer = new TextNormalizer((pageNumber, pageCount, text) -> pages.add(text.toString()));
+
+        // Resuming after 8 stored pages leaves only the lookahead to compare against
+        for (int i = 8; i < raw.length; i++) {
+            normalizer.onPage(i + 1, raw.length, raw[i]);
+        }
+
+        assertEquals(4, pages.size());
+        for (String page : pages) {
+            assertFalse(page, page.contains("Annual Report"));
+        }
+    }
+
+    @Test
+    public void hashLine_matchesAcrossPageNumbersAndSpacing() {
+        String a = "Page 3 of 12";
+        String b = "page  14 of 12";
+
+        assertEquals(TextNormalizer.hashLine(a, 0, a.length()), TextNormalizer.hashLine(b, 0, b.length()));
+        assertNotEquals(TextNormalizer.hashLine(a, 0, a.length()), TextNormalizer.hashLine("Chapter 3", 0, 9));
+    }
+
+    @Test
+    public void reportFixture_shrinksCharsAndTokens() {
+        TextNormalizer normalizer = new TextNormalizer((pageNumber, pageCount, text) -> { });
+        CharSequence[] raw = reportPages(50);
+        for (int i = 0; i < raw.length; i++) {
+            normalizer.onPage(i + 1, raw.length, raw[i]);
+        }
+
+        System.out.printf("Report fixture: %d -> %d chars (%.2fx), %d -> %d tokens%n",
+                normalizer.getInputChars(), normalizer.getOutputChars(), normalizer.getCompressionRatio(),
+                normalizer.getInputTokens(), normalizer.getOutputTokens());
+        assertTrue(normalizer.getCompressionRatio() > 1.15);
+        assertTrue(normalizer.getOutputTokens() * 4 < normalizer.getInputTokens() * 3);
+    }
+
+    /**
+     * Pages as PDFTextStripper returns them for a typical report: a running header, ragged
+     * body lines with a hyphenated break, a confidentiality line and a numbered footer
+     */
+    static CharSequence[] reportPages(int pageCount) {
+        CharSequence[] pages = new CharSequence[pageCount];
+        for (int p = 1; p <= pageCount; p++) {
+            StringBuilder page = new StringBuilder();
+            page.append(HEADER).append('\n');
+            page.append("Section ").append(p).append(": ");
+            Random random = new Random(p);
+            for (int line = 0; line < LINES_PER_PAGE; line++) {
+                for (int w = 0; w < WORDS_PER_LINE; w++) {
+                    page.append(WORDS[random.nextInt(WORDS.length)]).append(w % 4 == 3 ? "  " : " ");
+                }
+                page.append(line == 2 ? "compen-\nsation " : "")
+                        .append(line == LINES_PER_PAGE - 1 ? "compensation boards." : "").append("  \n");
+            }
+            page.append("\n\n");
+            page.append("Confidential - internal use only\n");
+            page.append("Page ").append(p).append(" of ").append(pageCount).append('\n');
+            pages[p - 1] = page;
+        }
+        return pages;
+    }
+}
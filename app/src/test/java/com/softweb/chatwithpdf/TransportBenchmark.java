@@ -0,0 +1,156 @@
+package com.softweb.chatwithpdf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the original per-question HttpURLConnection handling with
+ * {@link PooledHttpTransport} against a local mock backend, reporting p50/p99
+ * latency per question and the bytes that crossed the wire. Loopback makes
+ * connection setup and transfer nearly free, so latencies here mostly show CPU
+ * cost; the byte and connection counts are what carry over to a mobile network.
+ */
+public class TransportBenchmark {
+
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 200;
+
+    private MockBackendServer server;
+    private CountingRelay relay;
+    private String baseUrl;
+
+    @Before
+    public void start() throws IOException {
+        server = new MockBackendServer();
+        relay = new CountingRelay(server.getPort());
+        baseUrl = "http://127.0.0.1:" + relay.getPort();
+    }
+
+    @After
+    public void stop() throws IOException {
+        relay.close();
+        server.close();
+    }
+
+    @Test
+    public void pooledTransport_sendsFewerBytesWithoutMoreConnections() throws Exception {
+        Result baseline = run("baseline", new ChatBackend(baseUrl, new BaselineTransport()));
+        Result pooled = run("pooled", new ChatBackend(baseUrl, new PooledHttpTransport()));
+
+        assertTrue(pooled.bytesUp < baseline.bytesUp / 2);
+        assertTrue(pooled.connections <= baseline.connections);
+    }
+
+    private Result run(String name, ChatBackend backend) throws Exception {
+        String context = PooledHttpTransportTest.largeContext();
+        for (int i = 0; i < WARMUP; i++) {
+            ask(backend, context, i);
+        }
+        relay.reset();
+
+        long[] latencies = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            ask(backend, context, i);
+            latencies[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(latencies);
+        Result result = new Result(relay.bytesUp.get() / ITERATIONS, relay.bytesDown.get() / ITERATIONS,
+                relay.connections.get());
+        System.out.printf("%-8s p50 %6.2f ms  p99 %6.2f ms  up %6d B/q  down %5d B/q  connections %d%n",
+                name, latencies[ITERATIONS / 2] / 1e6, latencies[ITERATIONS * 99 / 100] / 1e6,
+                result.bytesUp, result.bytesDown, result.connections);
+        return result;
+    }
+
+    /**
+     * Alternate plain and streamed answers, the way the app asks
+     */
+    private static void ask(ChatBackend backend, String context, int i) throws Exception {
+        if (i % 2 == 0) {
+            backend.ask(context, "question " + i);
+        } else {
+            backend.ask(context, "question " + i, partial -> { });
+        }
+    }
+
+    private static class Result {
+        final long bytesUp;
+        final long bytesDown;
+        final int connections;
+
+        Result(long bytesUp, long bytesDown, int connections) {
+            this.bytesUp = bytesUp;
+            this.bytesDown = bytesDown;
+            this.connections = connections;
+        }
+    }
+
+    /**
+     * How questions were sent before the transport existed: the body buffered by the
+     * connection, no compression, fixed timeouts and the response closed wherever
+     * reading stopped, which costs the pooled connection whenever bytes are left
+     */
+    private static class BaselineTransport implements HttpTransport {
+        @Override
+        public Response post(String url, RequestBody body, Map<String, String> headers,
+                             CancellationToken cancellation) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", body.contentType());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+            conn.setDoOutput(true);
+            conn.setConnectTimeout(60000);
+            conn.setReadTimeout(120000);
+            try (OutputStream os = conn.getOutputStream()) {
+                body.writeTo(os);
+            }
+            int code = conn.getResponseCode();
+
+            return new Response() {
+                private InputStream stream;
+
+                @Override
+                public int code() {
+                    return code;
+                }
+
+                @Override
+                public String header(String name) {
+                    return conn.getHeaderField(name);
+                }
+
+                @Override
+                public InputStream body() throws IOException {
+                    if (stream == null) {
+                        stream = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+                        if (stream == null) {
+                            stream = new ByteArrayInputStream(new byte[0]);
+                        }
+                    }
+                    return stream;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    body().close();
+                }
+            };
+        }
+    }
+}
@@ -1,19 +1,261 @@
-from flask import Flask, request, jsonify
+from flask import Flask, Response, request, jsonify, stream_with_context
 from flask_cors import CORS
+from collections import OrderedDict
 import requests
+import gzip
+import io
+import json
 import os
+import threading
+import time
+import uuid
+import zlib
+
+# Request bodies larger than this are gzipped by the app, and so are JSON responses
+GZIP_MIN_BYTES = 1024
+MAX_REQUEST_BYTES = 16 * 1024 * 1024
+
+
+class GzipRequestMiddleware:
+    """Inflates gzip request bodies before Flask parses them, and advertises support
+    with an Accept-Encoding response header (RFC 7694) so clients know they may send them"""
+
+    def __init__(self, wsgi_app):
+        self.wsgi_app = wsgi_app
+
+    def __call__(self, environ, start_response):
+        encoding = environ.get("HTTP_CONTENT_ENCODING", "identity").strip().lower()
+        if encoding == "gzip":
+            try:
+                body = self._inflate(environ)
+            except OverflowError:
+                return self._reject(start_response, "413 Payload Too Large", "Request body too large")
+            except (OSError, EOFError, ValueError, zlib.error) as e:
+                return self._reject(start_response, "400 Bad Request", f"Invalid gzip body: {e}")
+            environ["wsgi.input"] = io.BytesIO(body)
+            environ["CONTENT_LENGTH"] = str(len(body))
+            environ.pop("HTTP_CONTENT_ENCODING")
+            environ.pop("HTTP_TRANSFER_ENCODING", None)
+        elif encoding != "identity":
+            return self._reject(start_response, "415 Unsupported Media Type", f"Unsupported encoding: {encoding}")
+
+        def advertise(status, headers, exc_info=None):
+            return start_response(status, headers + [("Accept-Encoding", "gzip")], exc_info)
+
+        return self.wsgi_app(environ, advertise)
+
+    @staticmethod
+    def _inflate(environ):
+        stream = environ["wsgi.input"]
+        length = environ.get("CONTENT_LENGTH")
+        # Chunked bodies have no length, the server terminates the input instead
+        remaining = int(length) if length else None
+        inflater = zlib.decompressobj(16 + zlib.MAX_WBITS)
+        body = bytearray()
+        while remaining is None or remaining > 0:
+            block = stream.read(65536 if remaining is None else min(65536, remaining))
+            if not block:
+                break
+            if remaining is not None:
+                remaining -= len(block)
+            body += inflater.decompress(block, MAX_REQUEST_BYTES + 1 - len(body))
+            if len(body) > MAX_REQUEST_BYTES or inflater.unconsumed_tail:
+                raise OverflowError("body too large")
+        body += inflater.flush()
+        if not inflater.eof:
+            raise EOFError("truncated gzip stream")
+        return bytes(body)
+
+    @staticmethod
+    def _reject(start_response, status, message):
+        body = json.dumps({"success": False, "error": message}).encode()
+        start_response(status, [("Content-Type", "application/json"),
+                                 ("Content-Length", str(len(body))),
+                                 ("Accept-Encoding", "gzip")])
+        return [body]
+
 
 app = Flask(__name__)
 CORS(app)
+app.wsgi_app = GzipRequestMiddleware(app.wsgi_app)
 
 # HuggingFace Inference API - OpenAI compatible format
 HF_API_URL = "https://router.huggingface.co/v1/chat/completions"
 HF_TOKEN = os.environ.get("HF_TOKEN", "")
 
+# Token budget shared with the app, which bundles the same file
+with open(os.path.join(os.path.dirname(os.path.abspath(__file__)), "config", "model_budget.json")) as budget_file:
+    MODEL_BUDGET = json.load(budget_file)
+MODEL = MODEL_BUDGET["model"]
+ANSWER_TOKENS = MODEL_BUDGET["answer_tokens"]
+INPUT_TOKENS = MODEL_BUDGET["context_tokens"] - ANSWER_TOKENS - MODEL_BUDGET["prompt_tokens"]
+
+
+def _char_kind(c):
+    """Run kind of a character, as in TokenEstimator.kindOf"""
+    code = ord(c)
+    if code < 0x80:
+        if "a" <= c <= "z" or "A" <= c <= "Z":
+            return "latin"
+        return "digit" if "0" <= c <= "9" else None
+    if code > 0xFFFF or 0x3400 <= code <= 0x4DBF or 0x4E00 <= code <= 0x9FFF or 0xF900 <= code <= 0xFAFF:
+        return None
+    if not c.isalpha():
+        return None
+    return "latin" if code <= 0x24F else "other"
+
+
+def _run_tokens(kind, length):
+    if kind == "latin":
+        return 1 + (length - 1) // 6
+    if kind == "digit":
+        return (length + 2) // 3
+    if kind == "other":
+        return (length + 2) // 3
+    return 0
+
+
+def estimate_tokens(text):
+    """Approximate model tokens, a port of TokenEstimator in the app; keep the two in sync"""
+    tokens = 0
+    run, run_length = None, 0
+    last_was_space = False
+    for c in text:
+        kind = _char_kind(c)
+        if kind is not None and kind == run:
+            run_length += 1
+            continue
+        tokens += _run_tokens(run, run_length)
+        run, run_length = kind, (1 if kind is not None else 0)
+        if kind is None:
+            if c == " ":
+                if last_was_space:
+                    tokens += 1
+                last_was_space = True
+                continue
+            tokens += 1
+        last_was_space = False
+    return tokens + _run_tokens(run, run_length)
+
+
+def trim_to_tokens(text, max_tokens):
+    """Longest prefix within max_tokens, cut at a space where possible"""
+    if estimate_tokens(text) <= max_tokens:
+        return text
+    low, high = 0, len(text)
+    while low < high:
+        middle = (low + high + 1) // 2
+        if estimate_tokens(text[:middle]) <= max_tokens:
+            low = middle
+        else:
+            high = middle - 1
+    end = low
+    while end > 0 and text[end - 1] not in " \n":
+        end -= 1
+    return text[:end if end > 0 else low]
+
+
+# Uploaded document chunks, so questions only need to send chunk ids
+MAX_DOCUMENTS = 200
+MAX_STORED_CHARS = 50_000_000
+DOCUMENT_TTL_SECONDS = 2 * 60 * 60
+CHUNK_SEPARATOR = "\n...\n"
+
+
+class DocumentStore:
+    """In-memory LRU of uploaded chunk sets, bounded by count and size, with a sliding TTL"""
+
+    def __init__(self, max_documents, max_chars, ttl_seconds):
+        self.max_documents = max_documents
+        self.max_chars = max_chars
+        self.ttl_seconds = ttl_seconds
+        self._documents = OrderedDict()  # id -> {"key", "chunks", "chars", "expires"}
+        self._ids_by_key = {}  # (client id, hash) -> id
+        self._chars = 0
+        self._lock = threading.Lock()
+
+    def register(self, client_id, content_hash):
+        """Return (document id, chunk ids already stored), reusing a live document the same client
+        registered with the same hash; chunks uploaded by one client are never served to another"""
+        key = (client_id, content_hash)
+        with self._lock:
+            self._expire()
+            doc_id = self._ids_by_key.get(key)
+            if doc_id is None:
+                doc_id = uuid.uuid4().hex
+                self._documents[doc_id] = {"key": key, "chunks": {}, "chars": 0}
+                self._ids_by_key[key] = doc_id
+            document = self._touch(doc_id)
+            self._evict(keep=doc_id)
+            return doc_id, sorted(document["chunks"])
+
+    def get_context(self, doc_id, chunk_ids, new_chunks):
+        """Store newly uploaded chunks and join the requested ones, or None if the document is gone.
+        A chunk is stored once; text sent again for a chunk id already held is ignored."""
+        with self._lock:
+            self._expire()
+            if doc_id not in self._documents:
+                return None
+            document = self._touch(doc_id)
+            for chunk_id, text in new_chunks.items():
+                if chunk_id in document["chunks"]:
+                    continue
+                document["chunks"][chunk_id] = text
+                document["chars"] += len(text)
+                self._chars += len(text)
+            self._evict(keep=doc_id)
+            if any(chunk_id not in document["chunks"] for chunk_id in chunk_ids):
+                return None
+            return CHUNK_SEPARATOR.join(document["chunks"][chunk_id] for chunk_id in chunk_ids)
+
+    def _touch(self, doc_id):
+        document = self._documents[doc_id]
+        document["expires"] = time.monotonic() + self.ttl_seconds
+        self._documents.move_to_end(doc_id)
+        return document
+
+    def _remove(self, doc_id):
+        document = self._documents.pop(doc_id)
+        self._ids_by_key.pop(document["key"], None)
+        self._chars -= document["chars"]
+
+    def _expire(self):
+        now = time.monotonic()
+        for doc_id in [d for d, doc in self._documents.items() if doc["expires"] <= now]:
+            self._remove(doc_id)
+
+    def _evict(self, keep):
+        while len(self._documents) > 1 and (
+                len(self._documents) > self.max_documents or self._chars > self.max_chars):
+            oldest = next(iter(self._documents))
+            if oldest == keep:
+                break
+            self._remove(oldest)
+
+
+documents = DocumentStore(MAX_DOCUMENTS, MAX_STORED_CHARS, DOCUMENT_TTL_SECONDS)
+
+
+@app.after_request
+def compress_response(response):
+    """Gzip JSON responses for clients that accept it; event streams stay uncompressed
+    so each token is flushed as soon as it arrives"""
+    if (response.is_streamed or response.direct_passthrough
+            or "Content-Encoding" in response.headers
+            or "gzip" not in request.headers.get("Accept-Encoding", "").lower()):
+        return response
+    data = response.get_data()
+    if len(data) < GZIP_MIN_BYTES:
+        return response
+    response.set_data(gzip.compress(data))
+    response.headers["Content-Encoding"] = "gzip"
+    response.headers.add("Vary", "Accept-Encoding")
+    return response
+
 
 @app.route("/")
 def root():
-    return jsonify({"status": "ok", "model": "meta-llama/Llama-3.2-1B-Instruct"})
+    return jsonify({"status": "ok", "model": MODEL, "budget": MODEL_BUDGET})
 
 
 @app.route("/health")
@@ -21,37 +263,142 @@ def health():
     return jsonify({"status": "healthy"})
 
 
+# History never takes more than this share of the input budget, as in the app's ContextPacker
+HISTORY_SHARE_DIVISOR = 4
+
+
+def fit_history(summary, history, question):
+    """Most recent turns, then the summary, that fit the history share; the app already packs to it"""
+    budget = min(INPUT_TOKENS - estimate_tokens(question), INPUT_TOKENS // HISTORY_SHARE_DIVISOR)
+    kept, used = [], 0
+    for turn in reversed(history):
+        cost = estimate_tokens(turn.get("question", "") + "\n" + turn.get("answer", ""))
+        if used + cost > budget:
+            return "", kept[::-1], used
+        kept.append(turn)
+        used += cost
+    cost = estimate_tokens(summary)
+    if summary and used + cost <= budget:
+        return summary, kept[::-1], used + cost
+    return "", kept[::-1], used
+
+
+def build_payload(context, question, summary="", history=()):
+    """OpenAI-compatible request for the HuggingFace router"""
+    messages = [
+        {
+            "role": "system",
+            "content": "You are a helpful assistant that answers questions based on the provided document. Be concise."
+        }
+    ]
+    if summary:
+        messages.append({"role": "system", "content": f"Earlier in this conversation:\n{summary}"})
+    for turn in history:
+        messages.append({"role": "user", "content": turn.get("question", "")})
+        messages.append({"role": "assistant", "content": turn.get("answer", "")})
+    messages.append({
+        "role": "user",
+        "content": f"Document:\n{context}\n\nQuestion: {question}"
+    })
+    return {
+        "model": MODEL,
+        "messages": messages,
+        "max_tokens": ANSWER_TOKENS
+    }
+
+
+def sse_event(data, event=None):
+    """Format one server-sent event; newlines in data become extra data lines"""
+    lines = [f"event: {event}"] if event else []
+    lines += [f"data: {line}" for line in data.split("\n")]
+    return "\n".join(lines) + "\n\n"
+
+
+def stream_answer(headers, payload):
+    """Forward the upstream completion stream as one event per text delta"""
+    try:
+        with requests.post(
+            HF_API_URL,
+            headers=headers,
+            json={**payload, "stream": True},
+            timeout=60,
+            stream=True
+        ) as response:
+            if response.status_code != 200:
+                yield sse_event(f"API error: {response.text}", "error")
+                return
+
+            for line in response.iter_lines(decode_unicode=True):
+                if not line or not line.startswith("data:"):
+                    continue
+                chunk = line[len("data:"):].strip()
+                if chunk == "[DONE]":
+                    break
+                choices = json.loads(chunk).get("choices") or [{}]
+                delta = choices[0].get("delta", {}).get("content")
+                if delta:
+                    yield sse_event(delta)
+
+        yield sse_event("", "done")
+
+    except Exception as e:
+        yield sse_event(str(e), "error")
+
+
+@app.route("/documents", methods=["POST"])
+def register_document():
+    data = request.get_json()
+    content_hash = data.get("hash", "")
+    # Scopes the document to one app install; older clients share one per address
+    client_id = data.get("client_id") or request.remote_addr
+    
+    if not content_hash:
+        return jsonify({"success": False, "error": "Hash required"}), 400
+    
+    doc_id, chunk_ids = documents.register(client_id, content_hash)
+    return jsonify({"success": True, "document_id": doc_id, "hash": content_hash, "chunk_ids": chunk_ids})
+
+
 @app.route("/chat", methods=["POST"])
 def chat():
     try:
         data = request.get_json()
-        context = data.get("context", "")[:3000]
         question = data.get("question", "")
         
         if not question:
             return jsonify({"success": False, "error": "Question required"}), 400
         
+        if "document_id" in data:
+            # Chunks the client has not uploaded before ride along with the question
+            new_chunks = {int(k): v for k, v in data.get("chunks", {}).items()}
+            context = documents.get_context(data["document_id"], data.get("chunk_ids", []), new_chunks)
+            if context is None:
+                return jsonify({"success": False, "error": "Unknown document", "code": "document_not_found"}), 404
+        else:
+            context = data.get("context", "")
+        summary, history, history_tokens = fit_history(data.get("summary", ""), data.get("history", []), question)
+        # The app packs to the same budget, so this only trims clients that do not
+        context_budget = max(0, INPUT_TOKENS - estimate_tokens(question) - history_tokens)
+        trimmed = trim_to_tokens(context, context_budget)
+        if len(trimmed) < len(context):
+            app.logger.info("Trimmed context from %d to %d chars to fit %d tokens",
+                            len(context), len(trimmed), context_budget)
+            context = trimmed
+        
         headers = {
             "Content-Type": "application/json"
         }
         if HF_TOKEN:
             headers["Authorization"] = f"Bearer {HF_TOKEN}"
         
-        # OpenAI-compatible request format
-        payload = {
-            "model": "meta-llama/Llama-3.2-1B-Instruct",
-            "messages": [
-                {
-                    "role": "system",
-                    "content": "You are a helpful assistant that answers questions based on the provided document. Be concise."
-                },
-                {
-                    "role": "user",
-                    "content": f"Document:\n{context}\n\nQuestion: {question}"
-                }
-            ],
-            "max_tokens": 200
-        }
+        payload = build_payload(context, question, summary, history)
+        
+        if data.get("stream"):
+            return Response(
+                stream_with_context(stream_answer(headers, payload)),
+                mimetype="text/event-stream",
+                headers={"Cache-Control": "no-cache", "X-Accel-Buffering": "no"}
+            )
         
         response = requests.post(
             HF_API_URL,
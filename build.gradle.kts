@@ -2,6 +2,7 @@
 plugins {
     id("com.android.application") version "8.2.0" apply false
     id("com.android.library") version "8.2.0" apply false
+    id("com.android.test") version "8.2.0" apply false
     id("org.jetbrains.kotlin.android") version "1.8.0" apply false
 }
 
@@ -0,0 +1,46 @@
+package com.softweb.chatwithpdf.macrobenchmark
+
+import androidx.benchmark.macro.CompilationMode
+import androidx.benchmark.macro.ExperimentalMetricApi
+import androidx.benchmark.macro.StartupMode
+import androidx.benchmark.macro.StartupTimingMetric
+import androidx.benchmark.macro.TraceSectionMetric
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Cold starts of the app. Reports the time to the first frame, which the warm-up must
+ * not add to, and the PDFBox warm-up itself: the fonts, glyph list and classes the
+ * first extraction used to load on top of parsing, now loaded after the first frame.
+ */
+@RunWith(AndroidJUnit4::class)
+class StartupBenchmark {
+
+    @get:Rule
+    val rule = MacrobenchmarkRule()
+
+    @OptIn(ExperimentalMetricApi::class)
+    @Test
+    fun coldStart() = rule.measureRepeated(
+        packageName = TARGET_PACKAGE,
+        metrics = listOf(StartupTimingMetric(), TraceSectionMetric(WARM_UP_SECTION)),
+        compilationMode = CompilationMode.Partial(),
+        startupMode = StartupMode.COLD,
+        iterations = ITERATIONS,
+        setupBlock = { pressHome() }
+    ) {
+        startActivityAndWait()
+        // The warm-up starts after the first frame, keep tracing until it is done
+        Thread.sleep(WARM_UP_WAIT_MILLIS)
+    }
+
+    private companion object {
+        const val TARGET_PACKAGE = "com.softweb.chatwithpdf"
+        const val WARM_UP_SECTION = "PdfTextExtractor.warmUp"
+        const val ITERATIONS = 10
+        const val WARM_UP_WAIT_MILLIS = 3_000L
+    }
+}
@@ -17,3 +17,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "chatwithpdf"
 include(":app")
+include(":macrobenchmark")